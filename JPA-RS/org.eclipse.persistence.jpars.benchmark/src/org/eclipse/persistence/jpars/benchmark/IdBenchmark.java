@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpars.benchmark;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.eclipse.persistence.internal.dynamic.DynamicEntityImpl;
+import org.eclipse.persistence.jpa.rs.PersistenceContext;
+import org.eclipse.persistence.jpa.rs.PersistenceFactory;
+import org.eclipse.persistence.jpa.rs.util.IdHelper;
+import org.eclipse.persistence.jpa.rs.util.LinkAdapter;
+import org.eclipse.persistence.jpars.test.util.ExamplePropertiesLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the primary key and link conversions that are done for every find and delete and for
+ * every relationship of a marshalled entity.
+ *
+ * Single keys are those of auctions.  Composite keys are those of addresses, whose id classes are
+ * StaticAddressId in the static auction-static persistence unit and AddressPK in the dynamic auction
+ * unit.  IdHelper.buildId is measured for both units.  IdHelper.stringifyId and the LinkAdapter only
+ * handle dynamic entities, so they are measured for the dynamic unit.  Unmarshalling a link looks the
+ * entity up in the cache only; since the cache is empty it builds a shell of the entity.
+ *
+ * Results are the average time of an operation.  Run with -prof gc and read gc.alloc.rate.norm for
+ * the bytes allocated by an operation.
+ *
+ * @see org.eclipse.persistence.jpa.rs.util.IdHelper
+ * @see org.eclipse.persistence.jpa.rs.util.LinkAdapter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IdBenchmark {
+
+    public static final String SINGLE = "single";
+    public static final String COMPOSITE = "composite";
+
+    @Param({SINGLE, COMPOSITE})
+    public String key;
+
+    private PersistenceFactory factory;
+    private PersistenceContext staticContext;
+    private PersistenceContext dynamicContext;
+    private String staticType;
+    private String dynamicType;
+    private String idString;
+    private DynamicEntityImpl entity;
+    private LinkAdapter adapter;
+    private String link;
+
+    @Setup
+    public void setup() throws Exception {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        ExamplePropertiesLoader.loadProperties(properties);
+        factory = new PersistenceFactory();
+        EntityManagerFactory emf = Persistence.createEntityManagerFactory("auction-static", properties);
+        staticContext = factory.bootstrapPersistenceContext("auction-static", emf, new URI("http://localhost:8080/JPA-RS/"), false);
+        InputStream xmlStream = IdBenchmark.class.getClassLoader().getResourceAsStream("META-INF/xmldocs/auction-persistence.xml");
+        try {
+            dynamicContext = factory.bootstrapPersistenceContext("auction", xmlStream, properties, true);
+        } finally {
+            xmlStream.close();
+        }
+        dynamicContext.setBaseURI(new URI("http://localhost:8080/JPA-RS/"));
+
+        if (COMPOSITE.equals(key)){
+            staticType = "StaticAddress";
+            dynamicType = "Address";
+            entity = (DynamicEntityImpl)dynamicContext.newEntity(dynamicType);
+            entity.set("id", 1);
+            entity.set("type", "home");
+        } else {
+            staticType = "StaticAuction";
+            dynamicType = "Auction";
+            entity = (DynamicEntityImpl)dynamicContext.newEntity(dynamicType);
+            entity.set("id", 1);
+        }
+        // the order of the values of a composite key is decided by IdHelper
+        idString = IdHelper.stringifyId(entity, dynamicContext);
+        adapter = new LinkAdapter(dynamicContext.getBaseURI().toString(), dynamicContext);
+        link = adapter.marshal(entity);
+    }
+
+    @TearDown
+    public void teardown() {
+        factory.closePersistenceContext("auction-static");
+        factory.closePersistenceContext("auction");
+    }
+
+    @Benchmark
+    public Object buildIdStatic() {
+        return IdHelper.buildId(staticContext, staticType, idString);
+    }
+
+    @Benchmark
+    public Object buildIdDynamic() {
+        return IdHelper.buildId(dynamicContext, dynamicType, idString);
+    }
+
+    @Benchmark
+    public String stringifyId() {
+        return IdHelper.stringifyId(entity, dynamicContext);
+    }
+
+    @Benchmark
+    public String marshalLink() throws Exception {
+        return adapter.marshal(entity);
+    }
+
+    @Benchmark
+    public Object unmarshalLink() throws Exception {
+        return adapter.unmarshal(link);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(IdBenchmark.class.getSimpleName()).forks(1).build();
+        new Runner(options).run();
+    }
+}
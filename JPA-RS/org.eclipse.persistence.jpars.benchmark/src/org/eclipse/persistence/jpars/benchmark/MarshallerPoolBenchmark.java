@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpars.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.ws.rs.core.MediaType;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.stream.StreamSource;
+
+import org.eclipse.persistence.jaxb.JAXBContext;
+import org.eclipse.persistence.jpa.rs.PersistenceContext;
+import org.eclipse.persistence.jpa.rs.PersistenceFactory;
+import org.eclipse.persistence.jpa.rs.util.LinkAdapter;
+import org.eclipse.persistence.jpa.rs.util.StreamingOutputMarshaller;
+import org.eclipse.persistence.jpars.test.model.StaticAuction;
+import org.eclipse.persistence.jpars.test.util.ExamplePropertiesLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares marshalling and unmarshalling a single entity with a Marshaller or Unmarshaller
+ * borrowed from the MarshallerPool of a PersistenceContext against creating and configuring
+ * a new one for every call.
+ *
+ * The auction-static persistence unit is bootstrapped with the properties found in
+ * eclipselink.jpa-rs.properties, as for the tests.  Run with -prof gc to compare allocation rates.
+ *
+ * @see org.eclipse.persistence.jpa.rs.util.MarshallerPool
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MarshallerPoolBenchmark {
+
+    @Param({MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML})
+    public String mediaTypeName;
+
+    private PersistenceFactory factory;
+    private PersistenceContext context;
+    private MediaType mediaType;
+    private StaticAuction auction;
+    private byte[] marshalledAuction;
+
+    @Setup
+    public void setup() throws Exception {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        ExamplePropertiesLoader.loadProperties(properties);
+        EntityManagerFactory emf = Persistence.createEntityManagerFactory("auction-static", properties);
+        factory = new PersistenceFactory();
+        context = factory.bootstrapPersistenceContext("auction-static", emf, new URI("http://localhost:8080/JPA-RS/"), false);
+        mediaType = MediaType.valueOf(mediaTypeName);
+
+        auction = new StaticAuction();
+        auction.setId(1);
+        auction.setName("Laptop");
+        auction.setDescription("Speedy");
+        auction.setImage("laptop.jpg");
+        auction.setStartPrice(100);
+        auction.setEndPrice(1000);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        context.marshallEntity(auction, mediaType, os);
+        marshalledAuction = os.toByteArray();
+    }
+
+    @TearDown
+    public void teardown() {
+        factory.closePersistenceContext("auction-static");
+    }
+
+    @Benchmark
+    public byte[] marshallPooled() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(marshalledAuction.length);
+        context.marshallEntity(auction, mediaType, os);
+        return os.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] marshallUnpooled() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(marshalledAuction.length);
+        Marshaller marshaller = StreamingOutputMarshaller.createMarshaller(context, mediaType);
+        marshaller.marshal(auction, os);
+        return os.toByteArray();
+    }
+
+    @Benchmark
+    public Object unmarshalPooled() throws Exception {
+        return context.unmarshalEntity("StaticAuction", null, mediaType, new ByteArrayInputStream(marshalledAuction));
+    }
+
+    @Benchmark
+    public Object unmarshalUnpooled() throws Exception {
+        Unmarshaller unmarshaller = context.getJAXBContext().createUnmarshaller();
+        unmarshaller.setProperty(JAXBContext.JSON_INCLUDE_ROOT, Boolean.FALSE);
+        unmarshaller.setProperty(JAXBContext.MEDIA_TYPE, mediaType.toString());
+        unmarshaller.setAdapter(new LinkAdapter(context.getBaseURI().toString(), context));
+        JAXBElement<?> element = unmarshaller.unmarshal(new StreamSource(new ByteArrayInputStream(marshalledAuction)), StaticAuction.class);
+        return element.getValue();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(MarshallerPoolBenchmark.class.getSimpleName()).forks(1).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpars.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.ws.rs.core.MediaType;
+
+import org.eclipse.persistence.dynamic.DynamicEntity;
+import org.eclipse.persistence.jpa.rs.PersistenceContext;
+import org.eclipse.persistence.jpa.rs.PersistenceFactory;
+import org.eclipse.persistence.jpa.rs.util.StreamingOutputMarshaller;
+import org.eclipse.persistence.jpars.test.model.StaticAddress;
+import org.eclipse.persistence.jpars.test.model.StaticAuction;
+import org.eclipse.persistence.jpars.test.model.StaticBid;
+import org.eclipse.persistence.jpars.test.model.StaticUser;
+import org.eclipse.persistence.jpars.test.util.ExamplePropertiesLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the marshalling and unmarshalling paths of JPA-RS for the auction test models.
+ *
+ * The model is either the static auction-static persistence unit or the dynamic auction unit
+ * bootstrapped from META-INF/xmldocs/auction-persistence.xml, with the properties found in
+ * eclipselink.jpa-rs.properties as for the tests.  The result is a single entity or a list of
+ * entities.  Plain results are auctions, which only have basic attributes.  Linked results are bids,
+ * each of which links to a user and an auction, so most of the work is done by the LinkAdapter.
+ *
+ * A result is marshalled through PersistenceContext.marshallEntity and through
+ * StreamingOutputMarshaller, which is how the Service writes it.  Unmarshalling reads each entity of
+ * the result from its own document, since lists are not accepted by unmarshalEntity.
+ *
+ * Run with -prof gc to measure allocation rates.  Results recorded in the baseline directory of this
+ * project, as its README describes, can be compared with later runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MarshallingBenchmark {
+
+    public static final String STATIC = "static";
+    public static final String DYNAMIC = "dynamic";
+
+    public static final String PLAIN = "plain";
+    public static final String LINKED = "linked";
+
+    @Param({STATIC, DYNAMIC})
+    public String model;
+
+    @Param({MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML})
+    public String mediaTypeName;
+
+    /** The number of entities in the result, or 0 for a single entity that is not in a list **/
+    @Param({"0", "10", "1000", "100000"})
+    public int size;
+
+    @Param({PLAIN, LINKED})
+    public String shape;
+
+    private PersistenceFactory factory;
+    private PersistenceContext context;
+    private String contextName;
+    private MediaType mediaType;
+    private String type;
+    private Object result;
+    private int resultBytes;
+    private List<byte[]> documents;
+
+    @Setup
+    public void setup() throws Exception {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        ExamplePropertiesLoader.loadProperties(properties);
+        factory = new PersistenceFactory();
+        if (STATIC.equals(model)){
+            contextName = "auction-static";
+            EntityManagerFactory emf = Persistence.createEntityManagerFactory(contextName, properties);
+            context = factory.bootstrapPersistenceContext(contextName, emf, new URI("http://localhost:8080/JPA-RS/"), false);
+            type = LINKED.equals(shape) ? "StaticBid" : "StaticAuction";
+        } else {
+            contextName = "auction";
+            InputStream xmlStream = MarshallingBenchmark.class.getClassLoader().getResourceAsStream("META-INF/xmldocs/auction-persistence.xml");
+            try {
+                context = factory.bootstrapPersistenceContext(contextName, xmlStream, properties, true);
+            } finally {
+                xmlStream.close();
+            }
+            context.setBaseURI(new URI("http://localhost:8080/JPA-RS/"));
+            type = LINKED.equals(shape) ? "Bid" : "Auction";
+        }
+        // marshallEntity compares the media type by identity to decide how to write an XML list
+        mediaType = MediaType.APPLICATION_XML.equals(mediaTypeName) ? MediaType.APPLICATION_XML_TYPE : MediaType.APPLICATION_JSON_TYPE;
+
+        List<Object> entities = new ArrayList<Object>(Math.max(size, 1));
+        for (int i = 1; i <= Math.max(size, 1); i++){
+            entities.add(LINKED.equals(shape) ? newBid(i) : newAuction(i));
+        }
+        result = size == 0 ? entities.get(0) : entities;
+
+        documents = new ArrayList<byte[]>(entities.size());
+        for (Object entity: entities){
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            context.marshallEntity(entity, mediaType, os);
+            documents.add(os.toByteArray());
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        context.marshallEntity(result, mediaType, os);
+        resultBytes = os.size();
+    }
+
+    @TearDown
+    public void teardown() {
+        factory.closePersistenceContext(contextName);
+    }
+
+    @Benchmark
+    public byte[] marshall() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(resultBytes);
+        context.marshallEntity(result, mediaType, os);
+        return os.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] streamingOutput() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(resultBytes);
+        new StreamingOutputMarshaller(context, result, mediaType).write(os);
+        return os.toByteArray();
+    }
+
+    @Benchmark
+    public Object unmarshal() throws Exception {
+        Object last = null;
+        for (byte[] document: documents){
+            last = context.unmarshalEntity(type, null, mediaType, new ByteArrayInputStream(document));
+        }
+        return last;
+    }
+
+    private Object newAuction(int id) {
+        if (STATIC.equals(model)){
+            StaticAuction auction = new StaticAuction();
+            auction.setId(id);
+            auction.setName("Auction " + id);
+            auction.setDescription("Speedy laptop");
+            auction.setImage("laptop.jpg");
+            auction.setStartPrice(100);
+            auction.setEndPrice(1000);
+            return auction;
+        }
+        DynamicEntity auction = context.newEntity("Auction");
+        auction.set("id", id);
+        auction.set("name", "Auction " + id);
+        auction.set("description", "Speedy laptop");
+        auction.set("image", "laptop.jpg");
+        auction.set("startPrice", 100d);
+        auction.set("endPrice", 1000d);
+        auction.set("sold", false);
+        return auction;
+    }
+
+    private Object newBid(int id) {
+        if (STATIC.equals(model)){
+            StaticAddress address = new StaticAddress();
+            address.setId(id);
+            address.setType("home");
+            address.setCity("Ottawa");
+            address.setStreet("Main Street");
+            address.setPostalCode("K1A 0A1");
+            StaticUser user = new StaticUser();
+            user.setId(id);
+            user.setName("User " + id);
+            user.setAddress(address);
+            StaticBid bid = new StaticBid();
+            bid.setId(id);
+            bid.setBid(100 + id);
+            bid.setTime(id);
+            bid.setUser(user);
+            bid.setAuction((StaticAuction)newAuction(id));
+            return bid;
+        }
+        DynamicEntity user = context.newEntity("User");
+        user.set("id", id);
+        user.set("name", "User " + id);
+        DynamicEntity bid = context.newEntity("Bid");
+        bid.set("id", id);
+        bid.set("bid", 100d + id);
+        bid.set("time", (long)id);
+        bid.set("user", user);
+        bid.set("auction", newAuction(id));
+        return bid;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(MarshallingBenchmark.class.getSimpleName()).forks(1).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,469 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpars.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.xml.bind.JAXBException;
+
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.jpa.rs.PersistenceContext;
+import org.eclipse.persistence.jpa.rs.PersistenceFactory;
+import org.eclipse.persistence.jpa.rs.Service;
+import org.eclipse.persistence.jpars.load.Workload.Operation;
+import org.eclipse.persistence.jpars.test.model.StaticAddress;
+import org.eclipse.persistence.jpars.test.model.StaticAuction;
+import org.eclipse.persistence.jpars.test.model.StaticBid;
+import org.eclipse.persistence.jpars.test.model.StaticUser;
+import org.eclipse.persistence.jpars.test.util.ExamplePropertiesLoader;
+
+import com.sun.jersey.api.container.httpserver.HttpServerFactory;
+import com.sun.jersey.api.core.DefaultResourceConfig;
+import com.sun.jersey.api.core.ResourceConfig;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Sends concurrent HTTP requests to the Service running on an embedded com.sun.net.httpserver server,
+ * over the auction-static persistence unit in an in-memory database, and reports their latencies and
+ * throughput.
+ *
+ * The database is an in-memory H2 database by default.  Derby can not be used with the default model
+ * since the description of StaticAuction is a TEXT column.  Any of the persistence unit properties can
+ * be overridden in eclipselink.jpa-rs.load.properties or as system properties, as for the tests, so
+ * the jpa-rs properties of the production deployment can be applied.  The driver of the database must
+ * be on the classpath.  The harness is kept in its own project so that only it needs the driver; in
+ * Eclipse the H2 driver is expected at H2_HOME/h2.jar, where the H2_HOME classpath variable is set to
+ * the directory holding it.
+ *
+ * Workloads are run either closed loop, where each client sends its next request when it has the
+ * response to the last, or open loop, where requests are sent at a fixed rate whatever the response
+ * times.  Open loop latencies are measured from the time each request was due to be sent, so time
+ * spent waiting for a free client is included rather than hidden.
+ *
+ * Run main with system properties to reproduce a load pattern, for example
+ * -Djpars.load.workload=read-heavy -Djpars.load.mode=open -Djpars.load.rate=500
+ */
+public class LoadHarness {
+
+    public static final String DEFAULT_URI = "http://localhost:8090/jpa-rs/";
+    public static final String PERSISTENCE_UNIT = "auction-static";
+
+    /** The file holding overrides of the persistence unit properties used by the harness **/
+    public static final String PROPERTIES_FILENAME = "eclipselink.jpa-rs.load.properties";
+
+    public static final String URI_PROPERTY = "jpars.load.uri";
+    public static final String USERS_PROPERTY = "jpars.load.users";
+    public static final String AUCTIONS_PROPERTY = "jpars.load.auctions";
+    public static final String BIDS_PROPERTY = "jpars.load.bids-per-auction";
+    /** read-heavy, write-heavy, query-heavy or all **/
+    public static final String WORKLOAD_PROPERTY = "jpars.load.workload";
+    /** closed or open **/
+    public static final String MODE_PROPERTY = "jpars.load.mode";
+    public static final String CLIENTS_PROPERTY = "jpars.load.clients";
+    public static final String RATE_PROPERTY = "jpars.load.rate";
+    public static final String THINK_PROPERTY = "jpars.load.think-millis";
+    public static final String DURATION_PROPERTY = "jpars.load.duration-seconds";
+    public static final String WARMUP_PROPERTY = "jpars.load.warmup-seconds";
+    public static final String SERVER_THREADS_PROPERTY = "jpars.load.server-threads";
+
+    private static final int SEED_BATCH_SIZE = 500;
+    private static final int QUERY_PAGE_SIZE = 50;
+
+    private String uri;
+    private int serverThreads;
+    private PersistenceFactory factory;
+    private PersistenceContext context;
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+
+    private int[] userIds = new int[0];
+    private int[] auctionIds = new int[0];
+    private int[] bidIds = new int[0];
+
+    /**
+     * @param uri the base URI to serve the Service on, such as http://localhost:8090/jpa-rs/
+     * @param serverThreads the number of threads that handle requests
+     */
+    public LoadHarness(String uri, int serverThreads){
+        this.uri = uri;
+        this.serverThreads = serverThreads;
+    }
+
+    /**
+     * Return the persistence unit properties of the in-memory database, with any overrides
+     * @return
+     */
+    public static Map<String, Object> getProperties() {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(PersistenceUnitProperties.JDBC_DRIVER, "org.h2.Driver");
+        properties.put(PersistenceUnitProperties.JDBC_URL, "jdbc:h2:mem:jpars-load;DB_CLOSE_DELAY=-1");
+        properties.put(PersistenceUnitProperties.JDBC_USER, "sa");
+        properties.put(PersistenceUnitProperties.JDBC_PASSWORD, "");
+        properties.put(PersistenceUnitProperties.TARGET_DATABASE, "org.eclipse.persistence.platform.database.H2Platform");
+        properties.put(PersistenceUnitProperties.TARGET_SERVER, "None");
+        properties.put(PersistenceUnitProperties.NON_JTA_DATASOURCE, null);
+        properties.put(PersistenceUnitProperties.DDL_GENERATION, PersistenceUnitProperties.DROP_AND_CREATE);
+        properties.put(PersistenceUnitProperties.LOGGING_LEVEL, "WARNING");
+        ExamplePropertiesLoader.loadProperties(properties, PROPERTIES_FILENAME);
+        return properties;
+    }
+
+    /**
+     * Bootstrap the persistence unit and start serving the Service
+     * @throws Exception
+     */
+    public void start() throws Exception {
+        EntityManagerFactory emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, getProperties());
+        factory = new PersistenceFactory();
+        context = factory.bootstrapPersistenceContext(PERSISTENCE_UNIT, emf, new URI(uri), false);
+
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        ResourceConfig config = new DefaultResourceConfig();
+        config.getSingletons().add(service);
+        server = HttpServerFactory.create(uri, config);
+        // without an executor the server handles one request at a time on its dispatcher thread
+        serverExecutor = Executors.newFixedThreadPool(serverThreads);
+        server.setExecutor(serverExecutor);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null){
+            server.stop(0);
+            serverExecutor.shutdownNow();
+        }
+        if (factory != null){
+            factory.close();
+        }
+    }
+
+    public PersistenceContext getContext() {
+        return context;
+    }
+
+    /**
+     * Insert users, each with an address, auctions and bids on each auction by random users.
+     * The shared cache is cleared afterwards so the workload starts cold.
+     * @param users
+     * @param auctions
+     * @param bidsPerAuction
+     */
+    public void seed(int users, int auctions, int bidsPerAuction) {
+        Random random = new Random(users + auctions);
+        userIds = new int[users];
+        auctionIds = new int[auctions];
+        bidIds = new int[auctions * bidsPerAuction];
+        EntityManager em = context.getEmf().createEntityManager();
+        try {
+            em.getTransaction().begin();
+            int rows = 0;
+            for (int i = 0; i < users; i++){
+                StaticAddress address = new StaticAddress();
+                address.setId(i + 1);
+                address.setType("home");
+                address.setCity("Ottawa");
+                address.setStreet(i + " Main Street");
+                address.setPostalCode("K1A 0A1");
+                StaticUser user = new StaticUser();
+                user.setName("user" + i);
+                user.setAddress(address);
+                // ids are assigned from preallocated sequences when an entity is persisted
+                em.persist(user);
+                userIds[i] = user.getId();
+                rows = commitBatch(em, rows + 2);
+            }
+            int bid = 0;
+            for (int i = 0; i < auctions; i++){
+                StaticAuction auction = new StaticAuction();
+                auction.setName("auction" + i);
+                auction.setDescription("Auction " + i + " of the load test");
+                auction.setImage("auction" + i + ".jpg");
+                auction.setStartPrice(100);
+                auction.setEndPrice(1000);
+                em.persist(auction);
+                auctionIds[i] = auction.getId();
+                for (int j = 0; j < bidsPerAuction; j++){
+                    StaticBid staticBid = new StaticBid();
+                    staticBid.setBid(100 + j);
+                    staticBid.setTime(System.currentTimeMillis());
+                    staticBid.setAuction(auction);
+                    staticBid.setUser(em.getReference(StaticUser.class, pick(userIds, random)));
+                    em.persist(staticBid);
+                    bidIds[bid++] = staticBid.getId();
+                }
+                rows = commitBatch(em, rows + 1 + bidsPerAuction);
+            }
+            em.getTransaction().commit();
+        } finally {
+            if (em.getTransaction().isActive()){
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+        context.getEmf().getCache().evictAll();
+    }
+
+    /**
+     * Commit the rows inserted so far once there are enough of them
+     * @param em
+     * @param rows the number of rows inserted since the last commit
+     * @return the number of rows inserted since the last commit after this call
+     */
+    private static int commitBatch(EntityManager em, int rows) {
+        if (rows < SEED_BATCH_SIZE){
+            return rows;
+        }
+        em.getTransaction().commit();
+        em.clear();
+        em.getTransaction().begin();
+        return 0;
+    }
+
+    /**
+     * Run a workload with a fixed number of clients, each of which sends its next request when it
+     * has read the response to its last
+     * @param workload
+     * @param clients
+     * @param durationMillis
+     * @param thinkMillis the time a client waits between requests
+     * @return
+     * @throws InterruptedException
+     */
+    public LoadReport runClosed(final Workload workload, int clients, long durationMillis, final long thinkMillis) throws InterruptedException {
+        final LoadReport report = new LoadReport(workload.getLabel() + " closed loop, " + clients + " clients");
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++){
+            final Random random = new Random(i);
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (System.nanoTime() < end){
+                            Operation operation = workload.next(random);
+                            long sent = System.nanoTime();
+                            int status = send(operation, random);
+                            report.record(operation, status, System.nanoTime() - sent);
+                            if (thinkMillis > 0){
+                                Thread.sleep(thinkMillis);
+                            }
+                        }
+                    } catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "jpa-rs-load-" + i);
+            threads[i].start();
+        }
+        for (Thread thread: threads){
+            thread.join();
+        }
+        report.setElapsedNanos(System.nanoTime() - start);
+        return report;
+    }
+
+    /**
+     * Run a workload sending requests at a fixed rate.  Requests are sent by a pool of clients, and a
+     * request that is due while all of them are busy waits for one.
+     * @param workload
+     * @param rate the number of requests to send per second
+     * @param clients the largest number of requests that are outstanding at once
+     * @param durationMillis
+     * @return
+     * @throws InterruptedException
+     */
+    public LoadReport runOpen(final Workload workload, int rate, int clients, long durationMillis) throws InterruptedException {
+        final LoadReport report = new LoadReport(workload.getLabel() + " open loop, " + rate + " requests/s");
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        Random random = new Random(rate);
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(rate, 1);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        try {
+            for (long due = start; due < end; due += interval){
+                long wait = due - System.nanoTime();
+                if (wait > 0){
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                final Operation operation = workload.next(random);
+                final Random requestRandom = new Random(random.nextLong());
+                final long sent = due;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        int status = send(operation, requestRandom);
+                        report.record(operation, status, System.nanoTime() - sent);
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(durationMillis + 60000, TimeUnit.MILLISECONDS);
+        }
+        report.setElapsedNanos(System.nanoTime() - start);
+        return report;
+    }
+
+    /**
+     * Send the request for an operation
+     * @param operation
+     * @param random
+     * @return the HTTP status of the response, or 0 if the request failed
+     */
+    protected int send(Operation operation, Random random) {
+        String path = PERSISTENCE_UNIT + "/";
+        String method = "GET";
+        byte[] body = null;
+        switch (operation){
+            case READ_AUCTION:
+                path += "entity/StaticAuction/" + pick(auctionIds, random);
+                break;
+            case READ_BID:
+                path += "entity/StaticBid/" + pick(bidIds, random);
+                break;
+            case UPDATE_BID:
+                method = "POST";
+                path += "entity/StaticBid";
+                body = bid(pick(bidIds, random), random);
+                break;
+            case INSERT_BID:
+                method = "POST";
+                path += "entity/StaticBid";
+                body = bid(0, random);
+                break;
+            case QUERY_USER_BY_ID:
+                path += "query/User.byId;id=" + pick(userIds, random);
+                break;
+            case QUERY_USER_BY_NAME:
+                path += "query/User.byName;name=user" + random.nextInt(Math.max(userIds.length, 1));
+                break;
+            case QUERY_USERS_PAGE:
+                path += "query/User.all?" + Service.LIMIT_PARAMETER + "=" + QUERY_PAGE_SIZE;
+                break;
+        }
+        try {
+            return send(method, path, body);
+        } catch (IOException e){
+            return 0;
+        }
+    }
+
+    protected int send(String method, String path, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(uri + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON);
+        if (body != null){
+            connection.setDoOutput(true);
+            connection.setRequestProperty(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
+            OutputStream output = connection.getOutputStream();
+            output.write(body);
+            output.close();
+        }
+        int status = connection.getResponseCode();
+        InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (input != null){
+            // read the whole response so the connection can be reused
+            byte[] buffer = new byte[8192];
+            while (input.read(buffer) >= 0){
+            }
+            input.close();
+        }
+        return status;
+    }
+
+    /**
+     * Marshall a bid by a random user on a random auction
+     * @param id the id of the bid to change, or 0 for a new bid
+     * @param random
+     * @return
+     */
+    protected byte[] bid(int id, Random random) {
+        StaticUser user = new StaticUser();
+        user.setId(pick(userIds, random));
+        StaticAuction auction = new StaticAuction();
+        auction.setId(pick(auctionIds, random));
+        StaticBid bid = new StaticBid();
+        if (id != 0){
+            bid.setId(id);
+        }
+        bid.setBid(100 + random.nextInt(1000));
+        bid.setTime(System.currentTimeMillis());
+        bid.setUser(user);
+        bid.setAuction(auction);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            context.marshallEntity(bid, MediaType.APPLICATION_JSON_TYPE, output);
+        } catch (JAXBException e){
+            throw new RuntimeException(e);
+        }
+        return output.toByteArray();
+    }
+
+    private static int pick(int[] ids, Random random) {
+        return ids.length == 0 ? 0 : ids[random.nextInt(ids.length)];
+    }
+
+    /**
+     * Start the Service on an in-memory database, seed it and run the workloads given by the
+     * jpars.load system properties, printing a report of each
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        String uri = System.getProperty(URI_PROPERTY, DEFAULT_URI);
+        String workloadLabel = System.getProperty(WORKLOAD_PROPERTY, "all");
+        boolean open = "open".equals(System.getProperty(MODE_PROPERTY, "closed"));
+        int clients = Integer.getInteger(CLIENTS_PROPERTY, 16);
+        int rate = Integer.getInteger(RATE_PROPERTY, 200);
+        long think = Long.getLong(THINK_PROPERTY, 0);
+        long duration = TimeUnit.SECONDS.toMillis(Long.getLong(DURATION_PROPERTY, 30));
+        long warmup = TimeUnit.SECONDS.toMillis(Long.getLong(WARMUP_PROPERTY, 10));
+
+        LoadHarness harness = new LoadHarness(uri, Integer.getInteger(SERVER_THREADS_PROPERTY, 32));
+        try {
+            harness.start();
+            long seeding = System.nanoTime();
+            harness.seed(Integer.getInteger(USERS_PROPERTY, 1000), Integer.getInteger(AUCTIONS_PROPERTY, 1000), Integer.getInteger(BIDS_PROPERTY, 10));
+            System.out.println(String.format("Seeded in %.1f s", (System.nanoTime() - seeding) / 1e9));
+            Workload[] workloads = "all".equals(workloadLabel) ? Workload.values() : new Workload[] {Workload.forLabel(workloadLabel)};
+            for (Workload workload: workloads){
+                LoadReport report = null;
+                if (open){
+                    harness.runOpen(workload, rate, clients, warmup);
+                    report = harness.runOpen(workload, rate, clients, duration);
+                } else {
+                    harness.runClosed(workload, clients, warmup, think);
+                    report = harness.runClosed(workload, clients, duration, think);
+                }
+                report.print(System.out);
+                System.out.println();
+            }
+        } finally {
+            harness.stop();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpars.load;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.persistence.jpa.rs.util.Histogram;
+import org.eclipse.persistence.jpars.load.Workload.Operation;
+
+/**
+ * The latencies and outcomes of the requests sent in one run of a workload.
+ *
+ * Latencies are kept in nanoseconds in a histogram per operation.  Requests answered with 503 were
+ * rejected by admission control and are counted apart from other errors.
+ */
+public class LoadReport {
+
+    private String name;
+    private Map<Operation, Histogram> latencies = new EnumMap<Operation, Histogram>(Operation.class);
+    private Histogram total = new Histogram();
+    private AtomicLong errors = new AtomicLong();
+    private AtomicLong rejected = new AtomicLong();
+    private long elapsedNanos;
+
+    public LoadReport(String name){
+        this.name = name;
+        for (Operation operation: Operation.values()){
+            latencies.put(operation, new Histogram());
+        }
+    }
+
+    /**
+     * Record the outcome of a request
+     * @param operation
+     * @param status the HTTP status of the response, or 0 if no response was read
+     * @param latencyNanos
+     */
+    public void record(Operation operation, int status, long latencyNanos) {
+        if (status == 503){
+            rejected.incrementAndGet();
+            return;
+        }
+        if (status < 200 || status >= 300){
+            errors.incrementAndGet();
+            return;
+        }
+        latencies.get(operation).record(latencyNanos);
+        total.record(latencyNanos);
+    }
+
+    public void setElapsedNanos(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public Histogram getLatency(Operation operation) {
+        return latencies.get(operation);
+    }
+
+    /**
+     * Return the latencies of the successful requests of all operations
+     * @return
+     */
+    public Histogram getLatency() {
+        return total;
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Return the number of successful requests per second
+     * @return
+     */
+    public double getThroughput() {
+        if (elapsedNanos == 0){
+            return 0;
+        }
+        return total.getCount() * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Print the throughput and a table of the latency percentiles of each operation, in milliseconds
+     * @param out
+     */
+    public void print(PrintStream out) {
+        out.println(String.format("%s: %d requests in %.1f s, %.1f requests/s, %d errors, %d rejected",
+                name, total.getCount(), elapsedNanos / 1e9, getThroughput(), errors.get(), rejected.get()));
+        out.println(String.format("%-20s %8s %9s %9s %9s %9s %9s %9s", "operation (ms)", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        for (Map.Entry<Operation, Histogram> entry: latencies.entrySet()){
+            if (entry.getValue().getCount() > 0){
+                print(out, entry.getKey().getLabel(), entry.getValue());
+            }
+        }
+        print(out, "all", total);
+    }
+
+    private static void print(PrintStream out, String label, Histogram histogram) {
+        double mean = histogram.getCount() == 0 ? 0 : histogram.getSum() / 1e6 / histogram.getCount();
+        out.println(String.format("%-20s %8d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f", label, histogram.getCount(),
+                mean, histogram.getPercentile(0.5) / 1e6,
+                histogram.getPercentile(0.9) / 1e6, histogram.getPercentile(0.99) / 1e6,
+                histogram.getPercentile(0.999) / 1e6, histogram.getMax() / 1e6));
+    }
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpars.load;
+
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+
+import org.eclipse.persistence.jpars.load.Workload.Operation;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs each workload of the LoadHarness briefly against a small database to check that the harness
+ * and the Service handle concurrent requests without errors.  Use LoadHarness.main for real runs.
+ *
+ * The H2 driver must be on the classpath, see LoadHarness.  The Service is served on a free port.
+ */
+public class LoadTest {
+
+    private static LoadHarness harness;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        harness = new LoadHarness("http://localhost:" + port + "/jpa-rs/", 8);
+        harness.start();
+        harness.seed(50, 20, 5);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        harness.stop();
+    }
+
+    @Test
+    public void testClosedLoop() throws Exception {
+        for (Workload workload: Workload.values()){
+            LoadReport report = harness.runClosed(workload, 4, 2000, 0);
+            assertReport(workload.getLabel(), report);
+        }
+        // the main operation of each workload is sent often enough to be seen in any run
+        LoadReport report = harness.runClosed(Workload.READ_HEAVY, 4, 1000, 0);
+        assertTrue("No auctions were read", report.getLatency(Operation.READ_AUCTION).getCount() > 0);
+        report = harness.runClosed(Workload.WRITE_HEAVY, 4, 1000, 0);
+        assertTrue("No bids were updated", report.getLatency(Operation.UPDATE_BID).getCount() > 0);
+        report = harness.runClosed(Workload.QUERY_HEAVY, 4, 1000, 0);
+        assertTrue("No users were queried by name", report.getLatency(Operation.QUERY_USER_BY_NAME).getCount() > 0);
+    }
+
+    @Test
+    public void testOpenLoop() throws Exception {
+        LoadReport report = harness.runOpen(Workload.READ_HEAVY, 50, 4, 2000);
+        assertReport("open loop", report);
+        // one request is due every 20ms, so about 100 are sent; the bounds are loose so a slow or busy
+        // machine does not fail the test, they only catch a rate that is not applied at all
+        assertTrue("Too few requests sent: " + report.getLatency().getCount(), report.getLatency().getCount() + report.getRejected() >= 20);
+        assertTrue("Throughput far above the rate: " + report.getThroughput(), report.getThroughput() <= 150);
+    }
+
+    /**
+     * Check that a run completed requests without errors, and that its latencies and throughput are consistent
+     * @param label
+     * @param report
+     */
+    private static void assertReport(String label, LoadReport report) {
+        assertTrue("Errors running " + label, report.getErrors() == 0);
+        assertTrue("No requests completed running " + label, report.getLatency().getCount() > 0);
+        assertTrue("No throughput running " + label, report.getThroughput() > 0);
+        long count = 0;
+        for (Operation operation: Operation.values()){
+            count += report.getLatency(operation).getCount();
+        }
+        assertTrue("Operation counts do not add up running " + label, count == report.getLatency().getCount());
+        assertTrue("Latency percentiles out of order running " + label, report.getLatency().getPercentile(0.5) > 0
+                && report.getLatency().getPercentile(0.5) <= report.getLatency().getPercentile(0.99)
+                && report.getLatency().getPercentile(0.99) <= report.getLatency().getMax());
+    }
+}
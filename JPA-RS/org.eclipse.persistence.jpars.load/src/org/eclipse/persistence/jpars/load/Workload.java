@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpars.load;
+
+import java.util.Random;
+
+/**
+ * The mixes of requests the LoadHarness sends.  Each request is a read of an entity, a write of a bid
+ * or a named query, in the shares given by the workload.
+ */
+public enum Workload {
+
+    READ_HEAVY("read-heavy", 90, 5),
+    WRITE_HEAVY("write-heavy", 20, 70),
+    QUERY_HEAVY("query-heavy", 10, 5);
+
+    /**
+     * The requests of a workload
+     */
+    public enum Operation {
+        /** GET of an auction, which has only basic attributes **/
+        READ_AUCTION("read-auction"),
+        /** GET of a bid, which links to a user and an auction **/
+        READ_BID("read-bid"),
+        /** POST of a change to an existing bid **/
+        UPDATE_BID("update-bid"),
+        /** POST of a new bid, which is given its id by sequencing **/
+        INSERT_BID("insert-bid"),
+        /** GET of the User.byId named query **/
+        QUERY_USER_BY_ID("query-user-by-id"),
+        /** GET of the User.byName named query **/
+        QUERY_USER_BY_NAME("query-user-by-name"),
+        /** GET of a page of the User.all named query **/
+        QUERY_USERS_PAGE("query-users-page");
+
+        private String label;
+
+        private Operation(String label){
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private String label;
+    private int readShare;
+    private int writeShare;
+
+    /**
+     * @param label
+     * @param readShare the percentage of requests that read an entity
+     * @param writeShare the percentage of requests that write a bid.  The rest are named queries.
+     */
+    private Workload(String label, int readShare, int writeShare){
+        this.label = label;
+        this.readShare = readShare;
+        this.writeShare = writeShare;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Choose the next request to send
+     * @param random
+     * @return
+     */
+    public Operation next(Random random) {
+        int choice = random.nextInt(100);
+        if (choice < readShare){
+            return random.nextBoolean() ? Operation.READ_AUCTION : Operation.READ_BID;
+        }
+        if (choice < readShare + writeShare){
+            return random.nextInt(10) < 7 ? Operation.UPDATE_BID : Operation.INSERT_BID;
+        }
+        choice = random.nextInt(10);
+        if (choice < 4){
+            return Operation.QUERY_USER_BY_ID;
+        }
+        if (choice < 8){
+            return Operation.QUERY_USER_BY_NAME;
+        }
+        return Operation.QUERY_USERS_PAGE;
+    }
+
+    /**
+     * Find a workload by its label, such as read-heavy
+     * @param label
+     * @return
+     * @throws IllegalArgumentException if there is no workload with the label
+     */
+    public static Workload forLabel(String label) {
+        for (Workload workload: values()){
+            if (workload.label.equals(label)){
+                return workload;
+            }
+        }
+        throw new IllegalArgumentException("Unknown workload " + label);
+    }
+}
@@ -19,34 +19,73 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
 
+import javax.ejb.NoSuchEJBException;
+import javax.ejb.Stateful;
+import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.StreamingOutput;
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
 
 
 import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.config.QueryHints;
 import org.eclipse.persistence.dynamic.DynamicEntity;
+import org.eclipse.persistence.jpa.JpaHelper;
 import org.eclipse.persistence.jpa.rs.PersistenceContext;
 import org.eclipse.persistence.jpa.rs.PersistenceFactory;
 import org.eclipse.persistence.jpa.rs.Service;
+import org.eclipse.persistence.jpa.rs.eventlistener.ChangeEventDispatcher;
+import org.eclipse.persistence.jpa.rs.eventlistener.ChangeListener;
+import org.eclipse.persistence.jpa.rs.eventlistener.EventBroadcaster;
+import org.eclipse.persistence.jpa.rs.eventlistener.EventSubscriber;
 import org.eclipse.persistence.jpa.rs.metadata.DatabaseMetadataStore;
+import org.eclipse.persistence.jpa.rs.util.BinaryCodec;
+import org.eclipse.persistence.jpa.rs.util.BoundedExecutor;
+import org.eclipse.persistence.jpa.rs.util.CachedResponse;
+import org.eclipse.persistence.jpa.rs.util.CompressionHelper;
+import org.eclipse.persistence.jpa.rs.util.ConcurrencyLimiter;
+import org.eclipse.persistence.jpa.rs.util.EntityTagHelper;
+import org.eclipse.persistence.jpa.rs.util.EventStreamOutput;
+import org.eclipse.persistence.jpa.rs.util.FieldsHelper;
+import org.eclipse.persistence.jpa.rs.util.Histogram;
 import org.eclipse.persistence.jpa.rs.util.LinkAdapter;
+import org.eclipse.persistence.jpa.rs.util.MarshallerPool;
+import org.eclipse.persistence.jpa.rs.util.RequestMetrics;
+import org.eclipse.persistence.jpa.rs.util.RequestTrace;
+import org.eclipse.persistence.jpa.rs.util.ResponseCache;
+import org.eclipse.persistence.jpa.rs.util.SessionBeanDispatcher;
 import org.eclipse.persistence.jpa.rs.util.StreamingOutputMarshaller;
+import org.eclipse.persistence.jpa.rs.util.TenantQuota;
 import org.eclipse.persistence.jpars.test.model.StaticAddress;
 import org.eclipse.persistence.jpars.test.model.StaticUser;
 import org.eclipse.persistence.jpars.test.util.ExamplePropertiesLoader;
 import org.eclipse.persistence.jpars.test.util.TestHttpHeaders;
+import org.eclipse.persistence.jpars.test.util.TestInitialContextFactory;
 import org.eclipse.persistence.jpars.test.util.TestURIInfo;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -67,6 +106,8 @@ public class TestService {
     public static void setup(){
         Map<String, Object> properties = new HashMap<String, Object>();
         ExamplePropertiesLoader.loadProperties(properties); 
+        // only requests with a tenant-id header are limited
+        properties.put(PersistenceContext.TENANT_MAX_ENTITY_MANAGERS, "2");
         factory = null;
         try{
             factory = new PersistenceFactory();
@@ -75,8 +116,11 @@ public class TestService {
             factory.getMetadataStore().clearMetadata();
             FileInputStream xmlStream = new FileInputStream("classes/META-INF/xmldocs/auction-persistence.xml");
 
+            // ad-hoc JPQL is allowed for auction only
+            properties.put(PersistenceContext.JPQL_ENABLED, "true");
             PersistenceContext context = factory.bootstrapPersistenceContext("auction", xmlStream, properties, true);
             context.setBaseURI(new URI("http://localhost:8080/JPA-RS/"));
+            properties.remove(PersistenceContext.JPQL_ENABLED);
             
             xmlStream = new FileInputStream("classes/META-INF/xmldocs/phonebook-persistence.xml");
             context = factory.bootstrapPersistenceContext("phonebook", xmlStream, properties, true);
@@ -274,6 +318,89 @@ public class TestService {
         assertTrue("Name of user is incorrect.", entity1.get("name").equals("Bob"));
     }
     
+    @Test
+    public void testMarshallBidBinary() throws IOException {
+        PersistenceContext context = factory.getPersistenceContext("auction");
+
+        DynamicEntity auction = (DynamicEntity)context.newEntity("Auction");
+        auction.set("name", "Binary Computer");
+        context.create(null, auction);
+
+        DynamicEntity user = (DynamicEntity)context.newEntity("User");
+        user.set("name", "Binary Bob");
+        context.create(null, user);
+
+        DynamicEntity bid = (DynamicEntity)context.newEntity("Bid");
+        bid.set("bid", 200d);
+        bid.set("user", user);
+        bid.set("auction", auction);
+        context.create(null, bid);
+
+        InputStream stream = serializeToStream(bid, context, BinaryCodec.APPLICATION_BINARY_TYPE);
+        int binarySize = stream.available();
+        assertTrue("Binary form was not smaller than JSON", binarySize < serializeToStream(bid, context, MediaType.APPLICATION_JSON_TYPE).available());
+
+        try{
+            bid = (DynamicEntity)context.unmarshalEntity("Bid", null, BinaryCodec.APPLICATION_BINARY_TYPE, stream);
+        } catch (JAXBException e){
+            fail("Exception unmarsalling: " + e);
+        }
+        assertTrue("Bid amount is incorrect.", bid.get("bid").equals(200d));
+        DynamicEntity linkedAuction = bid.get("auction");
+        assertTrue("Auction link was not resolved.", linkedAuction.get("id").equals(auction.get("id")));
+        assertTrue("Name of auction is incorrect.", "Binary Computer".equals(linkedAuction.get("name")));
+        DynamicEntity linkedUser = bid.get("user");
+        assertTrue("Name of user is incorrect.", "Binary Bob".equals(linkedUser.get("name")));
+
+        List<DynamicEntity> auctions = new ArrayList<DynamicEntity>();
+        auctions.add(auction);
+        auctions.add(auction);
+        List<?> results = (List<?>)BinaryCodec.decode(context, "Auction", serializeListToStream(auctions, context, BinaryCodec.APPLICATION_BINARY_TYPE));
+        assertTrue("List was not read.", results.size() == 2 && "Binary Computer".equals(((DynamicEntity)results.get(1)).get("name")));
+        clearData();
+    }
+
+    @Test
+    public void testMalformedBinary() throws IOException {
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        // magic number and version followed by a list of length -1
+        byte[] negative = new byte[]{(byte)0xD2, (byte)0x94, 0x01, 0x01, 16, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x01};
+        // a string that claims to be larger than the limit
+        byte[] large = new byte[]{(byte)0xD2, (byte)0x94, 0x01, 0x01, 10, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07};
+        byte[] deep = new byte[4 + 2 * (PersistenceContext.DEFAULT_BINARY_MAX_DEPTH + 1) + 1];
+        deep[0] = (byte)0xD2;
+        deep[1] = (byte)0x94;
+        deep[2] = 0x01;
+        deep[3] = 0x01;
+        for (int i = 4; i < deep.length - 1; i += 2){
+            deep[i] = 16;
+            deep[i + 1] = 1;
+        }
+        // a streamed list that ends with an error after its first element
+        byte[] unfinished = new byte[]{(byte)0xD2, (byte)0x94, 0x01, 0x01, 18, 3, 2, 20, 1, 'x'};
+        for (byte[] document: new byte[][]{negative, large, deep, unfinished}){
+            try {
+                BinaryCodec.decode(context, "Auction", new ByteArrayInputStream(document));
+                fail("Malformed document was read");
+            } catch (IOException e){
+            }
+        }
+
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        Response response = service.update("auction", "Auction", generateHTTPHeader(BinaryCodec.APPLICATION_BINARY_TYPE, BinaryCodec.APPLICATION_BINARY), new TestURIInfo(), new ByteArrayInputStream(negative));
+        assertTrue("Malformed document was not rejected", response.getStatus() == Status.BAD_REQUEST.getStatusCode());
+
+        // a document of another type than the one in the URL
+        DynamicEntity auction = (DynamicEntity)context.newEntity("Auction");
+        auction.set("id", 1);
+        auction.set("name", "Computer");
+        response = service.update("auction", "User", generateHTTPHeader(BinaryCodec.APPLICATION_BINARY_TYPE, BinaryCodec.APPLICATION_BINARY), new TestURIInfo(), serializeToStream(auction, context, BinaryCodec.APPLICATION_BINARY_TYPE));
+        assertTrue("Document of another type was not rejected", response.getStatus() == Status.BAD_REQUEST.getStatusCode());
+        response = service.create("auction", "User", generateHTTPHeader(BinaryCodec.APPLICATION_BINARY_TYPE, BinaryCodec.APPLICATION_BINARY), new TestURIInfo(), serializeToStream(auction, context, BinaryCodec.APPLICATION_BINARY_TYPE));
+        assertTrue("Document of another type was not rejected on create", response.getStatus() == Status.BAD_REQUEST.getStatusCode());
+    }
+
     @Test
     public void testNamedQuery(){
         Service service = new Service();
@@ -308,6 +435,81 @@ public class TestService {
         clearData();
     }
     
+    @Test
+    public void testNamedQueryStream(){
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        
+        DynamicEntity entity1 = (DynamicEntity)context.newEntity("Auction");
+        entity1.set("name", "Computer");
+        context.create(null, entity1);
+        
+        DynamicEntity entity2 = (DynamicEntity)context.newEntity("Auction");
+        entity2.set("name", "Word Processor");
+        context.create(null, entity2);
+        
+        TestHttpHeaders headers = new TestHttpHeaders();
+        headers.getAcceptableMediaTypes().add(MediaType.APPLICATION_JSON_TYPE);
+        TestURIInfo ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.STREAM_PARAMETER, "true");
+        StreamingOutput output = (StreamingOutput)service.namedQuery("auction", "Auction.all", headers, ui).getEntity();
+        
+        String resultString = stringifyResults(output);
+        
+        assertTrue("Results were not a list.", resultString.startsWith("[") && resultString.endsWith("]"));
+        assertTrue("Computer was not in results.", resultString.contains("\"name\" : \"Computer\""));
+        assertTrue("Word Processor was not in restuls.", resultString.contains("\"name\" : \"Word Processor\""));
+        clearData();
+    }
+    
+    @Test
+    public void testNamedQueryPaging(){
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        
+        String[] names = new String[]{"Computer", "Word Processor", "Printer"};
+        for (String name: names){
+            DynamicEntity entity = (DynamicEntity)context.newEntity("Auction");
+            entity.set("name", name);
+            context.create(null, entity);
+        }
+        
+        TestHttpHeaders headers = new TestHttpHeaders();
+        headers.getAcceptableMediaTypes().add(MediaType.APPLICATION_JSON_TYPE);
+        TestURIInfo ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.LIMIT_PARAMETER, "2");
+        ui.getQueryParameters().add(Service.FIELDS_PARAMETER, "name");
+        Response response = service.namedQuery("auction", "Auction.all", headers, ui);
+        String resultString = stringifyResults((StreamingOutput)response.getEntity());
+        
+        String link = (String)response.getMetadata().getFirst("Link");
+        assertNotNull("Next link was missing.", link);
+        assertTrue("Next link did not keep the fields parameter.", link.contains(Service.FIELDS_PARAMETER + "=name"));
+        assertFalse("Next link had an internal hint.", link.contains(FieldsHelper.FIELDS_HINT));
+        assertTrue("First page had wrong size.", resultString.split("\"name\"").length == 3);
+        
+        String next = link.substring(link.indexOf(Service.NEXT_PARAMETER + "=") + Service.NEXT_PARAMETER.length() + 1, link.indexOf('>'));
+        ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.LIMIT_PARAMETER, "2");
+        ui.getQueryParameters().add(Service.NEXT_PARAMETER, next);
+        response = service.namedQuery("auction", "Auction.all", headers, ui);
+        String secondPage = stringifyResults((StreamingOutput)response.getEntity());
+        
+        assertNull("Last page had a next link.", response.getMetadata().getFirst("Link"));
+        assertTrue("Second page had wrong size.", secondPage.split("\"name\"").length == 2);
+        for (String name: names){
+            assertTrue(name + " was not in results.", resultString.contains("\"name\" : \"" + name + "\"") || secondPage.contains("\"name\" : \"" + name + "\""));
+        }
+
+        ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.LIMIT_PARAMETER, String.valueOf(Integer.MAX_VALUE));
+        response = service.namedQuery("auction", "Auction.all", headers, ui);
+        assertTrue("Page larger than the maximum was not rejected.", response.getStatus() == Status.BAD_REQUEST.getStatusCode());
+        clearData();
+    }
+    
     @Test
     public void testNamedQuerySingleResult(){
         Service service = new Service();
@@ -337,6 +539,69 @@ public class TestService {
         
         clearData();
     }
+
+    @Test
+    public void testNamedQueryRejectsUnknownParameters(){
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        TestURIInfo ui = new TestURIInfo();
+        ui.addMatrixParameter("colour", "Red");
+        Response response = service.namedQuerySingleResult("auction", "Auction.forName", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        assertTrue("Unknown parameter was not rejected", response.getStatus() == Status.BAD_REQUEST.getStatusCode());
+
+        ui = new TestURIInfo();
+        ui.getQueryParameters().add("colour", "Red");
+        response = service.namedQuery("auction", "Auction.all", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        assertTrue("Unknown hint was not rejected", response.getStatus() == Status.BAD_REQUEST.getStatusCode());
+
+        ui = new TestURIInfo();
+        ui.getQueryParameters().add(QueryHints.PESSIMISTIC_LOCK, "Lock");
+        response = service.namedQuery("auction", "Auction.all", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        assertTrue("Lock hint was not rejected", response.getStatus() == Status.BAD_REQUEST.getStatusCode());
+
+        ui = new TestURIInfo();
+        ui.getQueryParameters().add(QueryHints.JDBC_FETCH_SIZE, "10");
+        response = service.namedQuery("auction", "Auction.all", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        assertTrue("Fetch size hint was rejected", response.getStatus() == Status.OK.getStatusCode());
+    }
+
+
+    @Test
+    public void testJPQLQuery(){
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        DynamicEntity entity1 = (DynamicEntity)context.newEntity("Auction");
+        entity1.set("name", "Computer");
+        context.create(null, entity1);
+        DynamicEntity entity2 = (DynamicEntity)context.newEntity("Auction");
+        entity2.set("name", "Word Processor");
+        context.create(null, entity2);
+
+        String jpql = "{\"jpql\":\"SELECT a FROM Auction a WHERE a.name = :name\",\"parameters\":[{\"name\":\"name\",\"value\":\"Computer\"}]}";
+        long hits = context.getJPQLCache().getHits();
+        for (int i = 0; i < 2; i++){
+            Response response = service.jpqlQuery("auction", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo(), new ByteArrayInputStream(jpql.getBytes()));
+            String result = stringifyResults((StreamingOutput)response.getEntity());
+            assertTrue("Computer was not in results.", result.contains("\"name\" : \"Computer\""));
+            assertFalse("Word Processor was in results.", result.contains("Word Processor"));
+        }
+        assertTrue("Parsed query was not reused", context.getJPQLCache().getHits() == hits + 1);
+
+        String delete = "{\"jpql\":\"DELETE FROM Auction a\"}";
+        Response response = service.jpqlQuery("auction", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo(), new ByteArrayInputStream(delete.getBytes()));
+        assertTrue("Delete was not rejected", response.getStatus() == Status.BAD_REQUEST.getStatusCode());
+
+        TestURIInfo ui = new TestURIInfo();
+        ui.getQueryParameters().add("colour", "Red");
+        response = service.jpqlQuery("auction", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui, new ByteArrayInputStream(jpql.getBytes()));
+        assertTrue("Unknown hint was not rejected", response.getStatus() == Status.BAD_REQUEST.getStatusCode());
+
+        String people = "{\"jpql\":\"SELECT p FROM Person p\"}";
+        response = service.jpqlQuery("phonebook", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo(), new ByteArrayInputStream(people.getBytes()));
+        assertTrue("JPQL was run for a persistence unit that does not allow it", response.getStatus() == Status.FORBIDDEN.getStatusCode());
+        clearData();
+    }
    
     @Test
     public void testUpdate(){
@@ -360,6 +625,76 @@ public class TestService {
         assertTrue("Laptop was not in results.", resultString.contains("\"description\" : \"Speedy\""));
     }
     
+    @Test
+    public void testRequestMetrics(){
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++){
+            histogram.record(i);
+        }
+        assertTrue("Median is wrong: " + histogram.getPercentile(0.5), histogram.getPercentile(0.5) >= 500 && histogram.getPercentile(0.5) < 625);
+        assertTrue("Maximum is wrong", histogram.getPercentile(1) == 1000 && histogram.getCount() == 1000);
+
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        DynamicEntity entity = (DynamicEntity)context.newEntity("Auction");
+        entity.set("name", "Monitor");
+        context.create(null, entity);
+        entity.set("description", "Wide");
+
+        StreamingOutput output = (StreamingOutput)service.update("auction", "Auction", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo(), serializeToStream(entity, context, MediaType.APPLICATION_JSON_TYPE)).getEntity();
+        long totals = RequestMetrics.getLatency("auction", "update", RequestMetrics.TOTAL) == null ? 0 : RequestMetrics.getLatency("auction", "update", RequestMetrics.TOTAL).getCount();
+        stringifyResults(output);
+        assertTrue("Request was not timed until it was written", RequestMetrics.getLatency("auction", "update", RequestMetrics.TOTAL).getCount() == totals + 1);
+        assertTrue("Size was not recorded", RequestMetrics.getSize("auction", "update").getMax() > 0);
+        assertTrue("Timer was left on the thread", RequestMetrics.current() == null);
+
+        String metrics = (String)service.metrics().getEntity();
+        assertTrue("Phase is not in metrics", metrics.contains("jpars_request_seconds{context=\"auction\",operation=\"update\",phase=\"db\",quantile=\"0.99\"}"));
+        assertTrue("Queue wait is not in metrics", metrics.contains("jpars_request_seconds_count{context=\"auction\",operation=\"update\",phase=\"queue\"}"));
+        assertTrue("Sizes are not in metrics", metrics.contains("jpars_response_bytes_count{context=\"auction\",operation=\"update\"}"));
+        assertTrue("Counter has no type", metrics.contains("# TYPE jpars_jpql_cache_hits_total counter\n"));
+        assertTrue("Counter is not in metrics", metrics.contains("jpars_jpql_cache_hits_total{context=\"auction\"}"));
+        // the samples of a family follow its type, whichever context they are for
+        int type = metrics.indexOf("# TYPE jpars_jpql_cache_misses_total counter\n");
+        assertTrue("Samples of a family are not together", type > 0
+                && metrics.indexOf("jpars_jpql_cache_hits_total{", type) < 0
+                && metrics.lastIndexOf("jpars_jpql_cache_misses_total{") > type);
+    }
+
+    @Test
+    public void testRequestTrace(){
+        RequestTrace trace = RequestTrace.start("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01", 0);
+        assertTrue("Sampled traceparent was not sampled", trace.isSampled());
+        assertTrue("Trace id was not kept", trace.getTraceId().equals("4bf92f3577b34da6a3ce929d0e0e4736"));
+        assertTrue("Span of the request was not a new child", trace.getTraceparent().startsWith("00-4bf92f3577b34da6a3ce929d0e0e4736-") && !trace.getTraceparent().contains("00f067aa0ba902b7"));
+        assertTrue("Request was sampled", !RequestTrace.start(null, 0).isSampled());
+        assertTrue("Invalid traceparent was used", !RequestTrace.start("00-00000000000000000000000000000000-00f067aa0ba902b7-01", 0).getTraceId().startsWith("0000000000"));
+
+        RequestMetrics.Timer timer = RequestMetrics.start("find");
+        timer.setContext("trace-test");
+        timer.setTrace(trace, 0);
+        timer.phase(RequestMetrics.LOOKUP);
+        trace.callStarted();
+        trace.callFinished("SELECT ID FROM AUCTION");
+        timer.phase(RequestMetrics.DATABASE);
+        timer.finish();
+        List<RequestTrace.Span> spans = trace.getSpans();
+        assertTrue("Wrong spans", spans.size() == 3 && spans.get(1).getName().equals("sql") && spans.get(2).getName().equals(RequestMetrics.DATABASE));
+        String record = trace.toJSON("trace-test", "find", 1000000);
+        assertTrue("Record is missing the parent span: " + record, record.contains("\"parentId\":\"00f067aa0ba902b7\""));
+        assertTrue("Record is missing the SQL: " + record, record.contains("\"detail\":\"SELECT ID FROM AUCTION\""));
+
+        // a trace started once the request is running measures its spans from the start of the request
+        timer = RequestMetrics.start("find");
+        trace = RequestTrace.start(null, 0, timer.getStart());
+        timer.setContext("trace-test");
+        timer.setTrace(trace, Long.MAX_VALUE);
+        timer.phase(RequestMetrics.LOOKUP);
+        timer.finish();
+        assertTrue("First span does not start with the request", trace.getSpans().get(0).getStart() == 0);
+    }
+
     @Test 
     public void testMetadataQuery(){
         Service service = new Service();
@@ -383,6 +718,198 @@ public class TestService {
 
     }
     
+    @Test
+    public void testMetadataCache(){
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        Response output = service.getDescriptorMetadata("auction", "Bid", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo());
+        Object tag = output.getMetadata().getFirst(HttpHeaders.ETAG);
+        assertTrue("No ETag was returned", tag != null);
+        String result = stringifyResults((StreamingOutput)output.getEntity());
+        assertTrue("Bid was not in the results", result.contains("Bid"));
+
+        output = service.getDescriptorMetadata("auction", "Bid", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo());
+        assertTrue("Cached metadata has a different ETag", tag.equals(output.getMetadata().getFirst(HttpHeaders.ETAG)));
+        assertTrue("Cached metadata is different", result.equals(stringifyResults((StreamingOutput)output.getEntity())));
+
+        HttpHeaders headers = generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON);
+        List<String> ifNoneMatch = new ArrayList<String>();
+        ifNoneMatch.add(tag.toString());
+        headers.getRequestHeaders().put(EntityTagHelper.IF_NONE_MATCH, ifNoneMatch);
+        output = service.getDescriptorMetadata("auction", "Bid", headers, new TestURIInfo());
+        assertTrue("Matching ETag was not answered with 304", output.getStatus() == Status.NOT_MODIFIED.getStatusCode());
+
+        output = service.getDescriptorMetadata("auction", "NoSuchType", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo());
+        assertTrue("Unknown type was found", output.getStatus() == Status.NOT_FOUND.getStatusCode());
+
+        // every Host a client sends gives another base URI, so only the most recently used documents are kept
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        for (int i = 0; i <= PersistenceContext.DEFAULT_METADATA_CACHE_SIZE; i++){
+            context.cacheMetadata("types;application/json;http://host" + i + "/", new CachedResponse("{}"));
+        }
+        assertNull("Least recently used document was kept", context.getCachedMetadata("types;application/json;http://host0/"));
+        assertNotNull("Most recently used document was dropped", context.getCachedMetadata("types;application/json;http://host" + PersistenceContext.DEFAULT_METADATA_CACHE_SIZE + "/"));
+        context.clearMetadataCache();
+    }
+
+    @Test
+    public void testMarshallerPool() throws Exception {
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        MarshallerPool pool = context.getMarshallerPool();
+        Marshaller marshaller = pool.borrowMarshaller(MediaType.APPLICATION_JSON_TYPE);
+        pool.returnMarshaller(MediaType.APPLICATION_JSON_TYPE, marshaller);
+        assertTrue("Returned marshaller was not reused", pool.borrowMarshaller(MediaType.APPLICATION_JSON_TYPE) == marshaller);
+        assertTrue("Marshaller was shared between media types", pool.borrowMarshaller(MediaType.APPLICATION_XML_TYPE) != marshaller);
+
+        context.setBaseURI(new URI("http://localhost:8080/JPA-RS/"));
+        pool.returnMarshaller(MediaType.APPLICATION_JSON_TYPE, marshaller);
+        assertTrue("Marshaller with a stale base URI was reused", pool.borrowMarshaller(MediaType.APPLICATION_JSON_TYPE) != marshaller);
+    }
+
+    @Test
+    public void testBoundedExecutor() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> blocked = new Callable<String>() {
+            public String call() throws Exception {
+                release.await();
+                return "done";
+            }
+        };
+        BoundedExecutor executor = new BoundedExecutor("test", 1, 1, 5000);
+        ExecutorService clients = Executors.newFixedThreadPool(2);
+        try {
+            // one task holds the only thread and the next fills the queue
+            clients.submit(new ExecuteTask(executor, blocked));
+            clients.submit(new ExecuteTask(executor, blocked));
+            long start = System.currentTimeMillis();
+            while (executor.getQueueDepth() < 1 && System.currentTimeMillis() - start < 5000){
+                Thread.sleep(10);
+            }
+            try {
+                executor.execute(blocked);
+                fail("Task was queued beyond the queue size");
+            } catch (RejectedExecutionException e){
+            }
+        } finally {
+            release.countDown();
+            clients.shutdown();
+            executor.shutdown();
+        }
+
+        BoundedExecutor timedExecutor = new BoundedExecutor("test", 1, 1, 100);
+        try {
+            timedExecutor.execute(new Callable<String>() {
+                public String call() throws Exception {
+                    Thread.sleep(5000);
+                    return "done";
+                }
+            });
+            fail("Slow task was not timed out");
+        } catch (TimeoutException e){
+        }
+        try {
+            // writes are waited for past the timeout rather than cancelled
+            String result = timedExecutor.execute(new Callable<String>() {
+                public String call() throws Exception {
+                    Thread.sleep(300);
+                    return "done";
+                }
+            }, false);
+            assertTrue("Untimed task did not complete", "done".equals(result));
+        } finally {
+            timedExecutor.shutdown();
+        }
+    }
+
+    private static class ExecuteTask implements Callable<Object> {
+        private BoundedExecutor executor;
+        private Callable<String> task;
+
+        public ExecuteTask(BoundedExecutor executor, Callable<String> task){
+            this.executor = executor;
+            this.task = task;
+        }
+
+        public Object call() throws Exception {
+            return executor.execute(task);
+        }
+    }
+
+    @Test
+    public void testCompressedNamedQuery() throws IOException {
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        for (int i = 0; i < 20; i++){
+            DynamicEntity entity = (DynamicEntity)context.newEntity("Auction");
+            entity.set("name", "Compressed Auction");
+            context.create(null, entity);
+        }
+
+        HttpHeaders headers = generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON);
+        List<String> encodings = new ArrayList<String>();
+        encodings.add("deflate;q=0.5, gzip");
+        headers.getRequestHeaders().put(CompressionHelper.ACCEPT_ENCODING, encodings);
+        Response response = service.namedQuery("auction", "Auction.all", headers, new TestURIInfo());
+        assertTrue("Response was not gzip encoded", "gzip".equals(response.getMetadata().getFirst(CompressionHelper.CONTENT_ENCODING)));
+
+        long compressedResponses = CompressionHelper.getCompressedResponses();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ((StreamingOutput)response.getEntity()).write(compressed);
+        String result = stringifyStream(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+        assertTrue("Auction was not in the results", result.contains("Compressed Auction"));
+        assertTrue("Response was not smaller", compressed.size() < result.length());
+        assertTrue("Compression was not recorded", CompressionHelper.getCompressedResponses() > compressedResponses);
+
+        encodings.set(0, "gzip;q=0, identity");
+        response = service.namedQuery("auction", "Auction.all", headers, new TestURIInfo());
+        assertTrue("Refused encoding was used", response.getMetadata().getFirst(CompressionHelper.CONTENT_ENCODING) == null);
+
+        // a coding that is named is not accepted again through *
+        encodings.set(0, "*, gzip;q=0");
+        assertTrue("Refused encoding was accepted through *", "deflate".equals(CompressionHelper.negotiate(headers)));
+        encodings.set(0, "gzip;q=0, deflate;q=0, *");
+        assertNull("Refused encodings were accepted through *", CompressionHelper.negotiate(headers));
+        encodings.set(0, "*;q=0.5");
+        assertTrue("gzip was not preferred for *", "gzip".equals(CompressionHelper.negotiate(headers)));
+        clearData();
+    }
+
+    @Test
+    public void testCompressedEntity() throws IOException {
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < CompressionHelper.DEFAULT_COMPRESSION_THRESHOLD; i++){
+            description.append('a');
+        }
+        DynamicEntity large = (DynamicEntity)context.newEntity("Auction");
+        large.set("name", "Large Auction");
+        large.set("description", description.toString());
+        context.create(null, large);
+        DynamicEntity small = (DynamicEntity)context.newEntity("Auction");
+        small.set("name", "Small Auction");
+        context.create(null, small);
+
+        HttpHeaders headers = generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON);
+        headers.getRequestHeaders().add(CompressionHelper.ACCEPT_ENCODING, "gzip");
+        Response response = service.find("auction", "Auction", large.get("id").toString(), headers, new TestURIInfo());
+        assertTrue("Large entity was not compressed", "gzip".equals(response.getMetadata().getFirst(CompressionHelper.CONTENT_ENCODING)));
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ((StreamingOutput)response.getEntity()).write(compressed);
+        String result = stringifyStream(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+        assertTrue("Auction was not in the result", result.contains("Large Auction"));
+
+        response = service.find("auction", "Auction", small.get("id").toString(), headers, new TestURIInfo());
+        assertTrue("Small entity was compressed", response.getMetadata().getFirst(CompressionHelper.CONTENT_ENCODING) == null);
+
+        large.set("name", "Updated Large Auction");
+        response = service.update("auction", "Auction", headers, new TestURIInfo(), serializeToStream(large, context, MediaType.APPLICATION_JSON_TYPE));
+        assertTrue("Updated entity was not compressed", "gzip".equals(response.getMetadata().getFirst(CompressionHelper.CONTENT_ENCODING)));
+        clearData();
+    }
+
     @Test
     public void testDelete(){
         Service service = new Service();
@@ -445,6 +972,514 @@ public class TestService {
         assertTrue("Id was not in the result", result.contains(address.get("id").toString()));
     }
     
+    @Test
+    public void testExpand() throws IOException {
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        DynamicEntity user = (DynamicEntity)context.newEntity("User");
+        user.set("name", "Expanded Ed");
+        DynamicEntity address = (DynamicEntity)context.newEntity("Address");
+        address.set("city", "Kanata");
+        address.set("type", "Work");
+        user.set("address", address);
+        context.create(null, user);
+
+        TestURIInfo ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.EXPAND_PARAMETER, "address");
+        Response output = service.find("auction", "User", user.get("id").toString(), generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        String result = stringifyResults((StreamingOutputMarshaller)output.getEntity());
+        assertTrue("User was not in the result", result.contains("Expanded Ed"));
+        assertTrue("Address was not expanded", result.contains("\"expanded\"") && result.contains("Kanata"));
+
+        output = service.find("auction", "User", user.get("id").toString(), generateHTTPHeader(BinaryCodec.APPLICATION_BINARY_TYPE, BinaryCodec.APPLICATION_BINARY), ui);
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        ((StreamingOutput)output.getEntity()).write(binary);
+        DynamicEntity decoded = (DynamicEntity)BinaryCodec.decode(context, "User", new ByteArrayInputStream(binary.toByteArray()));
+        assertTrue("Address was not written in place", "Kanata".equals(((DynamicEntity)decoded.get("address")).get("city")));
+
+        // each relationship on the way to a nested path is written in place
+        DynamicEntity auction = (DynamicEntity)context.newEntity("Auction");
+        auction.set("name", "Expanded Lot");
+        context.create(null, auction);
+        DynamicEntity bid = (DynamicEntity)context.newEntity("Bid");
+        bid.set("bid", 10d);
+        bid.set("user", user);
+        bid.set("auction", auction);
+        context.create(null, bid);
+        ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.EXPAND_PARAMETER, "user.address");
+        output = service.find("auction", "Bid", bid.get("id").toString(), generateHTTPHeader(BinaryCodec.APPLICATION_BINARY_TYPE, BinaryCodec.APPLICATION_BINARY), ui);
+        binary = new ByteArrayOutputStream();
+        ((StreamingOutput)output.getEntity()).write(binary);
+        decoded = (DynamicEntity)BinaryCodec.decode(context, "Bid", new ByteArrayInputStream(binary.toByteArray()));
+        DynamicEntity decodedUser = decoded.get("user");
+        assertTrue("User was not written in place", "Expanded Ed".equals(decodedUser.get("name")));
+        assertTrue("Nested address was not written in place", decodedUser.get("address") != null && "Kanata".equals(((DynamicEntity)decodedUser.get("address")).get("city")));
+
+        ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.EXPAND_PARAMETER, "name");
+        output = service.find("auction", "User", user.get("id").toString(), generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        assertTrue("Expanding an attribute that is not a relationship was not rejected", output.getStatus() == Status.BAD_REQUEST.getStatusCode());
+        clearData();
+    }
+
+    @Test
+    public void testFindAll() {
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        DynamicEntity first = (DynamicEntity)context.newEntity("Auction");
+        first.set("name", "First Lot");
+        context.create(null, first);
+        DynamicEntity second = (DynamicEntity)context.newEntity("Auction");
+        second.set("name", "Second Lot");
+        context.create(null, second);
+        JpaHelper.getServerSession(context.getEmf()).getIdentityMapAccessor().initializeAllIdentityMaps();
+        // read one of them back so it is in the cache
+        context.find("Auction", first.get("id"));
+
+        int missingId = ((Integer)first.get("id")) + ((Integer)second.get("id")) + 1000;
+        TestURIInfo ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.IDS_PARAMETER, second.get("id") + "," + missingId + "," + first.get("id"));
+        Response output = service.findAll("auction", "Auction", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        String result = stringifyResults((StreamingOutputMarshaller)output.getEntity());
+        assertTrue("Auctions were not in the result", result.contains("First Lot") && result.contains("Second Lot"));
+        assertTrue("Auctions were not in the requested order", result.indexOf("Second Lot") < result.indexOf("First Lot"));
+        assertTrue("Missing id was not reported", String.valueOf(missingId).equals(output.getMetadata().getFirst(Service.MISSING_IDS_HEADER)));
+
+        ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.IDS_PARAMETER, "1+2");
+        output = service.findAll("auction", "Auction", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        assertTrue("Id with the wrong number of keys was not rejected", output.getStatus() == Status.BAD_REQUEST.getStatusCode());
+
+        ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.IDS_PARAMETER, "first");
+        output = service.findAll("auction", "Auction", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        assertTrue("Id that is not a number was not rejected", output.getStatus() == Status.BAD_REQUEST.getStatusCode());
+
+        StringBuilder ids = new StringBuilder(first.get("id").toString());
+        for (int i = 0; i < PersistenceContext.DEFAULT_FIND_MAX_IDS; i++){
+            ids.append(',').append(first.get("id"));
+        }
+        ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.IDS_PARAMETER, ids.toString());
+        output = service.findAll("auction", "Auction", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        assertTrue("Too many ids were not rejected", output.getStatus() == Status.BAD_REQUEST.getStatusCode());
+
+        String keys = "[{\"id\":\"" + first.get("id") + "\"},{\"href\":\"http://localhost:8080/auction/entity/Auction/" + second.get("id") + "\"}]";
+        output = service.findAll("auction", "Auction", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo(), new ByteArrayInputStream(keys.getBytes()));
+        result = stringifyResults((StreamingOutputMarshaller)output.getEntity());
+        assertTrue("Auctions posted by id and link were not in the result", result.indexOf("First Lot") >= 0 && result.indexOf("First Lot") < result.indexOf("Second Lot"));
+
+        keys = "[{\"href\":\"http://localhost:8080/auction/entity/User/" + second.get("id") + "\"}]";
+        output = service.findAll("auction", "Auction", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo(), new ByteArrayInputStream(keys.getBytes()));
+        assertTrue("Link to another type was not rejected", output.getStatus() == Status.BAD_REQUEST.getStatusCode());
+        clearData();
+    }
+
+    @Test
+    public void testFindAllCompositeKey() {
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        PersistenceContext context = factory.getPersistenceContext("auction-static");
+        StaticUser user = new StaticUser();
+        user.setName("Ann");
+        user.setId(9);
+        StaticAddress address = new StaticAddress();
+        address.setCity("Toronto");
+        address.setPostalCode("m1m1m1");
+        address.setStreet("Queen Street");
+        address.setType("Work");
+        user.setAddress(address);
+        context.create(null, user);
+
+        String key = user.getAddress().getId() + "+" + user.getAddress().getType();
+        String missingKey = (user.getAddress().getId() + 1000) + "+Work";
+        TestURIInfo ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.IDS_PARAMETER, missingKey + "," + key);
+        Response output = service.findAll("auction-static", "StaticAddress", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        String result = stringifyResults((StreamingOutputMarshaller)output.getEntity());
+        assertTrue("Address was not in the result", result.contains("Queen Street"));
+        assertTrue("Missing key was not reported", missingKey.equals(output.getMetadata().getFirst(Service.MISSING_IDS_HEADER)));
+
+        // not cached, so it is read with the disjunction of the key values
+        JpaHelper.getServerSession(context.getEmf()).getIdentityMapAccessor().initializeAllIdentityMaps();
+        String keys = "[{\"href\":\"http://localhost:8080/auction-static/entity/StaticAddress/" + key + "\"}]";
+        output = service.findAll("auction-static", "StaticAddress", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo(), new ByteArrayInputStream(keys.getBytes()));
+        result = stringifyResults((StreamingOutputMarshaller)output.getEntity());
+        assertTrue("Address posted by link was not in the result", result.contains("Queen Street"));
+
+        ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.IDS_PARAMETER, "Work+" + user.getAddress().getId());
+        output = service.findAll("auction-static", "StaticAddress", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        assertTrue("Key values in the wrong order were not rejected", output.getStatus() == Status.BAD_REQUEST.getStatusCode());
+    }
+
+    @Test
+    public void testEventStream() throws Exception {
+        EventBroadcaster broadcaster = new EventBroadcaster(10);
+        EventSubscriber subscriber = new EventSubscriber("Auction", 2, EventSubscriber.DROP_OLDEST);
+        broadcaster.subscribe(subscriber, null);
+        broadcaster.objectInserted("Auction", "1", "row1");
+        broadcaster.objectUpdated("User", "1", "row2");
+        broadcaster.objectUpdated("Auction", "2", "row1");
+        broadcaster.objectInserted("Auction", "3", "row3");
+        assertTrue("Oldest event was not dropped", subscriber.getDropped() == 1);
+        assertTrue("Wrong event was kept", subscriber.poll(0).getId() == 3);
+
+        EventSubscriber resumed = new EventSubscriber("Auction", 10, EventSubscriber.DISCONNECT);
+        broadcaster.subscribe(resumed, Long.valueOf(1));
+        resumed.close();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new EventStreamOutput(broadcaster, resumed, 1000).write(output);
+        String events = output.toString("UTF-8");
+        String epoch = broadcaster.getEpoch();
+        assertTrue("Missed events were not resent", events.contains("id: " + epoch + "-3\nevent: update\n") && events.contains("id: " + epoch + "-4\nevent: insert\n"));
+        assertFalse("Event of another entity was sent", events.contains("row2"));
+
+        EventSubscriber slow = new EventSubscriber("Auction", 1, EventSubscriber.DISCONNECT);
+        broadcaster.subscribe(slow, null);
+        broadcaster.objectInserted("Auction", "4", "row4");
+        broadcaster.objectInserted("Auction", "5", "row5");
+        slow.poll(0);
+        assertTrue("Slow subscriber was not disconnected", slow.isClosed());
+        assertTrue("Subscribers were not removed", broadcaster.getSubscriberCount() == 1);
+
+        // ids of an earlier broadcaster, as after a restart, get all the kept events
+        EventSubscriber current = new EventSubscriber("Auction", 10, EventSubscriber.DISCONNECT);
+        broadcaster.resume(current, epoch + "-5");
+        assertTrue("Event after the last one was not resent", current.poll(0).getId() == 6);
+        EventSubscriber restarted = new EventSubscriber("Auction", 10, EventSubscriber.DISCONNECT);
+        broadcaster.resume(restarted, new EventBroadcaster(10).getEpoch() + "-5");
+        assertTrue("Events of an unknown epoch were not all resent", restarted.poll(0).getId() == 1);
+        EventSubscriber unknown = new EventSubscriber("Auction", 10, EventSubscriber.DISCONNECT);
+        broadcaster.resume(unknown, "5");
+        assertTrue("Events were resent for an id that is not ours", unknown.poll(0) == null);
+
+        EventBroadcaster limited = new EventBroadcaster(10, 1);
+        limited.subscribe(new EventSubscriber("Auction", 1, EventSubscriber.DISCONNECT), null);
+        try {
+            limited.subscribe(new EventSubscriber("Auction", 1, EventSubscriber.DISCONNECT), null);
+            fail("Subscriber over the limit was not rejected");
+        } catch (RejectedExecutionException e){
+        }
+        assertTrue("Rejected subscriber was added", limited.getSubscriberCount() == 1);
+    }
+
+    @Test
+    public void testResponseCache() throws Exception {
+        ResponseCache cache = new ResponseCache(300, 200);
+        List<String> employee = new ArrayList<String>();
+        employee.add("Employee");
+        List<String> project = new ArrayList<String>();
+        project.add("Project");
+
+        ResponseCache.Stamp stamp = cache.stamp(employee);
+        cache.put("a", new CachedResponse(new byte[100], new EntityTag("a")), stamp);
+        cache.put("b", new CachedResponse(new byte[100], new EntityTag("b")), cache.stamp(project));
+        assertTrue("Response was not cached", cache.get("a") != null);
+        assertTrue("Cache miss was not counted", cache.get("c") == null && cache.getMisses() == 1);
+
+        // b was only read once so it is evicted before a
+        cache.put("c", new CachedResponse(new byte[150], new EntityTag("c")), cache.stamp(project));
+        assertTrue("Probationary response was not evicted", cache.get("b") == null);
+        assertTrue("Protected response was evicted", cache.get("a") != null);
+        assertTrue("Cache exceeds its size", cache.getBytes() <= cache.getMaxBytes());
+        assertTrue("Eviction was not counted", cache.getEvictions() == 1);
+
+        cache.put("d", new CachedResponse(new byte[250], new EntityTag("d")), cache.stamp(project));
+        assertTrue("Response larger than the entry size was cached", cache.get("d") == null);
+
+        cache.objectUpdated("Employee", null, null);
+        assertTrue("Response was not invalidated by change", cache.get("a") == null);
+        assertTrue("Response of another type was invalidated", cache.get("c") != null);
+
+        // read before the change, so it must not be cached after it
+        cache.put("a", new CachedResponse(new byte[100], new EntityTag("a")), stamp);
+        assertTrue("Stale response was cached", cache.get("a") == null);
+        assertTrue("Hit rate was not counted", cache.getHits() > 0 && cache.getHitRate() < 1);
+
+        // writes the cache is not told of are bounded by the maximum age
+        cache = new ResponseCache(300, 200, 10);
+        cache.put("a", new CachedResponse(new byte[100], new EntityTag("a")), cache.stamp(employee));
+        Thread.sleep(50);
+        assertTrue("Response older than the maximum age was returned", cache.get("a") == null);
+    }
+
+    @Test
+    public void testTenantQuota() throws Exception {
+        TenantQuota quota = new TenantQuota(2, 0);
+        quota.acquire("tenant1");
+        quota.acquire("tenant1");
+        try {
+            quota.acquire("tenant1");
+            fail("Tenant exceeded its limit");
+        } catch (RejectedExecutionException e){
+        }
+        // one tenant at its limit does not hold up the others
+        quota.acquire("tenant2");
+        assertTrue("Wrong number of EntityManagers in use", quota.getInUse("tenant1") == 2 && quota.getInUse("tenant2") == 1);
+        quota.release("tenant1");
+        quota.acquire("tenant1");
+        assertTrue("Rejection was not counted", quota.getRejected() == 1);
+    }
+
+    @Test
+    public void testTenantQueries() throws Exception {
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        DynamicEntity entity = (DynamicEntity)context.newEntity("Auction");
+        entity.set("name", "Computer");
+        context.create(null, entity);
+        TenantQuota quota = context.getTenantQuota();
+        assertNotNull("Tenants are not limited", quota);
+        String jpql = "{\"jpql\":\"SELECT a FROM Auction a\"}";
+
+        // with the tenant at its limit, every path must be rejected
+        quota.acquire("tenant1");
+        quota.acquire("tenant1");
+        long rejected = quota.getRejected();
+        TestURIInfo paged = new TestURIInfo();
+        paged.getQueryParameters().add(Service.LIMIT_PARAMETER, "1");
+        Response response = service.namedQuery("auction", "Auction.all", tenantHeaders("tenant1"), paged);
+        assertTrue("Paged query was not run for the tenant", response.getStatus() == Status.SERVICE_UNAVAILABLE.getStatusCode());
+        response = service.jpqlQuery("auction", tenantHeaders("tenant1"), new TestURIInfo(), new ByteArrayInputStream(jpql.getBytes()));
+        assertTrue("JPQL query was not run for the tenant", response.getStatus() == Status.SERVICE_UNAVAILABLE.getStatusCode());
+        TestURIInfo streamed = new TestURIInfo();
+        streamed.getQueryParameters().add(Service.STREAM_PARAMETER, "true");
+        response = service.namedQuery("auction", "Auction.all", tenantHeaders("tenant1"), streamed);
+        try {
+            ((StreamingOutput)response.getEntity()).write(new ByteArrayOutputStream());
+            fail("Streamed query was not run for the tenant");
+        } catch (WebApplicationException e){
+            assertTrue("Wrong status for streamed query", e.getResponse().getStatus() == Status.SERVICE_UNAVAILABLE.getStatusCode());
+        }
+        assertTrue("Rejections were not counted", quota.getRejected() == rejected + 3);
+        quota.release("tenant1");
+        quota.release("tenant1");
+
+        // each path gives its EntityManager back to the tenant
+        response = service.namedQuery("auction", "Auction.all", tenantHeaders("tenant1"), paged);
+        assertTrue("Computer was not in paged results.", stringifyResults((StreamingOutput)response.getEntity()).contains("Computer"));
+        response = service.jpqlQuery("auction", tenantHeaders("tenant1"), new TestURIInfo(), new ByteArrayInputStream(jpql.getBytes()));
+        assertTrue("Computer was not in JPQL results.", stringifyResults((StreamingOutput)response.getEntity()).contains("Computer"));
+        response = service.namedQuery("auction", "Auction.all", tenantHeaders("tenant1"), streamed);
+        assertTrue("Computer was not in streamed results.", stringifyResults((StreamingOutput)response.getEntity()).contains("Computer"));
+        assertTrue("EntityManagers of the tenant were not closed", quota.getInUse("tenant1") == 0);
+        clearData();
+    }
+
+    private static HttpHeaders tenantHeaders(String tenantId) {
+        HttpHeaders headers = generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON);
+        headers.getRequestHeaders().add("tenant-id", tenantId);
+        return headers;
+    }
+
+    @Test
+    public void testReplacePersistenceContext() throws Exception {
+        PersistenceContext old = factory.getPersistenceContext("auction-static");
+        EntityManagerFactory emf = old.getEmf();
+        PersistenceContext replacement = factory.bootstrapPersistenceContext("auction-static", emf, old.getBaseURI(), true);
+        assertTrue("Context was not replaced", replacement != old && factory.getPersistenceContext("auction-static") == replacement);
+        assertTrue("EntityManagerFactory of the caller was closed", emf.isOpen());
+        assertTrue("EntityManagerFactory was taken from the replaced context", old.getEmf() == emf);
+    }
+
+    @Test
+    public void testConcurrencyLimiter() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 2, 0, 1);
+        ConcurrencyLimiter.Permit first = limiter.acquire(null);
+        limiter.acquire(null);
+        try {
+            limiter.acquire(null);
+            fail("Request over the limit was admitted");
+        } catch (RejectedExecutionException e){
+        }
+        limiter.release(first, false);
+        limiter.acquire(null);
+        assertTrue("Limiter counts are wrong", limiter.getInFlight() == 2 && limiter.getRejected() == 1 && limiter.getAccepted() == 3);
+
+        // waiting tenants are admitted in turn, not in the order they queued
+        final ConcurrencyLimiter fair = new ConcurrencyLimiter(1, 1, 1, 10000, 10);
+        final List<String> admitted = Collections.synchronizedList(new ArrayList<String>());
+        ConcurrencyLimiter.Permit held = fair.acquire("tenant1");
+        String[] tenants = new String[]{"tenant1", "tenant1", "tenant1", "tenant2"};
+        ExecutorService executor = Executors.newFixedThreadPool(tenants.length);
+        for (int i = 0; i < tenants.length; i++){
+            final String tenant = tenants[i];
+            executor.submit(new Callable<Object>() {
+                public Object call() {
+                    ConcurrencyLimiter.Permit permit = fair.acquire(tenant);
+                    admitted.add(tenant);
+                    fair.release(permit, false);
+                    return null;
+                }
+            });
+            long deadline = System.currentTimeMillis() + 5000;
+            while (fair.getQueued() < i + 1 && System.currentTimeMillis() < deadline){
+                Thread.sleep(5);
+            }
+        }
+        fair.release(held, false);
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        assertTrue("Tenants were not admitted in turn: " + admitted, admitted.size() == 4 && admitted.get(1).equals("tenant2"));
+    }
+
+    @Test
+    public void testChangeEventDispatcher() throws Exception {
+        final CountDownLatch slowEntered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch fastReceived = new CountDownLatch(3);
+        ChangeListener slow = new TestChangeListener() {
+            public void objectInserted(String entityName, String transactionId, String rowId) {
+                slowEntered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e){
+                }
+            }
+        };
+        ChangeListener fast = new TestChangeListener() {
+            public void objectInserted(String entityName, String transactionId, String rowId) {
+                fastReceived.countDown();
+            }
+            public void objectUpdated(String entityName, String transactionId, String rowId) {
+                fastReceived.countDown();
+            }
+        };
+        ChangeEventDispatcher dispatcher = new ChangeEventDispatcher("test", 2, 3, 64, 60000);
+        try {
+            dispatcher.addChangeListener(slow);
+            dispatcher.addChangeListener(fast);
+            dispatcher.objectInserted("Auction", "1", "row1");
+            assertTrue("Slow listener was not called", slowEntered.await(10, TimeUnit.SECONDS));
+            dispatcher.objectUpdated("Auction", "2", "row2");
+            dispatcher.objectUpdated("Auction", "3", "row2");
+            dispatcher.objectUpdated("Auction", "4", "row3");
+            dispatcher.objectUpdated("Auction", "5", "row4");
+            dispatcher.objectUpdated("Auction", "6", "row5");
+            assertTrue("Fast listener was held up by the slow one", fastReceived.await(10, TimeUnit.SECONDS));
+            assertTrue("Repeated update was not coalesced", dispatcher.getCoalesced() >= 1);
+            assertTrue("Update was not dropped for the full queue", dispatcher.getDropped() >= 1);
+            assertTrue("Slow listener has the wrong queue depth", dispatcher.getQueueDepth(slow) == 3);
+        } finally {
+            release.countDown();
+            dispatcher.shutdown();
+        }
+    }
+
+    private static class TestChangeListener implements ChangeListener {
+        public void objectUpdated(String entityName, String transactionId, String rowId) {
+        }
+        public void objectInserted(String entityName, String transactionId, String rowId) {
+        }
+        public void register() {
+        }
+        public void unregister() {
+        }
+    }
+
+    @Test
+    public void testSessionBeanDispatcher() throws Exception {
+        String initialContextFactory = System.getProperty(javax.naming.Context.INITIAL_CONTEXT_FACTORY);
+        System.setProperty(javax.naming.Context.INITIAL_CONTEXT_FACTORY, TestInitialContextFactory.class.getName());
+        TestInitialContextFactory.bind("greeter", new Greeter());
+        try {
+            SessionBeanDispatcher dispatcher = new SessionBeanDispatcher();
+            Object bean = dispatcher.lookup("greeter");
+            int lookups = TestInitialContextFactory.getLookups();
+            assertTrue("Bean was not kept", dispatcher.lookup("greeter") == bean);
+            assertTrue("Bean was looked up again", TestInitialContextFactory.getLookups() == lookups);
+
+            Object greeting = dispatcher.invoke("greeter", bean, "greet", new Class<?>[]{String.class}, new Object[]{"Bob"});
+            String json = new String(dispatcher.marshallResult(greeting, MediaType.APPLICATION_JSON_TYPE), "UTF-8");
+            assertTrue("Return value was not marshalled", json.contains("Hello Bob"));
+            Object greetings = dispatcher.invoke("greeter", bean, "greetAll", new Class<?>[]{String.class, String.class}, new Object[]{"Bob", "Alice"});
+            json = new String(dispatcher.marshallResult(greetings, MediaType.APPLICATION_JSON_TYPE), "UTF-8");
+            assertTrue("List was not marshalled as an array", json.trim().startsWith("[") && json.contains("Hello Bob") && json.contains("Hello Alice"));
+            String xml = new String(dispatcher.marshallResult(greetings, MediaType.APPLICATION_XML_TYPE), "UTF-8");
+            assertTrue("List was not marshalled to XML", xml.contains("Hello Bob") && xml.contains("Hello Alice"));
+
+            try {
+                dispatcher.invoke("greeter", bean, "fail", new Class<?>[0], new Object[0]);
+                fail("Failure of the bean was not passed on");
+            } catch (InvocationTargetException e){
+            }
+            dispatcher.lookup("greeter");
+            assertTrue("Bean was looked up again after an application exception", TestInitialContextFactory.getLookups() == lookups);
+            try {
+                dispatcher.invoke("greeter", bean, "remove", new Class<?>[0], new Object[0]);
+                fail("Failure of the bean was not passed on");
+            } catch (InvocationTargetException e){
+            }
+            dispatcher.lookup("greeter");
+            assertTrue("Bean was not looked up again after it was removed", TestInitialContextFactory.getLookups() == lookups + 1);
+
+            // a bean that may hold state for its client is never shared
+            TestInitialContextFactory.bind("cart", new Cart());
+            try {
+                dispatcher.lookup("cart");
+                lookups = TestInitialContextFactory.getLookups();
+                dispatcher.lookup("cart");
+                assertTrue("Stateful bean was kept", TestInitialContextFactory.getLookups() == lookups + 1);
+            } finally {
+                TestInitialContextFactory.unbind("cart");
+            }
+
+            Service service = new Service();
+            service.setPersistenceFactory(factory);
+            String call = "{\"jndiName\":\"greeter\",\"methodName\":\"greetAll\",\"parameters\":[{\"typeName\":\"java.lang.String\",\"value\":\"Bob\"},{\"typeName\":\"java.lang.String\",\"value\":\"Alice\"}]}";
+            Response response = service.callSessionBean(generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo(), new ByteArrayInputStream(call.getBytes()));
+            String result = stringifyResults((StreamingOutput)response.getEntity());
+            assertTrue("Return value of the call was not marshalled", result.contains("Hello Bob") && result.contains("Hello Alice"));
+        } finally {
+            TestInitialContextFactory.unbind("greeter");
+            if (initialContextFactory == null){
+                System.clearProperty(javax.naming.Context.INITIAL_CONTEXT_FACTORY);
+            } else {
+                System.setProperty(javax.naming.Context.INITIAL_CONTEXT_FACTORY, initialContextFactory);
+            }
+        }
+    }
+
+    @Stateless
+    public static class Greeter {
+        public Greeting greet(String name) {
+            Greeting greeting = new Greeting();
+            greeting.setText("Hello " + name);
+            return greeting;
+        }
+        public List<Greeting> greetAll(String name, String other) {
+            List<Greeting> greetings = new ArrayList<Greeting>();
+            greetings.add(greet(name));
+            greetings.add(greet(other));
+            return greetings;
+        }
+        public void fail() {
+            throw new IllegalStateException("Bean failed");
+        }
+        public void remove() {
+            throw new NoSuchEJBException("Bean was removed");
+        }
+    }
+
+    @Stateful
+    public static class Cart {
+    }
+
+    public static class Greeting {
+        private String text;
+        public String getText() {
+            return text;
+        }
+        public void setText(String text) {
+            this.text = text;
+        }
+    }
+
     @Test 
     public void testStaticCompositeKey(){
         Service service = new Service();
@@ -468,6 +1503,76 @@ public class TestService {
         assertTrue("Id was not in the result", result.contains(Integer.toString(user.getAddress().getId())));
     }
     
+    @Test
+    public void testConditionalFind(){
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        PersistenceContext context = factory.getPersistenceContext("auction-static");
+        StaticUser user = new StaticUser();
+        user.setName("Ted");
+        user.setId(8);
+        context.create(null, user);
+
+        Response output = service.find("auction-static", "StaticUser", "8", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo());
+        assertTrue("Wrong status", output.getStatus() == Status.OK.getStatusCode());
+        Object tag = output.getMetadata().getFirst(HttpHeaders.ETAG);
+        assertTrue("No ETag was returned", tag != null);
+        String result = stringifyResults((StreamingOutputMarshaller)output.getEntity());
+        assertTrue("Name was not in the result", result.contains("Ted"));
+
+        HttpHeaders headers = generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON);
+        List<String> ifNoneMatch = new ArrayList<String>();
+        ifNoneMatch.add(tag.toString());
+        headers.getRequestHeaders().put(EntityTagHelper.IF_NONE_MATCH, ifNoneMatch);
+        output = service.find("auction-static", "StaticUser", "8", headers, new TestURIInfo());
+        assertTrue("Matching ETag was not answered with 304", output.getStatus() == Status.NOT_MODIFIED.getStatusCode());
+        assertTrue("Not modified response had a body", output.getEntity() == null);
+
+        // If-None-Match uses the weak comparison
+        HttpHeaders weakHeaders = generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON);
+        weakHeaders.getRequestHeaders().add(EntityTagHelper.IF_NONE_MATCH, "W/" + tag.toString());
+        output = service.find("auction-static", "StaticUser", "8", weakHeaders, new TestURIInfo());
+        assertTrue("Matching weak ETag was not answered with 304", output.getStatus() == Status.NOT_MODIFIED.getStatusCode());
+
+        user.setName("Ed");
+        context.merge(null, user);
+        output = service.find("auction-static", "StaticUser", "8", headers, new TestURIInfo());
+        assertTrue("Stale ETag was answered with 304", output.getStatus() == Status.OK.getStatusCode());
+        result = stringifyResults((StreamingOutputMarshaller)output.getEntity());
+        assertTrue("Updated name was not in the result", result.contains("Ed"));
+
+        clearData();
+    }
+
+    @Test
+    public void testFields(){
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        DynamicEntity entity = (DynamicEntity)context.newEntity("Auction");
+        entity.set("name", "Sparse Auction");
+        entity.set("description", "Not requested");
+        context.create(null, entity);
+
+        TestURIInfo ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.FIELDS_PARAMETER, "name");
+        Response output = service.find("auction", "Auction", entity.get("id").toString(), generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        String result = stringifyResults((StreamingOutputMarshaller)output.getEntity());
+        assertTrue("Requested field was not in the result", result.contains("Sparse Auction"));
+        assertFalse("Field that was not requested was in the result", result.contains("Not requested"));
+
+        output = service.namedQuery("auction", "Auction.all", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        result = stringifyResults((StreamingOutputMarshaller)output.getEntity());
+        assertTrue("Requested field was not in the query result", result.contains("Sparse Auction"));
+        assertFalse("Field that was not requested was in the query result", result.contains("Not requested"));
+
+        ui = new TestURIInfo();
+        ui.getQueryParameters().add(Service.FIELDS_PARAMETER, "name,colour");
+        output = service.find("auction", "Auction", entity.get("id").toString(), generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), ui);
+        assertTrue("Unknown field was not rejected", output.getStatus() == Status.BAD_REQUEST.getStatusCode());
+        clearData();
+    }
+
     @Test
     public void testUnmarshallNonExistantLink(){
         Service service = new Service();
@@ -508,6 +1613,44 @@ public class TestService {
         result = service.getQueryMetadata("auction", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo());
     }
     
+    @Test
+    public void testBatch(){
+        Service service = new Service();
+        service.setPersistenceFactory(factory);
+        PersistenceContext context = factory.getPersistenceContext("auction");
+        
+        DynamicEntity existing = (DynamicEntity)context.newEntity("User");
+        existing.set("name", "Bob");
+        context.create(null, existing);
+        
+        DynamicEntity entity = (DynamicEntity)context.newEntity("User");
+        entity.set("name", "Jill");
+        String user = stringifyStream(serializeToStream(entity, context, MediaType.APPLICATION_JSON_TYPE));
+        
+        String batch = "[{\"operation\" : \"persist\", \"type\" : \"User\", \"entity\" : \"" + escapeJSON(user) + "\"}, " 
+                + "{\"operation\" : \"delete\", \"type\" : \"User\", \"id\" : \"" + existing.get("id") + "\"}]";
+        InputStream stream = new ByteArrayInputStream(batch.getBytes());
+        Response response = service.batch("auction", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo(), stream);
+        String result = stringifyResults((StreamingOutput)response.getEntity());
+        
+        assertTrue("Persist was not reported as created.", result.contains("201"));
+        assertTrue("Persisted entity was not linked.", result.contains("/auction/entity/User/"));
+        assertTrue("Entity was not deleted.", context.find("User", existing.get("id")) == null);
+
+        // entities that are not dynamic are linked as well
+        PersistenceContext staticContext = factory.getPersistenceContext("auction-static");
+        StaticUser staticUser = new StaticUser();
+        staticUser.setName("Batched Bill");
+        staticUser.setId(10);
+        String staticEntity = stringifyStream(serializeToStream(staticUser, staticContext, MediaType.APPLICATION_JSON_TYPE));
+        batch = "[{\"operation\" : \"persist\", \"type\" : \"StaticUser\", \"entity\" : \"" + escapeJSON(staticEntity) + "\"}]";
+        response = service.batch("auction-static", generateHTTPHeader(MediaType.APPLICATION_JSON_TYPE, MediaType.APPLICATION_JSON), new TestURIInfo(), new ByteArrayInputStream(batch.getBytes()));
+        result = stringifyResults((StreamingOutput)response.getEntity());
+        assertTrue("Persisted static entity was not linked.", result.contains("/auction-static/entity/StaticUser/10"));
+        
+        clearData();
+    }
+    
     public static String stringifyResults(StreamingOutput output){
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         try{
@@ -518,6 +1661,24 @@ public class TestService {
         return outputStream.toString();
     }
     
+    public static String stringifyStream(InputStream stream){
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try{
+            int b = stream.read();
+            while (b >= 0){
+                outputStream.write(b);
+                b = stream.read();
+            }
+        } catch (IOException ex){
+            fail(ex.toString());
+        }
+        return outputStream.toString();
+    }
+    
+    public static String escapeJSON(String value){
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\r", "\\r").replace("\n", "\\n");
+    }
+    
     public static InputStream serializeToStream(Object object, PersistenceContext context, MediaType mediaType){
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         try{
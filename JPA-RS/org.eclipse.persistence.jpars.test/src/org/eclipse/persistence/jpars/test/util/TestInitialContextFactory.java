@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpars.test.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * A fake JNDI provider to test calls to session beans outside of a container.  Set it as the
+ * java.naming.factory.initial system property and bind the beans to look up.  Only lookup by a
+ * String name is supported, and lookups are counted.
+ */
+public class TestInitialContextFactory implements InitialContextFactory {
+
+    private static Map<String, Object> bindings = new ConcurrentHashMap<String, Object>();
+    private static AtomicInteger lookups = new AtomicInteger();
+
+    public static void bind(String name, Object value) {
+        bindings.put(name, value);
+    }
+
+    public static void unbind(String name) {
+        bindings.remove(name);
+    }
+
+    /**
+     * Return the number of lookups made so far
+     * @return
+     */
+    public static int getLookups() {
+        return lookups.get();
+    }
+
+    public Context getInitialContext(Hashtable<?, ?> environment) throws NamingException {
+        return (Context)Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("lookup".equals(method.getName()) && args[0] instanceof String){
+                    lookups.incrementAndGet();
+                    Object value = bindings.get(args[0]);
+                    if (value == null){
+                        throw new NameNotFoundException((String)args[0]);
+                    }
+                    return value;
+                }
+                if ("close".equals(method.getName())){
+                    return null;
+                }
+                throw new OperationNotSupportedException(method.getName());
+            }
+        });
+    }
+}
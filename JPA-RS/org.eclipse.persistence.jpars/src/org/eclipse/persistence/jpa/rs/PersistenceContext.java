@@ -12,24 +12,30 @@
  ******************************************************************************/
 package org.eclipse.persistence.jpa.rs;
 
-import static org.eclipse.persistence.jaxb.JAXBContext.MEDIA_TYPE;
-
-import java.beans.PropertyChangeListener;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.NoResultException;
+import javax.persistence.Persistence;
 import javax.persistence.Query;
 import javax.persistence.spi.PersistenceUnitInfo;
 import javax.ws.rs.core.MediaType;
@@ -40,18 +46,25 @@ import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.stream.StreamSource;
 
+import org.eclipse.persistence.config.CacheUsage;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.config.QueryHints;
 import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.expressions.Expression;
+import org.eclipse.persistence.expressions.ExpressionBuilder;
 import org.eclipse.persistence.dynamic.DynamicEntity;
 import org.eclipse.persistence.dynamic.DynamicType;
-import org.eclipse.persistence.internal.dynamic.DynamicEntityImpl;
+import org.eclipse.persistence.internal.expressions.ExpressionIterator;
 import org.eclipse.persistence.internal.helper.ConversionManager;
 import org.eclipse.persistence.internal.jpa.EJBQueryImpl;
 import org.eclipse.persistence.internal.jpa.EntityManagerFactoryImpl;
 import org.eclipse.persistence.internal.jpa.deployment.PersistenceUnitProcessor;
 import org.eclipse.persistence.internal.jpa.deployment.SEPersistenceUnitInfo;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
 import org.eclipse.persistence.jaxb.JAXBContextFactory;
 import org.eclipse.persistence.jaxb.dynamic.DynamicJAXBContextFactory;
 import org.eclipse.persistence.jpa.Archive;
@@ -61,13 +74,41 @@ import org.eclipse.persistence.jpa.dynamic.JPADynamicHelper;
 import org.eclipse.persistence.jpa.rs.eventlistener.ChangeListener;
 import org.eclipse.persistence.jpa.rs.eventlistener.DatabaseEventListenerFactory;
 import org.eclipse.persistence.jpa.rs.eventlistener.DescriptorBasedDatabaseEventListener;
+import org.eclipse.persistence.jpa.rs.eventlistener.EventBroadcaster;
+import org.eclipse.persistence.jpa.rs.eventlistener.EventSubscriber;
+import org.eclipse.persistence.jpa.rs.metadata.model.BatchOperation;
+import org.eclipse.persistence.jpa.rs.util.BinaryCodec;
+import org.eclipse.persistence.jpa.rs.util.BoundedExecutor;
+import org.eclipse.persistence.jpa.rs.util.CachedResponse;
+import org.eclipse.persistence.jpa.rs.util.ConcurrencyLimiter;
 import org.eclipse.persistence.jpa.rs.util.DynamicXMLMetadataSource;
+import org.eclipse.persistence.jpa.rs.util.ExpandHelper;
+import org.eclipse.persistence.jpa.rs.util.ExpandedResult;
+import org.eclipse.persistence.jpa.rs.util.FieldsHelper;
+import org.eclipse.persistence.jpa.rs.util.IdHelper;
+import org.eclipse.persistence.jpa.rs.util.JPQLQueryCache;
 import org.eclipse.persistence.jpa.rs.util.JTATransactionWrapper;
-import org.eclipse.persistence.jpa.rs.util.LinkAdapter;
+import org.eclipse.persistence.jpa.rs.util.KeysetHelper;
+import org.eclipse.persistence.jpa.rs.util.KeysetHelper.SeekKey;
+import org.eclipse.persistence.jpa.rs.util.MarshallerPool;
+import org.eclipse.persistence.jpa.rs.util.QueryPage;
+import org.eclipse.persistence.jpa.rs.util.QueryPlan;
 import org.eclipse.persistence.jpa.rs.util.ResourceLocalTransactionWrapper;
+import org.eclipse.persistence.jpa.rs.util.ResponseCache;
+import org.eclipse.persistence.jpa.rs.util.SQLTraceListener;
+import org.eclipse.persistence.jpa.rs.util.TenantQuota;
 import org.eclipse.persistence.jpa.rs.util.TransactionWrapper;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+import org.eclipse.persistence.mappings.ForeignReferenceMapping;
 import org.eclipse.persistence.platform.database.events.DatabaseEventListener;
+import org.eclipse.persistence.queries.CursoredStream;
 import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.queries.FetchGroup;
+import org.eclipse.persistence.queries.ModifyAllQuery;
+import org.eclipse.persistence.queries.ObjectLevelReadQuery;
+import org.eclipse.persistence.queries.ReadObjectQuery;
+import org.eclipse.persistence.queries.ReadAllQuery;
+import org.eclipse.persistence.sessions.DatabaseRecord;
 import org.eclipse.persistence.sessions.Session;
 import org.eclipse.persistence.sessions.server.Server;
 import org.eclipse.persistence.sessions.server.ServerSession;
@@ -95,6 +136,160 @@ public class PersistenceContext {
     /** This internal property is used to save a change listener on the session for later retreival.**/
     public static final String CHANGE_NOTIFICATION_LISTENER = "jpars.change-notification-listener";
 
+    /** Persistence unit property that sets the JDBC fetch size used when streaming query results **/
+    public static final String STREAM_FETCH_SIZE = "eclipselink.jpa-rs.stream.fetch-size";
+    
+    public static final int DEFAULT_STREAM_FETCH_SIZE = 100;
+
+    /** The message a streamed result ends with if reading it fails after the response has been sent **/
+    protected static final String STREAM_ERROR = "Reading the results failed";
+
+    /** Persistence unit property that sets the largest page a client may ask for when paging a named query **/
+    public static final String QUERY_MAX_LIMIT = "eclipselink.jpa-rs.query.max-limit";
+
+    public static final int DEFAULT_QUERY_MAX_LIMIT = 1000;
+
+    /** Persistence unit property that sets the largest number of ids a client may ask for in one find request **/
+    public static final String FIND_MAX_IDS = "eclipselink.jpa-rs.find.max-ids";
+
+    public static final int DEFAULT_FIND_MAX_IDS = 1000;
+
+    /** Persistence unit property that sets the number of idle marshallers and unmarshallers kept per media type **/
+    public static final String MARSHALLER_POOL_SIZE = "eclipselink.jpa-rs.marshaller-pool.size";
+
+    public static final int DEFAULT_MARSHALLER_POOL_SIZE = 32;
+
+    /** Persistence unit property that sets the largest string, byte array or list accepted in a binary request body **/
+    public static final String BINARY_MAX_LENGTH = "eclipselink.jpa-rs.binary.max-length";
+
+    /** Persistence unit property that sets the deepest nesting of lists and objects accepted in a binary request body **/
+    public static final String BINARY_MAX_DEPTH = "eclipselink.jpa-rs.binary.max-depth";
+
+    public static final int DEFAULT_BINARY_MAX_LENGTH = 16 * 1024 * 1024;
+
+    public static final int DEFAULT_BINARY_MAX_DEPTH = 32;
+
+    /** Persistence unit property that sets the number of threads that run requests for this context.  If it is not set requests run on the thread they arrive on **/
+    public static final String EXECUTOR_THREADS = "eclipselink.jpa-rs.executor.threads";
+
+    /** Persistence unit property that sets the number of requests that can wait for an executor thread before requests are rejected **/
+    public static final String EXECUTOR_QUEUE_SIZE = "eclipselink.jpa-rs.executor.queue-size";
+
+    /** Persistence unit property that sets the time in milliseconds a read can run on an executor thread before it is cancelled.  Writes are not cancelled. **/
+    public static final String EXECUTOR_TIMEOUT = "eclipselink.jpa-rs.executor.timeout";
+
+    public static final int DEFAULT_EXECUTOR_QUEUE_SIZE = 100;
+
+    public static final int DEFAULT_EXECUTOR_TIMEOUT = 30000;
+
+    /** Persistence unit property that allows clients to run ad-hoc JPQL with POST {context}/jpql.  It is off unless it is set to true **/
+    public static final String JPQL_ENABLED = "eclipselink.jpa-rs.jpql.enabled";
+
+    /** Persistence unit property that sets the number of parsed ad-hoc JPQL queries kept.  0 disables the cache **/
+    public static final String JPQL_CACHE_SIZE = "eclipselink.jpa-rs.jpql.cache-size";
+
+    public static final int DEFAULT_JPQL_CACHE_SIZE = 100;
+
+    /** Persistence unit property that sets the number of encoded metadata documents kept **/
+    public static final String METADATA_CACHE_SIZE = "eclipselink.jpa-rs.metadata.cache-size";
+
+    public static final int DEFAULT_METADATA_CACHE_SIZE = 256;
+
+    /** Persistence unit property that sets the number of change events buffered for each event stream client **/
+    public static final String EVENTS_BUFFER_SIZE = "eclipselink.jpa-rs.events.buffer-size";
+
+    /** Persistence unit property that sets what happens when the buffer of an event stream client is full, drop-oldest or disconnect **/
+    public static final String EVENTS_OVERFLOW = "eclipselink.jpa-rs.events.overflow";
+
+    /** Persistence unit property that sets the number of recent change events kept for clients that resume an event stream **/
+    public static final String EVENTS_HISTORY_SIZE = "eclipselink.jpa-rs.events.history-size";
+
+    /** Persistence unit property that sets the time in milliseconds after which an idle event stream is sent a heartbeat **/
+    public static final String EVENTS_HEARTBEAT = "eclipselink.jpa-rs.events.heartbeat";
+
+    /** Persistence unit property that sets the number of event stream clients this context can have at once.  Each of them holds a request thread **/
+    public static final String EVENTS_MAX_SUBSCRIBERS = "eclipselink.jpa-rs.events.max-subscribers";
+
+    public static final int DEFAULT_EVENTS_BUFFER_SIZE = 256;
+
+    public static final int DEFAULT_EVENTS_HISTORY_SIZE = 1000;
+
+    public static final int DEFAULT_EVENTS_HEARTBEAT = 15000;
+
+    public static final int DEFAULT_EVENTS_MAX_SUBSCRIBERS = 100;
+
+    /** Persistence unit property that sets the number of bytes of encoded responses kept in the response cache.  If it is not set responses are not cached **/
+    public static final String RESPONSE_CACHE_SIZE = "eclipselink.jpa-rs.response-cache.max-bytes";
+
+    /** Persistence unit property that sets the size in bytes of the largest response kept in the response cache **/
+    public static final String RESPONSE_CACHE_ENTRY_SIZE = "eclipselink.jpa-rs.response-cache.max-entry-bytes";
+
+    /** Persistence unit property that sets the time in milliseconds a response is kept in the response cache.  If it is not set responses are kept until they are evicted or a write makes them stale **/
+    public static final String RESPONSE_CACHE_MAX_AGE = "eclipselink.jpa-rs.response-cache.max-age";
+
+    public static final int DEFAULT_RESPONSE_CACHE_ENTRY_SIZE = 1024 * 1024;
+
+    /** Persistence unit property that sets how tenants are cached, shared or isolated **/
+    public static final String TENANT_CACHE = "eclipselink.jpa-rs.tenant.cache";
+
+    /** Persistence unit property that names the context property the tenant-id header is passed to JPA as **/
+    public static final String TENANT_PROPERTY = "eclipselink.jpa-rs.tenant.property";
+
+    /** Persistence unit property that sets the number of EntityManagers each tenant can have open.  If it is not set tenants are not limited **/
+    public static final String TENANT_MAX_ENTITY_MANAGERS = "eclipselink.jpa-rs.tenant.max-entity-managers";
+
+    /** Persistence unit property that sets the time in milliseconds a request waits for an EntityManager of its tenant before it is rejected **/
+    public static final String TENANT_TIMEOUT = "eclipselink.jpa-rs.tenant.timeout";
+
+    /** Persistence unit property that sets the number of tenants that can have their own EntityManagerFactory when tenants are isolated.  When it is reached the factory of the tenant that has been idle longest is closed **/
+    public static final String TENANT_MAX_FACTORIES = "eclipselink.jpa-rs.tenant.max-factories";
+
+    /** Tenants share the EntityManagerFactory of the context.  Multitenant entities are kept out of the shared cache **/
+    public static final String TENANT_CACHE_SHARED = "shared";
+
+    /** Each tenant has its own EntityManagerFactory and so its own shared cache **/
+    public static final String TENANT_CACHE_ISOLATED = "isolated";
+
+    public static final int DEFAULT_TENANT_TIMEOUT = 0;
+
+    public static final int DEFAULT_TENANT_MAX_FACTORIES = 16;
+
+    /** Persistence unit property that sets the most requests that can run at once for this context.  If it is not set requests are not limited **/
+    public static final String LIMITER_MAX_LIMIT = "eclipselink.jpa-rs.limiter.max-limit";
+
+    /** Persistence unit property that sets the number of requests that can run at once before the limit has adapted **/
+    public static final String LIMITER_INITIAL_LIMIT = "eclipselink.jpa-rs.limiter.initial-limit";
+
+    /** Persistence unit property that sets the fewest requests the limit can let run at once **/
+    public static final String LIMITER_MIN_LIMIT = "eclipselink.jpa-rs.limiter.min-limit";
+
+    /** Persistence unit property that sets the time in milliseconds a request waits to be admitted before it is rejected **/
+    public static final String LIMITER_MAX_WAIT = "eclipselink.jpa-rs.limiter.max-wait";
+
+    /** Persistence unit property that sets the number of requests each tenant can have waiting to be admitted **/
+    public static final String LIMITER_QUEUE_SIZE = "eclipselink.jpa-rs.limiter.queue-size";
+
+    /** Persistence unit property that sets the seconds rejected clients are told to wait before they retry **/
+    public static final String LIMITER_RETRY_AFTER = "eclipselink.jpa-rs.limiter.retry-after";
+
+    public static final int DEFAULT_LIMITER_INITIAL_LIMIT = 20;
+
+    public static final int DEFAULT_LIMITER_MIN_LIMIT = 1;
+
+    public static final int DEFAULT_LIMITER_MAX_WAIT = 50;
+
+    public static final int DEFAULT_LIMITER_QUEUE_SIZE = 10;
+
+    public static final int DEFAULT_LIMITER_RETRY_AFTER = 1;
+
+    /** Persistence unit property that sets the time in milliseconds after which a request is logged with its trace.  If it is not set requests are not traced **/
+    public static final String TRACE_THRESHOLD = "eclipselink.jpa-rs.trace.slow-threshold";
+
+    /** Persistence unit property that sets the percentage of traced requests the SQL is captured for, unless the caller sampled them **/
+    public static final String TRACE_SAMPLE_PERCENT = "eclipselink.jpa-rs.trace.sample-percent";
+
+    public static final int DEFAULT_TRACE_SAMPLE_PERCENT = 1;
+
 
     /**
      * Static setter for the EVENT_LISTENER_FACTORY
@@ -129,12 +324,68 @@ public class PersistenceContext {
     
     private TransactionWrapper transaction = null;
 
+    /** Configured marshallers and unmarshallers for the JAXBContext, created on first use **/
+    private MarshallerPool marshallerPool = null;
+
+    /** Runs the database work of requests for this context, if configured **/
+    private BoundedExecutor executor = null;
+
+    private boolean executorInitialized = false;
+
+    /** Admits the requests for this context, if configured **/
+    private ConcurrencyLimiter limiter = null;
+
+    private boolean limiterInitialized = false;
+
+    /** Encoded metadata documents keyed by document, media type and base URI, least recently used first **/
+    private Map<String, CachedResponse> metadataCache = null;
+
+    /** Passes change events to event stream clients, created when the first client subscribes **/
+    private EventBroadcaster eventBroadcaster = null;
+
+    /** The entities change notification has been subscribed to for event streams **/
+    private Set<String> eventEntities = new HashSet<String>();
+
+    /** Encoded responses to reads, created on first use if it is configured **/
+    private ResponseCache responseCache = null;
+
+    private boolean responseCacheInitialized = false;
+
+    /** The response cache has been added as a listener to change notification **/
+    private boolean responseCacheListening = false;
+
+    /** The persistence unit and properties the context was bootstrapped from, if it was bootstrapped from an archive **/
+    private PersistenceUnitInfo persistenceUnitInfo = null;
+
+    private Map<String, Object> properties = null;
+
+    /** The EntityManagerFactory of each tenant when tenants are isolated, created on first use, least recently used first **/
+    private Map<String, TenantFactory> tenantFactories = new LinkedHashMap<String, TenantFactory>(16, 0.75f, true);
+
+    /** Limits the EntityManagers of each tenant, if configured **/
+    private TenantQuota tenantQuota = null;
+
+    private boolean tenantQuotaInitialized = false;
+
+    /** The slow request threshold in milliseconds, 0 if requests are not traced **/
+    private int traceThreshold = 0;
+
+    private boolean tracingInitialized = false;
+
+    /** Parsed ad-hoc JPQL queries, created on first use **/
+    private JPQLQueryCache jpqlCache = null;
+
+    /** Plans for setting the parameters and hints of requests on named queries, keyed by query name **/
+    private Map<String, QueryPlan> queryPlans = new ConcurrentHashMap<String, QueryPlan>();
+
     public PersistenceContext(Archive archive, Map<String, Object> properties, ClassLoader classLoader){
         super();
         List<SEPersistenceUnitInfo> persistenceUnits = PersistenceUnitProcessor.getPersistenceUnits(archive, classLoader);
         SEPersistenceUnitInfo persistenceUnitInfo = persistenceUnits.get(0);
         
         this.name = persistenceUnitInfo.getPersistenceUnitName();
+        this.persistenceUnitInfo = persistenceUnitInfo;
+        this.properties = properties;
 
         EntityManagerFactoryImpl emf = createEntityManagerFactory(persistenceUnitInfo, properties);
         this.emf = emf;
@@ -210,7 +461,70 @@ public class PersistenceContext {
         }
         changeListener.addChangeListener(listener);
     }
-    
+
+    /**
+     * A part of the facade over the JPA API
+     * Run an ordered list of persist, merge and delete operations in a single EntityManager and
+     * commit them in one transaction.  If any operation fails, the whole transaction is rolled back.
+     *
+     * Entities for persist and merge operations are unmarshalled using the given media type before the
+     * transaction is started.
+     * @param tenantId
+     * @param operations
+     * @param contentType
+     * @return the result of each operation, in order: the persisted entity, the merged entity or
+     * the deleted entity (null if there was nothing to delete)
+     * @throws JAXBException
+     */
+    public List<Object> batch(String tenantId, List<BatchOperation> operations, MediaType contentType) throws JAXBException {
+        List<Object> values = new ArrayList<Object>(operations.size());
+        for (BatchOperation operation: operations){
+            if (operation.isDelete()){
+                values.add(IdHelper.buildId(this, operation.getType(), operation.getId()));
+            } else {
+                try {
+                    values.add(unmarshalEntity(operation.getType(), tenantId, contentType, new ByteArrayInputStream(operation.getEntity().getBytes("UTF-8"))));
+                } catch (UnsupportedEncodingException e){
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        EntityManager em = createEntityManager(tenantId);
+        List<Object> results = new ArrayList<Object>(operations.size());
+        try {
+            transaction.beginTransaction(em);
+            try {
+                for (int i = 0; i < operations.size(); i++){
+                    BatchOperation operation = operations.get(i);
+                    Object value = values.get(i);
+                    if (operation.isDelete()){
+                        Object entity = em.find(getClass(operation.getType()), value);
+                        if (entity != null){
+                            em.remove(entity);
+                        }
+                        results.add(entity);
+                    } else if (BatchOperation.PERSIST.equals(operation.getOperation())){
+                        em.persist(value);
+                        results.add(value);
+                    } else {
+                        results.add(em.merge(value));
+                    }
+                }
+                transaction.commitTransaction(em);
+            } catch (RuntimeException e){
+                transaction.rollbackTransaction(em);
+                throw e;
+            }
+            for (BatchOperation operation: operations){
+                invalidateResponses(getDescriptor(operation.getType()));
+            }
+            return results;
+        } finally {
+            closeEntityManager(tenantId, em);
+        }
+    }
+
     /**
      * A part of the facade over the JPA API
      * Persist an entity in JPA and commit
@@ -218,13 +532,14 @@ public class PersistenceContext {
      * @param entity
      */
     public void create(String tenantId, Object entity) {
-        EntityManager em = getEmf().createEntityManager();
+        EntityManager em = createEntityManager(tenantId);
         try {
             transaction.beginTransaction(em);
             em.persist(entity);
             transaction.commitTransaction(em);
+            invalidateResponses(getDescriptorForClass(entity.getClass()));
         } finally {
-            em.close();
+            closeEntityManager(tenantId, em);
         }
     }
     
@@ -264,12 +579,191 @@ public class PersistenceContext {
     
     /**
      * A part of the facade over the JPA API
-     * Create an EntityManager from the EntityManagerFactory wrapped by this persistence context
-     * @param tenantId
+     * Create an EntityManager for a tenant.  When tenants are shared the tenant id is set on an
+     * EntityManager of the EntityManagerFactory wrapped by this persistence context as the context
+     * property named by eclipselink.jpa-rs.tenant.property.  When they are isolated it comes from the
+     * EntityManagerFactory of the tenant.
+     *
+     * If tenants are limited, the EntityManager counts against the limit of the tenant until it is
+     * closed with closeEntityManager.
+     * @param tenantId the tenant, or null for an EntityManager that is not specific to a tenant
      * @return
+     * @throws RejectedExecutionException if the tenant is at its limit
      */
     protected EntityManager createEntityManager(String tenantId) {
-        return getEmf().createEntityManager();
+        if (tenantId == null){
+            return getEmf().createEntityManager();
+        }
+        TenantQuota quota = getTenantQuota();
+        if (quota != null){
+            quota.acquire(tenantId);
+        }
+        try {
+            if (TENANT_CACHE_ISOLATED.equals(getEmf().getProperties().get(TENANT_CACHE))){
+                return createTenantEntityManager(tenantId);
+            }
+            Map<String, Object> tenantProperties = new HashMap<String, Object>(1);
+            tenantProperties.put(getTenantProperty(), tenantId);
+            return getEmf().createEntityManager(tenantProperties);
+        } catch (RuntimeException e){
+            if (quota != null){
+                quota.release(tenantId);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Close an EntityManager created with createEntityManager
+     * @param tenantId the tenant the EntityManager was created for
+     * @param em
+     */
+    protected void closeEntityManager(String tenantId, EntityManager em) {
+        try {
+            em.close();
+        } finally {
+            if (tenantId != null && TENANT_CACHE_ISOLATED.equals(getEmf().getProperties().get(TENANT_CACHE))){
+                releaseTenantEntityManager(tenantId);
+            }
+            TenantQuota quota = getTenantQuota();
+            if (tenantId != null && quota != null){
+                quota.release(tenantId);
+            }
+        }
+    }
+
+    /**
+     * Create an EntityManager of the EntityManagerFactory of an isolated tenant.  The factory is not
+     * closed to make room for another tenant until the EntityManager is released.
+     * @param tenantId
+     * @return
+     * @throws RejectedExecutionException if the number of tenants with their own EntityManagerFactory is at
+     * its limit and every one of them has EntityManagers open
+     * @see #releaseTenantEntityManager(String)
+     */
+    protected synchronized EntityManager createTenantEntityManager(String tenantId) {
+        TenantFactory factory = getTenantFactory(tenantId);
+        EntityManager em = factory.emf.createEntityManager();
+        factory.entityManagers++;
+        return em;
+    }
+
+    /**
+     * Release an EntityManager created with createTenantEntityManager once it is closed
+     * @param tenantId
+     */
+    protected synchronized void releaseTenantEntityManager(String tenantId) {
+        TenantFactory factory = tenantFactories.get(tenantId);
+        if (factory != null && factory.entityManagers > 0){
+            factory.entityManagers--;
+        }
+    }
+
+    /**
+     * Return the EntityManagerFactory of an isolated tenant.  It is bootstrapped from the same persistence
+     * unit as the one wrapped by this persistence context, with the tenant id set for the whole factory, so
+     * the tenant gets its own session and shared cache.
+     *
+     * Once eclipselink.jpa-rs.tenant.max-factories tenants have a factory, the factory of the least
+     * recently used tenant that has no EntityManager open is closed, so tenant ids that are only seen
+     * once do not keep the slots.
+     * @param tenantId
+     * @return
+     * @throws RejectedExecutionException if the number of tenants with their own EntityManagerFactory is at
+     * its limit and every one of them has EntityManagers open
+     */
+    protected synchronized TenantFactory getTenantFactory(String tenantId) {
+        TenantFactory factory = tenantFactories.get(tenantId);
+        if (factory == null){
+            if (tenantFactories.size() >= getIntProperty(TENANT_MAX_FACTORIES, DEFAULT_TENANT_MAX_FACTORIES)){
+                evictTenantFactory();
+            }
+            EntityManagerFactory tenantEmf = null;
+            Map<String, Object> tenantProperties = new HashMap<String, Object>();
+            if (properties != null){
+                tenantProperties.putAll(properties);
+            }
+            tenantProperties.put(getTenantProperty(), tenantId);
+            tenantProperties.put(PersistenceUnitProperties.MULTITENANT_SHARED_EMF, "false");
+            // dynamic entities must be built from the same classes as those of the JAXBContext
+            tenantProperties.put(PersistenceUnitProperties.CLASSLOADER, JpaHelper.getServerSession(getEmf()).getPlatform().getConversionManager().getLoader());
+            if (persistenceUnitInfo != null){
+                tenantEmf = createEntityManagerFactory(persistenceUnitInfo, tenantProperties);
+            } else {
+                tenantEmf = Persistence.createEntityManagerFactory(getName(), tenantProperties);
+            }
+            if (getTraceThreshold() > 0){
+                JpaHelper.getServerSession(tenantEmf).getEventManager().addListener(new SQLTraceListener());
+            }
+            factory = new TenantFactory(tenantEmf);
+            tenantFactories.put(tenantId, factory);
+        }
+        return factory;
+    }
+
+    /**
+     * Close the EntityManagerFactory of the least recently used tenant that has no EntityManager open
+     * @throws RejectedExecutionException if every tenant has EntityManagers open
+     */
+    private void evictTenantFactory() {
+        for (Iterator<Map.Entry<String, TenantFactory>> iterator = tenantFactories.entrySet().iterator(); iterator.hasNext();){
+            Map.Entry<String, TenantFactory> entry = iterator.next();
+            if (entry.getValue().entityManagers == 0){
+                iterator.remove();
+                entry.getValue().emf.close();
+                // queries prepared for the closed session must not be run again
+                getJPQLCache().removeAll(entry.getKey() + '\u0000');
+                return;
+            }
+        }
+        throw new RejectedExecutionException("Too many tenants for " + getName());
+    }
+
+    /**
+     * Close the EntityManagerFactories of isolated tenants
+     */
+    protected synchronized void closeTenantFactories() {
+        for (TenantFactory factory: tenantFactories.values()){
+            factory.emf.close();
+        }
+        tenantFactories.clear();
+    }
+
+    /**
+     * The EntityManagerFactory of an isolated tenant, with the number of its EntityManagers that are open
+     */
+    protected static class TenantFactory {
+
+        private EntityManagerFactory emf;
+        private int entityManagers = 0;
+
+        private TenantFactory(EntityManagerFactory emf){
+            this.emf = emf;
+        }
+    }
+
+    /**
+     * Return the limit on the EntityManagers of each tenant.  It is configured with the
+     * eclipselink.jpa-rs.tenant.max-entity-managers and eclipselink.jpa-rs.tenant.timeout persistence unit properties.
+     * @return the limit, or null if tenants are not limited
+     */
+    public synchronized TenantQuota getTenantQuota() {
+        if (!tenantQuotaInitialized){
+            int maxEntityManagers = getIntProperty(TENANT_MAX_ENTITY_MANAGERS, 0);
+            if (maxEntityManagers > 0){
+                tenantQuota = new TenantQuota(maxEntityManagers, getIntProperty(TENANT_TIMEOUT, DEFAULT_TENANT_TIMEOUT));
+            }
+            tenantQuotaInitialized = true;
+        }
+        return tenantQuota;
+    }
+
+    private String getTenantProperty() {
+        Object property = getEmf().getProperties().get(TENANT_PROPERTY);
+        if (property == null){
+            return PersistenceUnitProperties.MULTITENANT_PROPERTY_DEFAULT;
+        }
+        return property.toString();
     }
     
     /**
@@ -299,7 +793,7 @@ public class PersistenceContext {
      *  Delete the given entity in JPA and commit the changes
      */
     public void delete(String tenantId, String type, Object id) {
-        EntityManager em = getEmf().createEntityManager();
+        EntityManager em = createEntityManager(tenantId);
 
         try {
             transaction.beginTransaction(em);
@@ -308,8 +802,9 @@ public class PersistenceContext {
                 em.remove(entity);          
             }
             transaction.commitTransaction(em);
+            invalidateResponses(getDescriptor(type));
         } finally {
-            em.close();
+            closeEntityManager(tenantId, em);
         }
     }
     
@@ -342,16 +837,116 @@ public class PersistenceContext {
      * @param tenantId
      * @param entityName
      * @param id
-     * @param properties - query hints used on the find
+     * @param properties - query hints used on the find.  If the FieldsHelper.FIELDS_HINT is given only
+     * the attributes it lists are read and returned.  If the ExpandHelper.EXPAND_HINT is given an
+     * ExpandedResult is returned.
      * @return
+     * @throws IllegalArgumentException if the fields or expand hint names an attribute the entity does not have
      */
     public Object find(String tenantId, String entityName, Object id, Map<String, Object> properties) {
-        EntityManager em = getEmf().createEntityManager();
+        EntityManager em = createEntityManager(tenantId);
 
         try {
-            return em.find(getClass(entityName), id, properties);
+            if (properties == null || !(properties.containsKey(FieldsHelper.FIELDS_HINT) || properties.containsKey(ExpandHelper.EXPAND_HINT))){
+                return em.find(getClass(entityName), id, properties);
+            }
+            // fields and expanded relationships are set on a query as hints that em.find does not take
+            ReadObjectQuery readQuery = new ReadObjectQuery(getClass(entityName));
+            readQuery.setSelectionId(id);
+            Query query = JpaHelper.getEntityManager(em).createQuery(readQuery);
+            setParametersAndHints(query, readQuery, null, properties);
+            Object entity = null;
+            try {
+                entity = query.getSingleResult();
+            } catch (NoResultException e){
+                return null;
+            }
+            return buildResult(query, properties, entity);
         } finally {
-            em.close();
+            closeEntityManager(tenantId, em);
+        }
+    }
+
+    /**
+     * A part of the facade over the JPA API
+     * Find the entities with the given name and ids.  Each id is first looked up in the cache, and the
+     * entities that are not cached are read with a single query that selects them by primary key, with IN
+     * for a single primary key attribute and a disjunction of the key values for composite keys.
+     * @param tenantId
+     * @param entityName
+     * @param ids primary key strings as used in the find URL
+     * @param hints query hints used on the query, including the fields and expand hints
+     * @return a list with the entity for each id, in the order of the ids, or null for an id with no
+     * entity.  If the ExpandHelper.EXPAND_HINT is given the list is wrapped in an ExpandedResult.
+     * @throws IllegalArgumentException if an id is not valid or a hint names an attribute the entity does not have
+     */
+    public Object findAll(String tenantId, String entityName, List<String> ids, Map<String, Object> hints) {
+        ClassDescriptor descriptor = getDescriptor(entityName);
+        AbstractSession session = (AbstractSession)JpaHelper.getServerSession(getEmf());
+        List<DatabaseMapping> pkMappings = descriptor.getObjectBuilder().getPrimaryKeyMappings();
+        List<Object> results = new ArrayList<Object>(Collections.nCopies(ids.size(), null));
+        // the positions of each key that was not cached, a key can be asked for more than once
+        Map<List<Object>, List<Integer>> misses = new LinkedHashMap<List<Object>, List<Integer>>();
+        Map<String, Object> cacheOnly = new HashMap<String, Object>();
+        cacheOnly.put(QueryHints.CACHE_USAGE, CacheUsage.CheckCacheOnly);
+
+        EntityManager em = createEntityManager(tenantId);
+        try {
+            for (int i = 0; i < ids.size(); i++){
+                Object[] keyElements = IdHelper.buildKeyElements(this, descriptor, ids.get(i));
+                Object entity = em.find(descriptor.getJavaClass(), IdHelper.buildId(this, descriptor, keyElements), cacheOnly);
+                if (entity != null){
+                    results.set(i, entity);
+                } else {
+                    List<Object> key = Arrays.asList(keyElements);
+                    List<Integer> positions = misses.get(key);
+                    if (positions == null){
+                        positions = new ArrayList<Integer>();
+                        misses.put(key, positions);
+                    }
+                    positions.add(i);
+                }
+            }
+
+            ReadAllQuery readQuery = new ReadAllQuery(descriptor.getJavaClass());
+            ExpressionBuilder builder = readQuery.getExpressionBuilder();
+            Expression criteria = null;
+            if (pkMappings.size() == 1){
+                List<Object> values = new ArrayList<Object>(misses.size());
+                for (List<Object> key: misses.keySet()){
+                    values.add(key.get(0));
+                }
+                criteria = builder.get(pkMappings.get(0).getAttributeName()).in(values);
+            } else {
+                for (List<Object> key: misses.keySet()){
+                    Expression match = null;
+                    for (int i = 0; i < pkMappings.size(); i++){
+                        Expression value = builder.get(pkMappings.get(i).getAttributeName()).equal(key.get(i));
+                        match = match == null ? value : match.and(value);
+                    }
+                    criteria = criteria == null ? match : criteria.or(match);
+                }
+            }
+            readQuery.setSelectionCriteria(criteria);
+            Query query = JpaHelper.getEntityManager(em).createQuery(readQuery);
+            setParametersAndHints(query, readQuery, null, hints);
+            if (!misses.isEmpty()){
+                for (Object entity: query.getResultList()){
+                    List<Object> key = new ArrayList<Object>(pkMappings.size());
+                    for (DatabaseMapping mapping: pkMappings){
+                        key.add(mapping.getRealAttributeValueFromObject(entity, session));
+                    }
+                    List<Integer> positions = misses.get(key);
+                    if (positions != null){
+                        for (Integer position: positions){
+                            results.set(position, entity);
+                        }
+                    }
+                }
+            }
+            return buildResult(query, hints, results);
+        } finally {
+            closeEntityManager(tenantId, em);
         }
     }
 
@@ -431,7 +1026,7 @@ public class PersistenceContext {
      * @return
      */
     public Object merge(String tenantId, Object entity) {
-        EntityManager em = getEmf().createEntityManager();
+        EntityManager em = createEntityManager(tenantId);
         Object mergedEntity = null;
         try {
             transaction.beginTransaction(em);
@@ -445,9 +1040,16 @@ public class PersistenceContext {
                 mergedEntity = em.merge(entity);
             }
             transaction.commitTransaction(em);
+            if (entity instanceof List){
+                for (Object o: (List)entity){
+                    invalidateResponses(getDescriptorForClass(o.getClass()));
+                }
+            } else {
+                invalidateResponses(getDescriptorForClass(entity.getClass()));
+            }
             return mergedEntity;
         } finally {
-            em.close();
+            closeEntityManager(tenantId, em);
         }
     }
     
@@ -504,71 +1106,934 @@ public class PersistenceContext {
      * @param returnSingleResult
      * @return
      */
-    @SuppressWarnings("rawtypes")
     public Object query(String name, Map<?, ?> parameters, Map<String, ?> hints, boolean returnSingleResult, boolean executeUpdate) {
-        EntityManager em = getEmf().createEntityManager();
+        return query(null, name, parameters, hints, returnSingleResult, executeUpdate);
+    }
+
+    /**
+     * A part of the facade over the JPA API
+     * Run a query with the given name in JPA for a tenant and return the result
+     * @param tenantId
+     * @param name
+     * @param parameters
+     * @param hints
+     * @param returnSingleResult
+     * @return
+     */
+    public Object query(String tenantId, String name, Map<?, ?> parameters, Map<String, ?> hints, boolean returnSingleResult, boolean executeUpdate) {
+        EntityManager em = createEntityManager(tenantId);
         try{
-            Query query = em.createNamedQuery(name);
-            DatabaseQuery dbQuery = ((EJBQueryImpl<?>)query).getDatabaseQuery();
-            if (parameters != null){
-                Iterator i=parameters.keySet().iterator();
-                while (i.hasNext()){
-                    String key = (String)i.next();
-                    Class parameterClass = null;
-                    int index = dbQuery.getArguments().indexOf(key);
-                    if (index >= 0){
-                        parameterClass = dbQuery.getArgumentTypes().get(index);
-                    }
-                    Object parameter = parameters.get(key);
-                    if (parameterClass != null){
-                        parameter = ConversionManager.getDefaultManager().convertObject(parameter, parameterClass);
-                    }
-                    query.setParameter(key, parameter);
-                }
-            }
-            if (hints != null){
-                for (String key:  hints.keySet()){
-                    query.setHint(key, hints.get(key));
-                }
-            }
+            Query query = createNamedQuery(em, name, parameters, hints);
             if (executeUpdate){
                 transaction.beginTransaction(em);
                 Object result = query.executeUpdate();
                 transaction.commitTransaction(em);
+                DatabaseQuery dbQuery = ((EJBQueryImpl<?>)query).getDatabaseQuery();
+                if (dbQuery instanceof ModifyAllQuery){
+                    invalidateResponses(getDescriptorForClass(((ModifyAllQuery)dbQuery).getReferenceClass()));
+                } else {
+                    invalidateAllResponses();
+                }
                 return result;
             } else if (returnSingleResult){
-                return query.getSingleResult();
+                return buildResult(query, hints, query.getSingleResult());
             } else {
-                return query.getResultList();
+                return buildResult(query, hints, query.getResultList());
             }
         } finally {
-            em.close();
+            closeEntityManager(tenantId, em);
         }
     }
     
     /**
-     * Remove a given change listener.  Used in interacting with an application-provided mechanism for listenig
-     * to database events.
-     * @param listener
+     * A part of the facade over the JPA API
+     * Run a read query given as JPQL.  The query parsed from the JPQL is kept in the JPQL cache of this
+     * context so running the same JPQL again does not parse it.
+     * @param jpql
+     * @param parameters
+     * @param hints
+     * @return
+     * @throws IllegalArgumentException if the JPQL is not valid or does not read
      */
-    public void remove(ChangeListener listener) {
-        DescriptorBasedDatabaseEventListener changeListener = (DescriptorBasedDatabaseEventListener) JpaHelper.getDatabaseSession(getEmf()).getProperty(CHANGE_NOTIFICATION_LISTENER);
-        if (changeListener != null) {
-            changeListener.removeChangeListener(listener);
-        }
+    public Object jpqlQuery(String jpql, Map<?, ?> parameters, Map<String, ?> hints) {
+        return jpqlQuery(null, jpql, parameters, hints);
     }
-    
-    public void setBaseURI(URI baseURI) {
-        this.baseURI = baseURI;
-    }
-    
+
     /**
-     * Stop the current application instance
+     * A part of the facade over the JPA API
+     * Run a read query given as JPQL for a tenant.
+     * @param tenantId
+     * @param jpql
+     * @param parameters
+     * @param hints
+     * @return
+     * @throws IllegalArgumentException if the JPQL is not valid or does not read, or a hint can not be set on it
+     * @throws RejectedExecutionException if the tenant is at its limit
+     * @see #jpqlQuery(String, Map, Map)
      */
-    protected void stop() {
-        emf.close();
-        this.emf = null;
-        this.context = null;
+    public Object jpqlQuery(String tenantId, String jpql, Map<?, ?> parameters, Map<String, ?> hints) {
+        EntityManager em = createEntityManager(tenantId);
+        try{
+            JPQLQueryCache cache = getJPQLCache();
+            // isolated tenants have sessions of their own, so their queries are prepared and cached apart
+            String key = jpql;
+            if (tenantId != null && TENANT_CACHE_ISOLATED.equals(getEmf().getProperties().get(TENANT_CACHE))){
+                key = tenantId + '\u0000' + jpql;
+            }
+            DatabaseQuery dbQuery = cache.get(key);
+            if (dbQuery == null){
+                dbQuery = ((EJBQueryImpl<?>)em.createQuery(jpql)).getDatabaseQuery();
+                if (!dbQuery.isReadQuery()){
+                    throw new IllegalArgumentException("Only queries that read can be run as JPQL");
+                }
+                dbQuery.checkPrepare((AbstractSession)JpaHelper.getEntityManager(em).getServerSession(), new DatabaseRecord());
+                cache.put(key, dbQuery);
+            }
+            ClassDescriptor descriptor = null;
+            if (dbQuery.isObjectLevelReadQuery() && !dbQuery.isReportQuery()){
+                descriptor = getDescriptorForClass(((ObjectLevelReadQuery)dbQuery).getReferenceClass());
+            }
+            // ad-hoc queries take the same hints as named queries
+            QueryPlan.checkHints(jpql, descriptor, hints);
+            // parameters and hints are set on a copy so the cached query is not changed
+            DatabaseQuery readQuery = (DatabaseQuery)dbQuery.clone();
+            Query query = JpaHelper.getEntityManager(em).createQuery(readQuery);
+            setParametersAndHints(query, readQuery, parameters, hints);
+            return buildResult(query, hints, query.getResultList());
+        } finally {
+            closeEntityManager(tenantId, em);
+        }
+    }
+
+    /**
+     * Return true if clients may run ad-hoc JPQL against this context, as set with the
+     * eclipselink.jpa-rs.jpql.enabled persistence unit property
+     * @return
+     */
+    public boolean isJPQLEnabled() {
+        Object value = getEmf().getProperties().get(JPQL_ENABLED);
+        return value != null && Boolean.parseBoolean(value.toString());
+    }
+
+    /**
+     * Return the cache of queries parsed from ad-hoc JPQL.  Its size is set with the
+     * eclipselink.jpa-rs.jpql.cache-size persistence unit property.
+     * @return
+     */
+    public synchronized JPQLQueryCache getJPQLCache() {
+        if (jpqlCache == null){
+            jpqlCache = new JPQLQueryCache(getIntProperty(JPQL_CACHE_SIZE, DEFAULT_JPQL_CACHE_SIZE));
+        }
+        return jpqlCache;
+    }
+
+    /**
+     * A part of the facade over the JPA API
+     * Run a read query with the given name in JPA through a database cursor and marshall each result to the
+     * output as it is read.  Results are read-only and are released from the cursor once they have been written,
+     * so memory use does not depend on the size of the result.  Read-only results are the instances of the
+     * shared cache, so dynamic entities are copied before their self link is set on them.
+     * 
+     * JSON results are written as an array, XML results as a List element.  The response has already
+     * been sent with its status when results are read, so if reading fails the output ends with an
+     * error object, an error element or a binary error instead of the end of the list, and is left
+     * unterminated.
+     * @param name
+     * @param parameters
+     * @param hints
+     * @param mediaType
+     * @param output
+     * @throws JAXBException
+     * @throws IOException
+     */
+    public void streamQuery(String name, Map<?, ?> parameters, Map<String, ?> hints, MediaType mediaType, OutputStream output) throws JAXBException, IOException {
+        streamQuery(null, name, parameters, hints, mediaType, output);
+    }
+
+    /**
+     * A part of the facade over the JPA API
+     * Run a read query with the given name for a tenant and stream its results to the output.
+     * @param tenantId
+     * @param name
+     * @param parameters
+     * @param hints
+     * @param mediaType
+     * @param output
+     * @throws JAXBException
+     * @throws IOException
+     * @throws RejectedExecutionException if the tenant is at its limit
+     * @see #streamQuery(String, Map, Map, MediaType, OutputStream)
+     */
+    public void streamQuery(String tenantId, String name, Map<?, ?> parameters, Map<String, ?> hints, MediaType mediaType, OutputStream output) throws JAXBException, IOException {
+        EntityManager em = createEntityManager(tenantId);
+        CursoredStream cursor = null;
+        try{
+            Query query = createNamedQuery(em, name, parameters, hints);
+            query.setHint(QueryHints.CURSOR, Boolean.TRUE);
+            query.setHint(QueryHints.READ_ONLY, Boolean.TRUE);
+            if (hints == null || !hints.containsKey(QueryHints.JDBC_FETCH_SIZE)){
+                query.setHint(QueryHints.JDBC_FETCH_SIZE, getStreamFetchSize());
+            }
+            cursor = (CursoredStream)query.getSingleResult();
+            FetchGroup fetchGroup = getFieldsFetchGroup(query, hints);
+            if (BinaryCodec.isBinary(mediaType)){
+                writeCursor(cursor, fetchGroup, new BinaryCodec.Encoder(this, output));
+                return;
+            }
+            Marshaller marshaller = getMarshallerPool().borrowMarshaller(mediaType);
+            try{
+                writeCursor(cursor, fetchGroup, marshaller, mediaType, output);
+            } finally {
+                getMarshallerPool().returnMarshaller(mediaType, marshaller);
+            }
+        } finally {
+            if (cursor != null){
+                cursor.close();
+            }
+            closeEntityManager(tenantId, em);
+        }
+    }
+
+    /**
+     * Marshall the entities read from a cursor to the output as a JSON array or an XML List element
+     */
+    private void writeCursor(CursoredStream cursor, FetchGroup fetchGroup, Marshaller marshaller, MediaType mediaType, OutputStream output) throws JAXBException, IOException {
+        AbstractSession session = (AbstractSession)JpaHelper.getServerSession(getEmf());
+        if (mediaType == MediaType.APPLICATION_XML_TYPE){
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+            XMLStreamWriter writer = null;
+            boolean complete = false;
+            try{
+                writer = XMLOutputFactory.newFactory().createXMLStreamWriter(output);
+                writer.writeStartDocument();
+                writer.writeStartElement("List");
+                while (!cursor.atEnd()){
+                    marshaller.marshal(readCursor(cursor, fetchGroup, session), writer);
+                    cursor.releasePrevious();
+                }
+                writer.writeEndDocument();
+                writer.flush();
+                complete = true;
+            } catch (XMLStreamException e){
+                throw new JAXBException(e);
+            } finally {
+                if (!complete && writer != null){
+                    try {
+                        writer.writeStartElement("error");
+                        writer.writeCharacters(STREAM_ERROR);
+                        writer.writeEndElement();
+                        writer.flush();
+                    } catch (XMLStreamException e){
+                        // the client is gone
+                    }
+                }
+            }
+        } else {
+            output.write('[');
+            boolean first = true;
+            boolean complete = false;
+            try {
+                while (!cursor.atEnd()){
+                    if (!first){
+                        output.write(',');
+                    }
+                    marshaller.marshal(readCursor(cursor, fetchGroup, session), output);
+                    cursor.releasePrevious();
+                    first = false;
+                }
+                output.write(']');
+                complete = true;
+            } finally {
+                if (!complete){
+                    try {
+                        output.write(((first ? "" : ",") + "{\"error\":\"" + STREAM_ERROR + "\"}").getBytes("UTF-8"));
+                        output.flush();
+                    } catch (IOException e){
+                        // the client is gone
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the entities read from a cursor to the output as a binary list
+     */
+    private void writeCursor(CursoredStream cursor, FetchGroup fetchGroup, BinaryCodec.Encoder encoder) throws IOException {
+        AbstractSession session = (AbstractSession)JpaHelper.getServerSession(getEmf());
+        encoder.startStream();
+        boolean complete = false;
+        try {
+            while (!cursor.atEnd()){
+                encoder.writeValue(FieldsHelper.project(cursor.read(), fetchGroup, session));
+                cursor.releasePrevious();
+            }
+            encoder.endStream();
+            complete = true;
+        } finally {
+            if (!complete){
+                try {
+                    encoder.abortStream(STREAM_ERROR);
+                } catch (IOException e){
+                    // the client is gone
+                }
+            }
+        }
+        encoder.flush();
+    }
+
+    /**
+     * Read the next result of a cursor for marshalling.  The read-only result is shared with the cache, so
+     * a dynamic entity is copied, or projected onto a new instance, before its self link is set.
+     */
+    private static Object readCursor(CursoredStream cursor, FetchGroup fetchGroup, AbstractSession session) {
+        Object result = cursor.read();
+        if (fetchGroup != null){
+            return FieldsHelper.project(result, fetchGroup, session);
+        }
+        ClassDescriptor descriptor = result instanceof DynamicEntity ? session.getDescriptor(result.getClass()) : null;
+        if (descriptor == null){
+            return result;
+        }
+        Object copy = descriptor.getObjectBuilder().buildNewInstance();
+        for (DatabaseMapping mapping: descriptor.getMappings()){
+            // value holders are copied as they are, so relationships that were not read are not read now
+            mapping.setAttributeValueInObject(copy, mapping.getAttributeValueFromObject(result));
+        }
+        return copy;
+    }
+
+    /**
+     * Create a named query and set the given parameters, converted to the argument types
+     * of the query, and hints on it.
+     * @param em
+     * @param name
+     * @param parameters
+     * @param hints
+     * @return
+     */
+    protected Query createNamedQuery(EntityManager em, String name, Map<?, ?> parameters, Map<String, ?> hints) {
+        Query query = em.createNamedQuery(name);
+        DatabaseQuery dbQuery = ((EJBQueryImpl<?>)query).getDatabaseQuery();
+        QueryPlan plan = getQueryPlan(name, dbQuery);
+        plan.checkHints(hints);
+        plan.setParameters(query, parameters);
+        setHints(query, dbQuery, hints);
+        return query;
+    }
+
+    /**
+     * Return the plan for setting the parameters and hints of requests on a named query, building it
+     * the first time the query is run
+     * @param name
+     * @param dbQuery the named query
+     * @return
+     */
+    public QueryPlan getQueryPlan(String name, DatabaseQuery dbQuery) {
+        QueryPlan plan = queryPlans.get(name);
+        if (plan == null){
+            ClassDescriptor descriptor = null;
+            if (dbQuery.isObjectLevelReadQuery() && !dbQuery.isReportQuery()){
+                descriptor = getDescriptorForClass(((ObjectLevelReadQuery)dbQuery).getReferenceClass());
+            }
+            plan = new QueryPlan(name, dbQuery, descriptor);
+            queryPlans.put(name, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Set the given parameters, converted to the argument types of the query, and hints on a query
+     * @param query
+     * @param dbQuery
+     * @param parameters
+     * @param hints
+     */
+    @SuppressWarnings("rawtypes")
+    protected void setParametersAndHints(Query query, DatabaseQuery dbQuery, Map<?, ?> parameters, Map<String, ?> hints) {
+        if (parameters != null){
+            Iterator i=parameters.keySet().iterator();
+            while (i.hasNext()){
+                String key = (String)i.next();
+                Class parameterClass = null;
+                int index = dbQuery.getArguments().indexOf(key);
+                if (index >= 0){
+                    parameterClass = dbQuery.getArgumentTypes().get(index);
+                }
+                Object parameter = parameters.get(key);
+                if (parameterClass != null){
+                    parameter = ConversionManager.getDefaultManager().convertObject(parameter, parameterClass);
+                }
+                query.setParameter(key, parameter);
+            }
+        }
+        setHints(query, dbQuery, hints);
+    }
+
+    /**
+     * Set the given hints on a query.  The fields and expand hints are turned into the hints that
+     * implement them.
+     * @param query
+     * @param dbQuery
+     * @param hints
+     */
+    protected void setHints(Query query, DatabaseQuery dbQuery, Map<String, ?> hints) {
+        if (hints != null){
+            for (String key:  hints.keySet()){
+                if (FieldsHelper.FIELDS_HINT.equals(key)){
+                    ClassDescriptor descriptor = getQueryDescriptor(dbQuery, key);
+                    query.setHint(QueryHints.FETCH_GROUP, FieldsHelper.buildFetchGroup(descriptor, (String)hints.get(key)));
+                } else if (ExpandHelper.EXPAND_HINT.equals(key)){
+                    ClassDescriptor descriptor = getQueryDescriptor(dbQuery, key);
+                    ExpandHelper.setBatchHints(query, ExpandHelper.parsePaths(descriptor, (String)hints.get(key)));
+                } else {
+                    query.setHint(key, hints.get(key));
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the descriptor of the entities read by a query that a hint only applies to
+     * @param dbQuery
+     * @param hint
+     * @return
+     * @throws IllegalArgumentException if the query does not return entities
+     */
+    private ClassDescriptor getQueryDescriptor(DatabaseQuery dbQuery, String hint) {
+        if (!dbQuery.isObjectLevelReadQuery() || dbQuery.isReportQuery()){
+            throw new IllegalArgumentException("Query " + dbQuery.getName() + " does not return entities and can not use " + hint);
+        }
+        return getDescriptorForClass(((ObjectLevelReadQuery)dbQuery).getReferenceClass());
+    }
+
+    /**
+     * Project the result of a read query onto the fields requested in its hints, and collect the entities
+     * on the relationship paths requested to be expanded
+     * @param query
+     * @param hints
+     * @param result
+     * @return the result, or an ExpandedResult if relationships were expanded
+     */
+    protected Object buildResult(Query query, Map<String, ?> hints, Object result) {
+        AbstractSession session = (AbstractSession)JpaHelper.getServerSession(getEmf());
+        Object projected = FieldsHelper.project(result, getFieldsFetchGroup(query, hints), session);
+        if (hints == null || !hints.containsKey(ExpandHelper.EXPAND_HINT)){
+            return projected;
+        }
+        ClassDescriptor descriptor = getQueryDescriptor(((EJBQueryImpl<?>)query).getDatabaseQuery(), ExpandHelper.EXPAND_HINT);
+        List<String> paths = ExpandHelper.parsePaths(descriptor, (String)hints.get(ExpandHelper.EXPAND_HINT));
+        return new ExpandedResult(projected, ExpandHelper.expand(result, paths, session), paths);
+    }
+
+    /**
+     * Return the FetchGroup set on a query from the fields hint, or null if the hint was not given
+     * @param query
+     * @param hints
+     * @return
+     */
+    protected FetchGroup getFieldsFetchGroup(Query query, Map<String, ?> hints) {
+        if (hints == null || !hints.containsKey(FieldsHelper.FIELDS_HINT)){
+            return null;
+        }
+        return ((ObjectLevelReadQuery)((EJBQueryImpl<?>)query).getDatabaseQuery()).getFetchGroup();
+    }
+
+    /**
+     * A part of the facade over the JPA API
+     * Run a query with the given name in JPA and return one page of its results.
+     * 
+     * Pages are read with keyset pagination: the query is ordered by its own ORDER BY attributes
+     * followed by the primary key and the continuation token of the previous page is turned into
+     * a predicate that selects the rows that follow it, so reading a deep page costs the same as
+     * reading the first one.
+     * @param name
+     * @param parameters
+     * @param hints
+     * @param limit the maximum number of results in the page
+     * @param continuation the token returned with the previous page, or null for the first page
+     * @return
+     * @throws IllegalArgumentException if the query can not be paged or the continuation token is not valid for it
+     * @see KeysetHelper
+     */
+    public QueryPage queryPage(String name, Map<?, ?> parameters, Map<String, ?> hints, int limit, String continuation) {
+        return queryPage(null, name, parameters, hints, limit, continuation);
+    }
+
+    /**
+     * A part of the facade over the JPA API
+     * Run a query with the given name for a tenant and return one page of its results.
+     * @param tenantId
+     * @param name
+     * @param parameters
+     * @param hints
+     * @param limit the maximum number of results in the page
+     * @param continuation the token returned with the previous page, or null for the first page
+     * @return
+     * @throws IllegalArgumentException if the query can not be paged, the limit is out of range or the continuation token is not valid for it
+     * @throws RejectedExecutionException if the tenant is at its limit
+     * @see #queryPage(String, Map, Map, int, String)
+     */
+    @SuppressWarnings("unchecked")
+    public QueryPage queryPage(String tenantId, String name, Map<?, ?> parameters, Map<String, ?> hints, int limit, String continuation) {
+        if (limit < 1 || limit > getQueryMaxLimit()){
+            throw new IllegalArgumentException("Page limit " + limit + " is out of range");
+        }
+        EntityManager em = createEntityManager(tenantId);
+        try{
+            DatabaseQuery dbQuery = ((EJBQueryImpl<?>)em.createNamedQuery(name)).getDatabaseQuery();
+            if (!dbQuery.isReadAllQuery() || dbQuery.isReportQuery()){
+                throw new IllegalArgumentException("Query " + name + " does not return entities and can not be paged");
+            }
+            ReadAllQuery pageQuery = (ReadAllQuery)dbQuery.clone();
+            ClassDescriptor descriptor = getDescriptorForClass(pageQuery.getReferenceClass());
+            ConversionManager conversionManager = JpaHelper.getServerSession(getEmf()).getPlatform().getConversionManager();
+            List<SeekKey> keys = KeysetHelper.getSeekKeys(descriptor, pageQuery);
+            // the clone shares its expressions with the named query, so the page is built on a builder of its own
+            ExpressionBuilder builder = new ExpressionBuilder(pageQuery.getReferenceClass());
+            if (pageQuery.getSelectionCriteria() != null){
+                pageQuery.setSelectionCriteria(pageQuery.getSelectionCriteria().cloneUsing(builder));
+            }
+            pageQuery.setExpressionBuilder(builder);
+            pageQuery.setOrderByExpressions(KeysetHelper.buildOrderBy(builder, keys));
+            if (continuation != null){
+                Object[] values = KeysetHelper.parseContinuation(continuation, keys, conversionManager);
+                Expression seek = KeysetHelper.buildSeekExpression(builder, keys, values);
+                if (pageQuery.getSelectionCriteria() != null){
+                    seek = pageQuery.getSelectionCriteria().and(seek);
+                }
+                pageQuery.setSelectionCriteria(seek);
+            }
+            Query query = JpaHelper.getEntityManager(em).createQuery(pageQuery);
+            QueryPlan plan = getQueryPlan(name, dbQuery);
+            plan.checkHints(hints);
+            plan.setParameters(query, parameters);
+            setHints(query, pageQuery, hints);
+            // read one extra row to find out if there is a next page
+            query.setMaxResults(limit + 1);
+            List<Object> results = new ArrayList<Object>(query.getResultList());
+            String next = null;
+            if (results.size() > limit){
+                results = new ArrayList<Object>(results.subList(0, limit));
+                next = KeysetHelper.buildContinuation(results.get(limit - 1), keys, conversionManager);
+            }
+            FetchGroup fetchGroup = getFieldsFetchGroup(query, hints);
+            if (fetchGroup != null){
+                results = (List<Object>)FieldsHelper.project(results, fetchGroup, (AbstractSession)JpaHelper.getServerSession(getEmf()));
+            }
+            return new QueryPage(results, next);
+        } finally {
+            closeEntityManager(tenantId, em);
+        }
+    }
+
+    /**
+     * The JDBC fetch size used when streaming query results.  It can be set with the
+     * eclipselink.jpa-rs.stream.fetch-size persistence unit property.
+     * @return
+     */
+    protected int getStreamFetchSize() {
+        return getIntProperty(STREAM_FETCH_SIZE, DEFAULT_STREAM_FETCH_SIZE);
+    }
+
+    /**
+     * The largest number of results a page of a named query may hold.  It can be set with the
+     * eclipselink.jpa-rs.query.max-limit persistence unit property.
+     * @return
+     */
+    protected int getQueryMaxLimit() {
+        return getIntProperty(QUERY_MAX_LIMIT, DEFAULT_QUERY_MAX_LIMIT);
+    }
+
+    /**
+     * The largest number of ids a find request may ask for.  It can be set with the
+     * eclipselink.jpa-rs.find.max-ids persistence unit property.
+     * @return
+     */
+    protected int getFindMaxIds() {
+        return getIntProperty(FIND_MAX_IDS, DEFAULT_FIND_MAX_IDS);
+    }
+
+    /**
+     * Return the value of an integer persistence unit property
+     * @param name
+     * @param defaultValue the value to return if the property is not set
+     * @return
+     */
+    protected int getIntProperty(String name, int defaultValue) {
+        Object value = getEmf().getProperties().get(name);
+        if (value == null){
+            return defaultValue;
+        }
+        return Integer.parseInt(value.toString());
+    }
+
+    /**
+     * Return the executor that runs the database work of requests for this context.  It is configured
+     * with the eclipselink.jpa-rs.executor.* persistence unit properties.
+     * @return the executor, or null if requests should run on the thread they arrive on
+     */
+    public synchronized BoundedExecutor getExecutor() {
+        if (!executorInitialized){
+            int threads = getIntProperty(EXECUTOR_THREADS, 0);
+            if (threads > 0){
+                executor = new BoundedExecutor(getName(), threads, getIntProperty(EXECUTOR_QUEUE_SIZE, DEFAULT_EXECUTOR_QUEUE_SIZE), getIntProperty(EXECUTOR_TIMEOUT, DEFAULT_EXECUTOR_TIMEOUT));
+            }
+            executorInitialized = true;
+        }
+        return executor;
+    }
+
+    /**
+     * Return the time after which a request is logged with its trace.  It is set with the
+     * eclipselink.jpa-rs.trace.slow-threshold persistence unit property.  While requests are traced
+     * the SQL run for sampled requests is captured by a session event listener.
+     * @return the threshold in milliseconds, or 0 if requests are not traced
+     */
+    public synchronized int getTraceThreshold() {
+        if (!tracingInitialized){
+            traceThreshold = getIntProperty(TRACE_THRESHOLD, 0);
+            if (traceThreshold > 0){
+                JpaHelper.getServerSession(getEmf()).getEventManager().addListener(new SQLTraceListener());
+            }
+            tracingInitialized = true;
+        }
+        return traceThreshold;
+    }
+
+    /**
+     * Return the limiter that admits requests for this context.  It is configured with the
+     * eclipselink.jpa-rs.limiter.* persistence unit properties.
+     * @return the limiter, or null if requests are not limited
+     */
+    public synchronized ConcurrencyLimiter getConcurrencyLimiter() {
+        if (!limiterInitialized){
+            int maxLimit = getIntProperty(LIMITER_MAX_LIMIT, 0);
+            if (maxLimit > 0){
+                limiter = new ConcurrencyLimiter(getIntProperty(LIMITER_INITIAL_LIMIT, DEFAULT_LIMITER_INITIAL_LIMIT), getIntProperty(LIMITER_MIN_LIMIT, DEFAULT_LIMITER_MIN_LIMIT), maxLimit, getIntProperty(LIMITER_MAX_WAIT, DEFAULT_LIMITER_MAX_WAIT), getIntProperty(LIMITER_QUEUE_SIZE, DEFAULT_LIMITER_QUEUE_SIZE));
+            }
+            limiterInitialized = true;
+        }
+        return limiter;
+    }
+
+    /**
+     * Stop the executor of this context, if it has one
+     */
+    public synchronized void shutdownExecutor() {
+        if (executor != null){
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Return the cache of encoded responses to reads.  Its size is set with the
+     * eclipselink.jpa-rs.response-cache.max-bytes persistence unit property.  Once change notification
+     * is set up for the context, the cache also drops the responses made stale by changes it is told of.
+     *
+     * Without change notification only the writes made through the entity and query operations of the
+     * context make responses stale.  Writes made by session beans called through callSessionBean, or
+     * made outside JPA-RS, are not seen, so the cache is then only safe if every write goes through
+     * those operations, or if eclipselink.jpa-rs.response-cache.max-age bounds how long a stale
+     * response can be served.
+     * @return the cache, or null if responses are not cached
+     */
+    public synchronized ResponseCache getResponseCache() {
+        if (!responseCacheInitialized){
+            int maxBytes = getIntProperty(RESPONSE_CACHE_SIZE, 0);
+            if (maxBytes > 0){
+                responseCache = new ResponseCache(maxBytes, getIntProperty(RESPONSE_CACHE_ENTRY_SIZE, DEFAULT_RESPONSE_CACHE_ENTRY_SIZE), getIntProperty(RESPONSE_CACHE_MAX_AGE, 0));
+            }
+            responseCacheInitialized = true;
+            listenForResponseCache();
+        }
+        return responseCache;
+    }
+
+    /**
+     * Add the response cache as a listener to change notification, if both are set up and it has not
+     * been added yet.  Called when the cache is created and when change notification is set up, which
+     * can happen in either order.
+     */
+    private synchronized void listenForResponseCache() {
+        if (responseCache != null && !responseCacheListening && JpaHelper.getDatabaseSession(getEmf()).getProperty(CHANGE_NOTIFICATION_LISTENER) != null){
+            addListener(responseCache);
+            responseCacheListening = true;
+        }
+    }
+
+    /**
+     * Return the names of the entity types whose changes can change a response about an entity of the
+     * given type: the type itself and the types it refers to, whose links are part of the response.
+     * @param descriptor
+     * @param reachable if true, also include the types that can be reached through those types, for
+     * responses that include related entities
+     * @return
+     */
+    public Set<String> getResponseDependencies(ClassDescriptor descriptor, boolean reachable) {
+        Set<String> types = new HashSet<String>();
+        types.add(descriptor.getAlias());
+        collectRelatedTypes(descriptor, types, false, reachable);
+        return types;
+    }
+
+    /**
+     * Return the names of the entity types whose changes can change the result of a named query
+     * @param name
+     * @return the names of the types, or null if there is no query with the name
+     */
+    public Set<String> getQueryDependencies(String name) {
+        DatabaseQuery dbQuery = JpaHelper.getServerSession(getEmf()).getQuery(name);
+        if (dbQuery == null){
+            return null;
+        }
+        if (!dbQuery.isObjectLevelReadQuery() || dbQuery.isReportQuery()){
+            // the types a report can read are not tracked
+            return getAllTypes();
+        }
+        ClassDescriptor descriptor = getDescriptorForClass(((ObjectLevelReadQuery)dbQuery).getReferenceClass());
+        final Set<String> types = getResponseDependencies(descriptor, true);
+        if (dbQuery.getSelectionCriteria() != null){
+            // the query may also select on entities that are not reachable from the ones it returns
+            final Set<ClassDescriptor> others = new HashSet<ClassDescriptor>();
+            dbQuery.getSelectionCriteria().iterateOn(new ExpressionIterator() {
+                public void iterate(Expression expression) {
+                    if (expression.isExpressionBuilder() && ((ExpressionBuilder)expression).getQueryClass() != null){
+                        others.add(getDescriptorForClass(((ExpressionBuilder)expression).getQueryClass()));
+                    }
+                }
+            });
+            for (ClassDescriptor other: others){
+                if (other != null && types.add(other.getAlias())){
+                    collectRelatedTypes(other, types, false, true);
+                }
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Make the cached responses that depend on the entities of the given type stale.  Writes to the type
+     * may cascade to the types it refers to, so responses about those are made stale too.  Only the writes
+     * made through this context call this, see getResponseCache() for the others.
+     * @param descriptor
+     */
+    protected void invalidateResponses(ClassDescriptor descriptor) {
+        ResponseCache cache = getResponseCache();
+        if (cache == null || descriptor == null){
+            return;
+        }
+        Set<String> types = new HashSet<String>();
+        types.add(descriptor.getAlias());
+        collectRelatedTypes(descriptor, types, true, true);
+        for (String type: types){
+            cache.invalidate(type);
+        }
+    }
+
+    /**
+     * Make all cached responses stale
+     */
+    protected void invalidateAllResponses() {
+        ResponseCache cache = getResponseCache();
+        if (cache != null){
+            for (String type: getAllTypes()){
+                cache.invalidate(type);
+            }
+        }
+    }
+
+    private Set<String> getAllTypes() {
+        Set<String> types = new HashSet<String>();
+        for (ClassDescriptor descriptor: JpaHelper.getServerSession(getEmf()).getDescriptors().values()){
+            if (descriptor.getAlias() != null){
+                types.add(descriptor.getAlias());
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Add the names of the entity types a descriptor refers to
+     * @param descriptor
+     * @param types
+     * @param cascadedOnly only follow relationships that writes are cascaded over
+     * @param transitive also add the types those types refer to
+     */
+    private void collectRelatedTypes(ClassDescriptor descriptor, Set<String> types, boolean cascadedOnly, boolean transitive) {
+        for (DatabaseMapping mapping: descriptor.getMappings()){
+            if (!mapping.isForeignReferenceMapping()){
+                continue;
+            }
+            ForeignReferenceMapping relationship = (ForeignReferenceMapping)mapping;
+            if (cascadedOnly && !(relationship.isPrivateOwned() || relationship.isCascadePersist() || relationship.isCascadeMerge() || relationship.isCascadeRemove())){
+                continue;
+            }
+            ClassDescriptor target = relationship.getReferenceDescriptor();
+            if (target != null && target.getAlias() != null && types.add(target.getAlias()) && transitive){
+                collectRelatedTypes(target, types, cascadedOnly, transitive);
+            }
+        }
+    }
+
+    /**
+     * Return the broadcaster that passes the change events of the given entity to event stream clients,
+     * subscribing to change notification for the entity the first time
+     * @param entityName
+     * @return
+     * @throws RuntimeException if change notification is not available
+     */
+    public synchronized EventBroadcaster subscribeToEvents(String entityName) {
+        if (!eventEntities.contains(entityName)){
+            subscribeToEventNotification(entityName);
+            eventEntities.add(entityName);
+        }
+        if (eventBroadcaster == null){
+            eventBroadcaster = new EventBroadcaster(getIntProperty(EVENTS_HISTORY_SIZE, DEFAULT_EVENTS_HISTORY_SIZE), getIntProperty(EVENTS_MAX_SUBSCRIBERS, DEFAULT_EVENTS_MAX_SUBSCRIBERS));
+            addListener(eventBroadcaster);
+        }
+        return eventBroadcaster;
+    }
+
+    /**
+     * The overflow policy of event stream clients, set with the eclipselink.jpa-rs.events.overflow
+     * persistence unit property
+     * @return drop-oldest or disconnect
+     */
+    public String getEventOverflowPolicy() {
+        Object value = getEmf().getProperties().get(EVENTS_OVERFLOW);
+        return value == null ? EventSubscriber.DROP_OLDEST : value.toString();
+    }
+
+    /**
+     * Disconnect all event stream clients
+     */
+    public synchronized void shutdownEvents() {
+        if (eventBroadcaster != null){
+            remove(eventBroadcaster);
+            eventBroadcaster.unregister();
+            eventBroadcaster = null;
+        }
+    }
+
+    /**
+     * Remove a given change listener.  Used in interacting with an application-provided mechanism for listenig
+     * to database events.
+     * @param listener
+     */
+    public void remove(ChangeListener listener) {
+        DescriptorBasedDatabaseEventListener changeListener = (DescriptorBasedDatabaseEventListener) JpaHelper.getDatabaseSession(getEmf()).getProperty(CHANGE_NOTIFICATION_LISTENER);
+        if (changeListener != null) {
+            changeListener.removeChangeListener(listener);
+        }
+    }
+    
+    public void setBaseURI(URI baseURI) {
+        this.baseURI = baseURI;
+        if (marshallerPool != null){
+            marshallerPool.clear();
+        }
+    }
+
+    /**
+     * Return the pool of marshallers and unmarshallers for the JAXBContext of this PersistenceContext
+     * @return
+     */
+    public synchronized MarshallerPool getMarshallerPool() {
+        if (marshallerPool == null){
+            marshallerPool = new MarshallerPool(this, getIntProperty(MARSHALLER_POOL_SIZE, DEFAULT_MARSHALLER_POOL_SIZE));
+        }
+        return marshallerPool;
+    }
+
+    /**
+     * Return a previously encoded metadata document
+     * @param key
+     * @return the document, or null if it has not been cached
+     */
+    public CachedResponse getCachedMetadata(String key) {
+        return getMetadataCache().get(key);
+    }
+
+    /**
+     * Cache an encoded metadata document.  The metadata of a persistence context does not change
+     * over its life so documents are held until the context is replaced or closed, or until
+     * eclipselink.jpa-rs.metadata.cache-size other documents have been used more recently.  The
+     * base URI of a key comes from the Host of a request, so the number of keys is not bounded by
+     * the metadata itself.
+     * @param key
+     * @param metadata
+     * @return the document that is cached under the key
+     */
+    public CachedResponse cacheMetadata(String key, CachedResponse metadata) {
+        getMetadataCache().put(key, metadata);
+        return metadata;
+    }
+
+    /**
+     * Discard all the cached metadata documents for this persistence context
+     */
+    public synchronized void clearMetadataCache() {
+        if (metadataCache != null){
+            metadataCache.clear();
+        }
+    }
+
+    private synchronized Map<String, CachedResponse> getMetadataCache() {
+        if (metadataCache == null){
+            final int maxSize = getIntProperty(METADATA_CACHE_SIZE, DEFAULT_METADATA_CACHE_SIZE);
+            metadataCache = Collections.synchronizedMap(new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                    return size() > maxSize;
+                }
+            });
+        }
+        return metadataCache;
+    }
+    
+    /**
+     * Stop the current application instance
+     */
+    protected void stop() {
+        release();
+        emf.close();
+        this.emf = null;
+        this.context = null;
+    }
+
+    /**
+     * Stop the current application instance when another one replaces it.  The EntityManagerFactory is
+     * closed only if it was bootstrapped by this context; one provided by the caller is left open.
+     */
+    protected void stopReplaced() {
+        if (persistenceUnitInfo != null){
+            stop();
+        } else {
+            release();
+        }
+    }
+
+    /**
+     * Release the threads, event stream clients, tenant EntityManagerFactories and caches of this context
+     */
+    private void release() {
+        clearMetadataCache();
+        shutdownExecutor();
+        shutdownEvents();
+        closeTenantFactories();
+        synchronized (this){
+            if (responseCache != null){
+                if (responseCacheListening){
+                    remove(responseCache);
+                    responseCacheListening = false;
+                }
+                responseCache.clear();
+            }
+        }
     }
     
     /**
@@ -604,6 +2069,7 @@ public class PersistenceContext {
         }
         databaseEventListener.initialize(descriptor, session);
         databaseEventListener.register(session, descriptor);
+        listenForResponseCache();
         return databaseEventListener;
     }
 
@@ -612,33 +2078,52 @@ public class PersistenceContext {
     }
     
     public Object unmarshalEntity(String type, String tenantId, MediaType acceptedMedia, InputStream in) throws JAXBException {
-        Unmarshaller unmarshaller = getJAXBContext().createUnmarshaller();
-        unmarshaller.setProperty(JAXBContext.JSON_INCLUDE_ROOT, Boolean.FALSE);
-        unmarshaller.setProperty(MEDIA_TYPE, acceptedMedia.toString());
-        unmarshaller.setAdapter(new LinkAdapter(getBaseURI().toString(), this));
-        JAXBElement<?> element = unmarshaller.unmarshal(new StreamSource(in), getClass(type));
-        return element.getValue();
+        if (BinaryCodec.isBinary(acceptedMedia)){
+            Object result = null;
+            try {
+                result = BinaryCodec.decode(this, type, in, getIntProperty(BINARY_MAX_LENGTH, DEFAULT_BINARY_MAX_LENGTH), getIntProperty(BINARY_MAX_DEPTH, DEFAULT_BINARY_MAX_DEPTH));
+            } catch (IOException e){
+                throw new JAXBException(e);
+            }
+            // a binary document names its own types, which must be the one asked for
+            Class<?> expected = getClass(type);
+            for (Object value: result instanceof List ? (List<?>)result : Collections.singletonList(result)){
+                if (!expected.isInstance(value)){
+                    throw new JAXBException("Document is not a " + type);
+                }
+            }
+            return result;
+        }
+        Unmarshaller unmarshaller = getMarshallerPool().borrowUnmarshaller(acceptedMedia);
+        try {
+            JAXBElement<?> element = unmarshaller.unmarshal(new StreamSource(in), getClass(type));
+            return element.getValue();
+        } finally {
+            getMarshallerPool().returnUnmarshaller(acceptedMedia, unmarshaller);
+        }
     }
     
     public void marshallEntity(Object object, MediaType mediaType, OutputStream output) throws JAXBException {              
-        Marshaller marshaller = getJAXBContext().createMarshaller();
-        marshaller.setProperty(MEDIA_TYPE, mediaType.toString());
-        marshaller.setProperty(org.eclipse.persistence.jaxb.JAXBContext.JSON_INCLUDE_ROOT, false);
-        marshaller.setAdapter(new LinkAdapter(getBaseURI().toString(), this));
-        marshaller.setListener(new Marshaller.Listener() {
-            @Override
-            public void beforeMarshal(Object source) {   
-                if (source instanceof DynamicEntity){
-                    DynamicEntityImpl sourceImpl = (DynamicEntityImpl)source;
-                    PropertyChangeListener listener = sourceImpl._persistence_getPropertyChangeListener();
-                    sourceImpl._persistence_setPropertyChangeListener(null);
-                    ((DynamicEntity)source).set("self", source);
-                    sourceImpl._persistence_setPropertyChangeListener(listener);
-                }
+        if (BinaryCodec.isBinary(mediaType)){
+            try {
+                BinaryCodec.encode(this, object, output);
+            } catch (IOException e){
+                throw new JAXBException(e);
             }
-        });
-        
-        if (mediaType == MediaType.APPLICATION_XML_TYPE && object instanceof List){
+            return;
+        }
+        Marshaller marshaller = getMarshallerPool().borrowMarshaller(mediaType);
+        try {
+            marshallEntity(marshaller, object, mediaType, output);
+        } finally {
+            getMarshallerPool().returnMarshaller(mediaType, marshaller);
+        }
+    }
+
+    protected void marshallEntity(Marshaller marshaller, Object object, MediaType mediaType, OutputStream output) throws JAXBException {
+        if (object instanceof ExpandedResult){
+            marshallExpandedResult(marshaller, (ExpandedResult)object, mediaType, output);
+        } else if (mediaType == MediaType.APPLICATION_XML_TYPE && object instanceof List){
             marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
             XMLOutputFactory outputFactory = XMLOutputFactory.newFactory();
             XMLStreamWriter writer = null;
@@ -659,4 +2144,72 @@ public class PersistenceContext {
         }
     }
 
+    /**
+     * Marshall a result along with the entities reached through its expanded relationships.  Relationships are
+     * always marshalled as links, so the expanded entities follow the result: as
+     * {"result": ..., "expanded": [...]} in JSON and as an ExpandedResult element with result and expanded
+     * children in XML.
+     */
+    @SuppressWarnings("unchecked")
+    protected void marshallExpandedResult(Marshaller marshaller, ExpandedResult expandedResult, MediaType mediaType, OutputStream output) throws JAXBException {
+        Object result = expandedResult.getResult();
+        List<Object> results = result instanceof List ? (List<Object>)result : null;
+        try{
+            if (mediaType == MediaType.APPLICATION_XML_TYPE){
+                marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+                XMLStreamWriter writer = XMLOutputFactory.newFactory().createXMLStreamWriter(output);
+                writer.writeStartDocument();
+                writer.writeStartElement("ExpandedResult");
+                writer.writeStartElement("result");
+                if (results == null){
+                    if (result != null){
+                        marshaller.marshal(result, writer);
+                    }
+                } else {
+                    for (Object o: results){
+                        marshaller.marshal(o, writer);
+                    }
+                }
+                writer.writeEndElement();
+                writer.writeStartElement("expanded");
+                for (Object o: expandedResult.getExpanded()){
+                    marshaller.marshal(o, writer);
+                }
+                writer.writeEndDocument();
+                writer.flush();
+            } else {
+                output.write("{\"result\":".getBytes("UTF-8"));
+                if (results == null){
+                    if (result == null){
+                        output.write("null".getBytes("UTF-8"));
+                    } else {
+                        marshaller.marshal(result, output);
+                    }
+                } else {
+                    writeArray(marshaller, results, output);
+                }
+                output.write(",\"expanded\":".getBytes("UTF-8"));
+                writeArray(marshaller, expandedResult.getExpanded(), output);
+                output.write('}');
+            }
+        } catch (XMLStreamException e){
+            throw new JAXBException(e);
+        } catch (IOException e){
+            throw new JAXBException(e);
+        }
+    }
+
+    private void writeArray(Marshaller marshaller, List<Object> objects, OutputStream output) throws JAXBException, IOException {
+        output.write('[');
+        boolean first = true;
+        for (Object o: objects){
+            if (!first){
+                output.write(',');
+            }
+            marshaller.marshal(o, output);
+            first = false;
+        }
+        output.write(']');
+    }
+
 }
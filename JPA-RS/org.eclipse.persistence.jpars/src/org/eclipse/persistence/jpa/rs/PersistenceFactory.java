@@ -114,6 +114,9 @@ public class PersistenceFactory {
         initialize();
         PersistenceContext persistenceContext = getPersistenceContext(name);
         if (persistenceContext == null || replace){
+            if (persistenceContext != null){
+                persistenceContext.stopReplaced();
+            }
             DynamicClassLoader dcl = new DynamicClassLoader(Thread.currentThread().getContextClassLoader());
             Map<String, Object> properties = createProperties(dcl, originalProperties);
             properties.putAll(originalProperties);
@@ -140,9 +143,10 @@ public class PersistenceFactory {
      */
     public PersistenceContext bootstrapPersistenceContext(String name, EntityManagerFactory emf, URI baseURI, boolean replace){
         initialize();
-        PersistenceContext persistenceContext = null;
-        if (!replace){
-            persistenceContext = getPersistenceContext(name);
+        PersistenceContext persistenceContext = getPersistenceContext(name);
+        if (replace && persistenceContext != null){
+            persistenceContext.stopReplaced();
+            persistenceContext = null;
         }
         if (persistenceContext == null){
             persistenceContext = new PersistenceContext(name, (EntityManagerFactoryImpl)emf, baseURI);
@@ -159,7 +163,7 @@ public class PersistenceFactory {
     public void closePersistenceContext(String name){
         PersistenceContext context = persistenceContexts.get(name);
         if (context != null){
-            context.getEmf().close();
+            context.stop();
             persistenceContexts.remove(name);
         }
     }
@@ -189,8 +193,9 @@ public class PersistenceFactory {
         properties.put(PersistenceUnitProperties.WEAVING, "static");
 
         // For now we'll copy the connection info from admin PU
+        // batch writing, which helps batch requests that write many rows, is turned on the same way
         for (Map.Entry<String, ?> entry : originalProperties.entrySet()) {
-            if (entry.getKey().startsWith("javax") || entry.getKey().startsWith("eclipselink.log") || entry.getKey().startsWith("eclipselink.target-server")) {
+            if (entry.getKey().startsWith("javax") || entry.getKey().startsWith("eclipselink.log") || entry.getKey().startsWith("eclipselink.target-server") || entry.getKey().startsWith(PersistenceUnitProperties.BATCH_WRITING)) {
                 properties.put(entry.getKey(), entry.getValue());
             }
         }
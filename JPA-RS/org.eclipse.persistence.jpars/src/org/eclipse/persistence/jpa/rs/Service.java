@@ -15,27 +15,38 @@ package org.eclipse.persistence.jpa.rs;
 import static org.eclipse.persistence.jaxb.JAXBContext.MEDIA_TYPE;
 import static org.eclipse.persistence.jpa.rs.util.StreamingOutputMarshaller.mediaType;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import javax.annotation.PreDestroy;
 import javax.ejb.EJB;
 import javax.ejb.Singleton;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
@@ -49,6 +60,7 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.PathSegment;
@@ -69,17 +81,42 @@ import org.eclipse.persistence.internal.queries.MapContainerPolicy;
 import org.eclipse.persistence.jaxb.JAXBContext;
 import org.eclipse.persistence.jaxb.JAXBContextFactory;
 import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.jpa.rs.eventlistener.EventBroadcaster;
+import org.eclipse.persistence.jpa.rs.eventlistener.EventSubscriber;
 import org.eclipse.persistence.jpa.rs.metadata.DatabaseMetadataStore;
 import org.eclipse.persistence.jpa.rs.metadata.model.Attribute;
+import org.eclipse.persistence.jpa.rs.metadata.model.BatchOperation;
+import org.eclipse.persistence.jpa.rs.metadata.model.BatchResult;
 import org.eclipse.persistence.jpa.rs.metadata.model.Descriptor;
+import org.eclipse.persistence.jpa.rs.metadata.model.EntityKey;
+import org.eclipse.persistence.jpa.rs.metadata.model.JPQLQuery;
 import org.eclipse.persistence.jpa.rs.metadata.model.Link;
 import org.eclipse.persistence.jpa.rs.metadata.model.LinkTemplate;
 import org.eclipse.persistence.jpa.rs.metadata.model.Parameter;
 import org.eclipse.persistence.jpa.rs.metadata.model.PersistenceUnit;
 import org.eclipse.persistence.jpa.rs.metadata.model.Query;
 import org.eclipse.persistence.jpa.rs.metadata.model.SessionBeanCall;
+import org.eclipse.persistence.jpa.rs.util.BoundedExecutor;
+import org.eclipse.persistence.jpa.rs.util.BinaryCodec;
+import org.eclipse.persistence.jpa.rs.util.CachedResponse;
+import org.eclipse.persistence.jpa.rs.util.CompressionHelper;
+import org.eclipse.persistence.jpa.rs.util.ConcurrencyLimiter;
+import org.eclipse.persistence.jpa.rs.util.CursoredStreamingOutputMarshaller;
+import org.eclipse.persistence.jpa.rs.util.EntityTagHelper;
+import org.eclipse.persistence.jpa.rs.util.EventStreamOutput;
+import org.eclipse.persistence.jpa.rs.util.ExpandHelper;
+import org.eclipse.persistence.jpa.rs.util.ExpandedResult;
+import org.eclipse.persistence.jpa.rs.util.FieldsHelper;
 import org.eclipse.persistence.jpa.rs.util.IdHelper;
+import org.eclipse.persistence.jpa.rs.util.JPQLQueryCache;
+import org.eclipse.persistence.jpa.rs.util.QueryPage;
+import org.eclipse.persistence.jpa.rs.util.RequestHeaders;
+import org.eclipse.persistence.jpa.rs.util.RequestMetrics;
+import org.eclipse.persistence.jpa.rs.util.RequestTrace;
+import org.eclipse.persistence.jpa.rs.util.ResponseCache;
+import org.eclipse.persistence.jpa.rs.util.SessionBeanDispatcher;
 import org.eclipse.persistence.jpa.rs.util.StreamingOutputMarshaller;
+import org.eclipse.persistence.jpa.rs.util.TenantQuota;
 import org.eclipse.persistence.mappings.CollectionMapping;
 import org.eclipse.persistence.mappings.DatabaseMapping;
 import org.eclipse.persistence.mappings.ForeignReferenceMapping;
@@ -93,12 +130,59 @@ import org.eclipse.persistence.queries.DatabaseQuery;
  * @since EclipseLink 2.4.0
  */
 @Singleton
-@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
-@Consumes({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
+@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML, BinaryCodec.APPLICATION_BINARY })
+@Consumes({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML, BinaryCodec.APPLICATION_BINARY })
 @Path("/")
 public class Service {
 	static final Logger logger = Logger.getLogger("AppService");	
 
+    /** Query parameter that requests results of a named query to be streamed from a database cursor **/
+    public static final String STREAM_PARAMETER = "stream";
+    
+    /** Query parameter that sets the maximum number of results in a page of a named query **/
+    public static final String LIMIT_PARAMETER = "limit";
+    
+    /** Query parameter holding the continuation token of the page of a named query to read **/
+    public static final String NEXT_PARAMETER = "next";
+    
+    /** Query parameter holding a comma separated list of the attributes of entities to return **/
+    public static final String FIELDS_PARAMETER = "fields";
+    
+    /** Query parameter holding a comma separated list of the relationship paths to return the targets of **/
+    public static final String EXPAND_PARAMETER = "expand";
+    
+    /** Query parameter holding a comma separated list of the ids of entities to read in one request **/
+    public static final String IDS_PARAMETER = "ids";
+    
+    /** Query parameter that sets what happens when the event buffer of a client is full, drop-oldest or disconnect **/
+    public static final String OVERFLOW_PARAMETER = "overflow";
+    
+    /** Response header listing the requested ids of a multi-get that did not match an entity **/
+    public static final String MISSING_IDS_HEADER = "missing-ids";
+
+    public static final String RETRY_AFTER = "Retry-After";
+
+    /** The media type of the Prometheus text exposition format **/
+    public static final String METRICS_MEDIA_TYPE = "text/plain; version=0.0.4";
+    
+    /** Query parameters that are interpreted by the service and are not passed on to JPA as query hints **/
+    protected static final Set<String> SERVICE_PARAMETERS = new HashSet<String>();
+    
+    static {
+        SERVICE_PARAMETERS.add(STREAM_PARAMETER);
+        SERVICE_PARAMETERS.add(LIMIT_PARAMETER);
+        SERVICE_PARAMETERS.add(NEXT_PARAMETER);
+        SERVICE_PARAMETERS.add(FIELDS_PARAMETER);
+        SERVICE_PARAMETERS.add(EXPAND_PARAMETER);
+        SERVICE_PARAMETERS.add(IDS_PARAMETER);
+    }
+
+    /** JAXB context for the metadata model, shared by all requests since the model classes are fixed **/
+    private static JAXBContext metadataContext = null;
+
+    /** Caches the beans, methods and JAXB contexts used to call session beans **/
+    protected static final SessionBeanDispatcher dispatcher = new SessionBeanDispatcher();
+
     private PersistenceFactory factory;
 
     public PersistenceFactory getPersistenceFactory() {
@@ -137,20 +221,69 @@ public class Service {
        }
        String result = null;
        result = marshallMetadata(links, mediaType);
-       return Response.ok(new StreamingOutputMarshaller(null, result, hh.getAcceptableMediaTypes())).build();
+       return ok(null, result, hh).build();
    }
    
    
+   /**
+    * Return the latency histograms of the requests served and the state of the caches, limiters and
+    * executors of each context, in the Prometheus text exposition format
+    */
+   @GET
+   @Path("metrics")
+   @Produces(METRICS_MEDIA_TYPE)
+   public Response metrics() {
+       StringBuilder out = new StringBuilder();
+       RequestMetrics.write(out);
+       Map<String, StringBuilder> families = new LinkedHashMap<String, StringBuilder>();
+       RequestMetrics.addSample(families, "jpars_compressed_responses_total", RequestMetrics.COUNTER, null, CompressionHelper.getCompressedResponses());
+       RequestMetrics.addSample(families, "jpars_compression_ratio", RequestMetrics.GAUGE, null, CompressionHelper.getCompressionRatio());
+       for (String name: factory.getPersistenceContextNames()){
+           PersistenceContext app = factory.getPersistenceContext(name);
+           if (app == null){
+               continue;
+           }
+           BoundedExecutor executor = app.getExecutor();
+           if (executor != null){
+               RequestMetrics.addSample(families, "jpars_executor_queue_depth", RequestMetrics.GAUGE, name, executor.getQueueDepth());
+           }
+           ConcurrencyLimiter limiter = app.getConcurrencyLimiter();
+           if (limiter != null){
+               RequestMetrics.addSample(families, "jpars_limiter_limit", RequestMetrics.GAUGE, name, limiter.getLimit());
+               RequestMetrics.addSample(families, "jpars_limiter_in_flight", RequestMetrics.GAUGE, name, limiter.getInFlight());
+               RequestMetrics.addSample(families, "jpars_limiter_queued", RequestMetrics.GAUGE, name, limiter.getQueued());
+               RequestMetrics.addSample(families, "jpars_limiter_rejected_total", RequestMetrics.COUNTER, name, limiter.getRejected());
+           }
+           TenantQuota quota = app.getTenantQuota();
+           if (quota != null){
+               RequestMetrics.addSample(families, "jpars_tenant_rejected_total", RequestMetrics.COUNTER, name, quota.getRejected());
+           }
+           ResponseCache cache = app.getResponseCache();
+           if (cache != null){
+               RequestMetrics.addSample(families, "jpars_response_cache_hits_total", RequestMetrics.COUNTER, name, cache.getHits());
+               RequestMetrics.addSample(families, "jpars_response_cache_misses_total", RequestMetrics.COUNTER, name, cache.getMisses());
+               RequestMetrics.addSample(families, "jpars_response_cache_evictions_total", RequestMetrics.COUNTER, name, cache.getEvictions());
+               RequestMetrics.addSample(families, "jpars_response_cache_bytes", RequestMetrics.GAUGE, name, cache.getBytes());
+           }
+           JPQLQueryCache jpqlCache = app.getJPQLCache();
+           RequestMetrics.addSample(families, "jpars_jpql_cache_hits_total", RequestMetrics.COUNTER, name, jpqlCache.getHits());
+           RequestMetrics.addSample(families, "jpars_jpql_cache_misses_total", RequestMetrics.COUNTER, name, jpqlCache.getMisses());
+       }
+       for (StringBuilder family: families.values()){
+           out.append(family);
+       }
+       return Response.ok(out.toString()).build();
+   }
+
    @POST
    @Path("/")
    @Produces(MediaType.WILDCARD)
-   public Response callSessionBean(@Context HttpHeaders hh, @Context UriInfo ui, InputStream is) throws JAXBException, ClassNotFoundException, NamingException, NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+   public Response callSessionBean(@Context HttpHeaders hh, @Context UriInfo ui, InputStream is) throws JAXBException, ClassNotFoundException, NamingException, NoSuchMethodException, InvocationTargetException, IllegalAccessException, UnsupportedEncodingException {
        SessionBeanCall call = null;
        call = unmarshallSessionBeanCall(is);
 
        String jndiName = call.getJndiName();
-       javax.naming.Context ctx = new InitialContext();
-       Object ans=ctx.lookup(jndiName);  
+       Object ans = dispatcher.lookup(jndiName);
        if (ans == null){
            return Response.status(Status.NOT_FOUND).build();
        }
@@ -167,25 +300,34 @@ public class Service {
        Object[] args = new Object[call.getParameters().size()];
        int i = 0;
        for (Parameter param: call.getParameters()){
-           System.out.println("Got paramter " + param.getValue());
            Class parameterClass = null;
            Object parameterValue = null;
            if (context != null){
                parameterClass = context.getClass(param.getTypeName());
            }
            if (parameterClass != null){
-               parameterValue = context.unmarshalEntity(param.getTypeName(), null, hh.getMediaType(), is);
+               // the request body has been read, entities are passed as the values of their parameters
+               parameterValue = context.unmarshalEntity(param.getTypeName(), null, hh.getMediaType(), new ByteArrayInputStream(param.getValue().getBytes("UTF-8")));
            } else {
-               parameterClass = Thread.currentThread().getContextClassLoader().loadClass(param.getTypeName());
+               parameterClass = dispatcher.loadClass(param.getTypeName());
                parameterValue = ConversionManager.getDefaultManager().convertObject(param.getValue(), parameterClass);
            }
            parameters[i] = parameterClass;
            args[i] = parameterValue;
            i++;
        }
-       Method method = ans.getClass().getMethod(call.getMethodName(), parameters);
-       Object returnValue = method.invoke(ans, args);
-       return Response.ok(new StreamingOutputMarshaller(null, returnValue, hh.getAcceptableMediaTypes())).build();
+       Object returnValue = dispatcher.invoke(jndiName, ans, call.getMethodName(), parameters, args);
+       Object sample = returnValue instanceof List && !((List<?>)returnValue).isEmpty() ? ((List<?>)returnValue).get(0) : returnValue;
+       if (context != null && sample != null && context.getDescriptorForClass(sample.getClass()) != null){
+           return ok(context, returnValue, hh).build();
+       }
+       MediaType mediaType = mediaType(hh.getAcceptableMediaTypes());
+       byte[] marshalled = dispatcher.marshallResult(returnValue, mediaType);
+       if (marshalled != null){
+           return ok(null, marshalled, mediaType, hh, null).build();
+       }
+       // not bindable with JAXB, fall back to serializing the value
+       return ok(null, returnValue, hh).build();
    }
    
     @PUT
@@ -221,22 +363,25 @@ public class Service {
         if (app == null){
             return Response.status(Status.NOT_FOUND).build();
         } else {
-            PersistenceUnit pu = new PersistenceUnit();
-            pu.setPersistenceUnitName(persistenceUnit);
-            Map<Class, ClassDescriptor> descriptors = JpaHelper.getServerSession(app.getEmf()).getDescriptors();
             String mediaType = StreamingOutputMarshaller.mediaType(hh.getAcceptableMediaTypes()).toString();
-            Iterator<Class> contextIterator = descriptors.keySet().iterator();
-            while (contextIterator.hasNext()){
-                ClassDescriptor descriptor = descriptors.get(contextIterator.next());
-                pu.getTypes().add(new Link(descriptor.getAlias(), mediaType, uriInfo.getBaseUri() + persistenceUnit + "/metadata/entity/" + descriptor.getAlias()));
-            }           
-            String result = null;
-            try {
-                result = marshallMetadata(pu, mediaType);
-            } catch (JAXBException e){
-                return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+            String key = metadataKey("types", mediaType, uriInfo);
+            CachedResponse metadata = app.getCachedMetadata(key);
+            if (metadata == null){
+                PersistenceUnit pu = new PersistenceUnit();
+                pu.setPersistenceUnitName(persistenceUnit);
+                Map<Class, ClassDescriptor> descriptors = JpaHelper.getServerSession(app.getEmf()).getDescriptors();
+                Iterator<Class> contextIterator = descriptors.keySet().iterator();
+                while (contextIterator.hasNext()){
+                    ClassDescriptor descriptor = descriptors.get(contextIterator.next());
+                    pu.getTypes().add(new Link(descriptor.getAlias(), mediaType, uriInfo.getBaseUri() + persistenceUnit + "/metadata/entity/" + descriptor.getAlias()));
+                }
+                try {
+                    metadata = app.cacheMetadata(key, new CachedResponse(marshallMetadata(pu, mediaType)));
+                } catch (JAXBException e){
+                    return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+                }
             }
-            ResponseBuilder rb = Response.ok(new StreamingOutputMarshaller(null , result, hh.getAcceptableMediaTypes()));
+            ResponseBuilder rb = cachedResponse(app, metadata, hh);
             rb.header("Content-Type", MediaType.APPLICATION_JSON);
             return rb.build();
         }
@@ -261,6 +406,43 @@ public class Service {
         return Response.ok().build();
     }
     
+    /**
+     * Stream the inserts and updates of an entity to the client as Server-Sent Events.  A client that
+     * reconnects with the Last-Event-ID header is first sent the recent events it missed.  Clients
+     * beyond the limit of the context are answered with 503 and Retry-After.
+     */
+    @GET
+    @Path("{context}/events/{type}")
+    @Produces(EventStreamOutput.TEXT_EVENT_STREAM)
+    public Response events(@PathParam("context") String persistenceUnit, @PathParam("type") String type, @Context HttpHeaders hh, @Context UriInfo ui) {
+        PersistenceContext app = get(persistenceUnit, ui.getBaseUri());
+        if (app == null || app.getClass(type) == null){
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        String overflow = ui.getQueryParameters().getFirst(OVERFLOW_PARAMETER);
+        EventSubscriber subscriber = null;
+        try {
+            subscriber = new EventSubscriber(type, app.getIntProperty(PersistenceContext.EVENTS_BUFFER_SIZE, PersistenceContext.DEFAULT_EVENTS_BUFFER_SIZE), overflow == null ? app.getEventOverflowPolicy() : overflow);
+        } catch (IllegalArgumentException e){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        EventBroadcaster broadcaster = null;
+        try {
+            broadcaster = app.subscribeToEvents(type);
+        } catch (RuntimeException e){
+            // no change notification is configured
+            return Response.status(Status.SERVICE_UNAVAILABLE).build();
+        }
+        try {
+            broadcaster.resume(subscriber, getSingleHeader(EventStreamOutput.LAST_EVENT_ID, hh));
+        } catch (RejectedExecutionException e){
+            // each client holds a request thread for as long as it is connected
+            return rejected(app, e);
+        }
+        EventStreamOutput output = new EventStreamOutput(broadcaster, subscriber, app.getIntProperty(PersistenceContext.EVENTS_HEARTBEAT, PersistenceContext.DEFAULT_EVENTS_HEARTBEAT));
+        return Response.ok(output, EventStreamOutput.TEXT_EVENT_STREAM).header("Cache-Control", "no-cache").build();
+    }
+    
     @GET
     @Path("{context}/metadata/entity/{descriptorAlias}")
     public Response getDescriptorMetadata(@PathParam("context") String persistenceUnit, @PathParam("descriptorAlias") String descriptorAlias, @Context HttpHeaders hh, @Context UriInfo uriInfo) {
@@ -268,20 +450,22 @@ public class Service {
         if (app == null){
             return Response.status(Status.NOT_FOUND).build();
         } else {
-            ClassDescriptor descriptor = JpaHelper.getServerSession(app.getEmf()).getDescriptorForAlias(descriptorAlias);
-            if (descriptor == null){
-                return Response.status(Status.NOT_FOUND).build();
-            } else {
-                String mediaType = StreamingOutputMarshaller.mediaType(hh.getAcceptableMediaTypes()).toString();
+            String mediaType = StreamingOutputMarshaller.mediaType(hh.getAcceptableMediaTypes()).toString();
+            String key = metadataKey("entity/" + descriptorAlias, mediaType, uriInfo);
+            CachedResponse metadata = app.getCachedMetadata(key);
+            if (metadata == null){
+                ClassDescriptor descriptor = JpaHelper.getServerSession(app.getEmf()).getDescriptorForAlias(descriptorAlias);
+                if (descriptor == null){
+                    return Response.status(Status.NOT_FOUND).build();
+                }
                 Descriptor returnDescriptor = buildDescriptor(app, persistenceUnit, descriptor, uriInfo.getBaseUri().toString());
-                String result = null;
                 try {
-                    result = marshallMetadata(returnDescriptor, mediaType);
+                    metadata = app.cacheMetadata(key, new CachedResponse(marshallMetadata(returnDescriptor, mediaType)));
                 } catch (JAXBException e){
                     return Response.status(Status.INTERNAL_SERVER_ERROR).build();
                 }
-                return Response.ok(new StreamingOutputMarshaller(null , result, hh.getAcceptableMediaTypes())).build();
             }
+            return cachedResponse(app, metadata, hh).build();
         }
     }
     
@@ -292,53 +476,230 @@ public class Service {
         if (app == null){
             return Response.status(Status.NOT_FOUND).build();
         } else {
-            StringBuffer buffer = new StringBuffer();
-            List<Query> queries = new ArrayList<Query>();
-            addQueries(queries, app, null);
             String mediaType = StreamingOutputMarshaller.mediaType(hh.getAcceptableMediaTypes()).toString();
-            String result = null;
-            try {
-                result = marshallMetadata(queries, mediaType);
-            } catch (JAXBException e){
-                return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+            String key = metadataKey("query", mediaType, uriInfo);
+            CachedResponse metadata = app.getCachedMetadata(key);
+            if (metadata == null){
+                List<Query> queries = new ArrayList<Query>();
+                addQueries(queries, app, null);
+                try {
+                    metadata = app.cacheMetadata(key, new CachedResponse(marshallMetadata(queries, mediaType)));
+                } catch (JAXBException e){
+                    return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+                }
             }
-            return Response.ok(new StreamingOutputMarshaller(null , result, hh.getAcceptableMediaTypes())).build();
+            return cachedResponse(app, metadata, hh).build();
         }
     }
     
     @GET
     @Path("{context}/entity/{type}/{key}")
-    public Response find(@PathParam("context") String persistenceUnit, @PathParam("type") String type, @PathParam("key") String key, @Context HttpHeaders hh, @Context UriInfo ui) {
-        PersistenceContext app = get(persistenceUnit, ui.getBaseUri());
+    public Response find(@PathParam("context") String persistenceUnit, @PathParam("type") final String type, @PathParam("key") final String key, @Context HttpHeaders hh, @Context final UriInfo ui) {
+        RequestMetrics.start("find");
+        final PersistenceContext app = get(persistenceUnit, ui.getBaseUri(), hh);
         if (app == null || app.getClass(type) == null){
             return Response.status(Status.NOT_FOUND).build();
         }
-        Object id = IdHelper.buildId(app, type, key);
+        final HttpHeaders headers = new RequestHeaders(hh);
+        return execute(app, hh, new Callable<Response>() {
+            public Response call() {
+                return find(app, type, key, headers, ui);
+            }
+        });
+    }
 
-        Object entity = app.find(getTenantId(hh), type, id, Service.getHintMap(ui));
+    protected Response find(PersistenceContext app, String type, String key, HttpHeaders hh, UriInfo ui) {
+        Object id = null;
+        try {
+            id = IdHelper.buildId(app, type, key);
+        } catch (IllegalArgumentException e){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        phase(RequestMetrics.ID);
+
+        Map<String, Object> hints = Service.getHintMap(ui);
+        MediaType mediaType = mediaType(hh.getAcceptableMediaTypes());
+        ResponseCache cache = app.getResponseCache();
+        String cacheKey = null;
+        ResponseCache.Stamp stamp = null;
+        if (cache != null && mediaType != MediaType.WILDCARD_TYPE){
+            cacheKey = responseCacheKey("entity/" + type + "/" + key, getTenantId(hh), mediaType, ui);
+            CachedResponse cached = cache.get(cacheKey);
+            if (cached != null){
+                return cachedResponse(app, cached, hh).build();
+            }
+            // taken before the read so a change made while it runs leaves the response stale
+            stamp = cache.stamp(app.getResponseDependencies(app.getDescriptor(type), hints.containsKey(ExpandHelper.EXPAND_HINT)));
+        }
+        Object entity = null;
+        try {
+            entity = app.find(getTenantId(hh), type, id, hints);
+        } catch (IllegalArgumentException e){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        phase(RequestMetrics.DATABASE);
 
         if (entity == null) {
             return Response.status(Status.NOT_FOUND).build();
-        } else {
-            return Response.ok(new StreamingOutputMarshaller(app, entity, hh.getAcceptableMediaTypes())).build();
-        }        
+        }
+        if (mediaType == MediaType.WILDCARD_TYPE){
+            return ok(app, entity, mediaType, hh, null).build();
+        }
+        // versioned entities can be checked against If-None-Match before they are marshalled, unless only
+        // some of their fields or related entities were requested, since the version does not tell those
+        // representations apart
+        EntityTag tag = null;
+        if (!hints.containsKey(FieldsHelper.FIELDS_HINT) && !hints.containsKey(ExpandHelper.EXPAND_HINT)){
+            tag = EntityTagHelper.buildVersionTag(app, app.getDescriptor(type), entity, mediaType);
+        }
+        Object result = entity;
+        if (tag == null || cache != null){
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try {
+                app.marshallEntity(entity, mediaType, content);
+            } catch (JAXBException e){
+                return ok(app, entity, mediaType, hh, null).build();
+            }
+            result = content.toByteArray();
+            if (tag == null){
+                tag = EntityTagHelper.buildContentTag((byte[])result);
+            }
+            if (cache != null){
+                cache.put(cacheKey, new CachedResponse((byte[])result, tag), stamp);
+            }
+            phase(RequestMetrics.MARSHALL);
+        }
+        if (EntityTagHelper.matches(hh, tag)){
+            return Response.notModified(tag).build();
+        }
+        return ok(app, result, mediaType, hh, tag).build();
+    }
+
+    @GET
+    @Path("{context}/entity/{type}")
+    public Response findAll(@PathParam("context") String persistenceUnit, @PathParam("type") final String type, @Context HttpHeaders hh, @Context final UriInfo ui) {
+        RequestMetrics.start("findAll");
+        final PersistenceContext app = get(persistenceUnit, ui.getBaseUri(), hh);
+        if (app == null || app.getClass(type) == null){
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        String ids = ui.getQueryParameters().getFirst(IDS_PARAMETER);
+        if (ids == null){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        final List<String> keys = new ArrayList<String>();
+        for (String id: ids.split(",")){
+            if (id.trim().length() > 0){
+                keys.add(id.trim());
+            }
+        }
+        final HttpHeaders headers = new RequestHeaders(hh);
+        return execute(app, hh, new Callable<Response>() {
+            public Response call() {
+                return findAll(app, type, keys, headers, ui);
+            }
+        });
+    }
+
+    @POST
+    @Path("{context}/find/{type}")
+    public Response findAll(@PathParam("context") String persistenceUnit, @PathParam("type") final String type, @Context HttpHeaders hh, @Context final UriInfo ui, InputStream in) {
+        RequestMetrics.start("findAll");
+        final PersistenceContext app = get(persistenceUnit, ui.getBaseUri(), hh);
+        if (app == null || app.getClass(type) == null){
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        MediaType contentType = mediaType(hh.getRequestHeader(HttpHeaders.CONTENT_TYPE));
+        List<EntityKey> entityKeys = null;
+        try {
+            entityKeys = unmarshallEntityKeys(in, contentType);
+        } catch (JAXBException e){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        final List<String> keys = new ArrayList<String>();
+        String entityPath = "/entity/" + type + "/";
+        for (EntityKey entityKey: entityKeys){
+            if (entityKey.getId() != null){
+                keys.add(entityKey.getId());
+            } else if (entityKey.getHref() != null){
+                // links are only followed to entities of the requested type
+                String href = entityKey.getHref().replace("\\/", "/");
+                int index = href.lastIndexOf(entityPath);
+                if (index < 0 || href.indexOf('/', index + entityPath.length()) >= 0){
+                    return Response.status(Status.BAD_REQUEST).build();
+                }
+                keys.add(href.substring(index + entityPath.length()));
+            } else {
+                return Response.status(Status.BAD_REQUEST).build();
+            }
+        }
+        final HttpHeaders headers = new RequestHeaders(hh);
+        return execute(app, hh, new Callable<Response>() {
+            public Response call() {
+                return findAll(app, type, keys, headers, ui);
+            }
+        });
+    }
+
+    /**
+     * Read the entities with the given ids and return them in the order they were requested.  Ids
+     * that do not match an entity are left out of the result and listed in the missing-ids header.
+     */
+    protected Response findAll(PersistenceContext app, String type, List<String> keys, HttpHeaders hh, UriInfo ui) {
+        if (keys.isEmpty() || keys.size() > app.getFindMaxIds()){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        Object result = null;
+        try {
+            result = app.findAll(getTenantId(hh), type, keys, Service.getHintMap(ui));
+        } catch (IllegalArgumentException e){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        phase(RequestMetrics.DATABASE);
+        List<?> entities = (List<?>)(result instanceof ExpandedResult ? ((ExpandedResult)result).getResult() : result);
+        StringBuilder missing = new StringBuilder();
+        for (int i = keys.size() - 1; i >= 0; i--){
+            if (entities.get(i) == null){
+                missing.insert(0, missing.length() == 0 ? keys.get(i) : keys.get(i) + ",");
+                entities.remove(i);
+            }
+        }
+        ResponseBuilder builder = ok(app, result, hh);
+        if (missing.length() > 0){
+            builder.header(MISSING_IDS_HEADER, missing.toString());
+        }
+        return builder.build();
     }
 
     @PUT
     @Path("{context}/entity/{type}")
     public Response create(@PathParam("context") String persistenceUnit, @PathParam("type") String type, @Context HttpHeaders hh, @Context UriInfo uriInfo, InputStream in) throws JAXBException {
-        PersistenceContext app = get(persistenceUnit, uriInfo.getBaseUri());
-        ClassDescriptor descriptor = app.getDescriptor(type);
+        RequestMetrics.start("create");
+        final PersistenceContext app = get(persistenceUnit, uriInfo.getBaseUri(), hh);
+        final ClassDescriptor descriptor = app.getDescriptor(type);
         if (app == null || descriptor == null){
             return Response.status(Status.NOT_FOUND).build();
         }
-        Object entity = null;
+        // the body is read on the request thread, the stream belongs to the container
+        final Object entity;
         try{
             entity = app.unmarshalEntity(type, getTenantId(hh), mediaType(hh.getAcceptableMediaTypes()), in);
         } catch (JAXBException e){
-            throw e;
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        if (!app.getClass(type).isInstance(entity)){
+            return Response.status(Status.BAD_REQUEST).build();
         }
+        phase(RequestMetrics.MARSHALL);
+        final HttpHeaders headers = new RequestHeaders(hh);
+        return execute(app, hh, new Callable<Response>() {
+            public Response call() {
+                return create(app, descriptor, headers, entity);
+            }
+        }, true);
+    }
 
+    protected Response create(PersistenceContext app, ClassDescriptor descriptor, HttpHeaders hh, Object entity) {
         // maintain itempotence on PUT by disallowing sequencing and cascade persist.
         AbstractDirectMapping sequenceMapping = descriptor.getObjectBuilder().getSequenceMapping();
         if (sequenceMapping != null){
@@ -360,52 +721,295 @@ public class Service {
         }
 
         app.create(getTenantId(hh), entity);
-        ResponseBuilder rb = Response.status(Status.CREATED);
-        rb.entity(new StreamingOutputMarshaller(app, entity, hh.getAcceptableMediaTypes()));
-        return rb.build();
+        phase(RequestMetrics.DATABASE);
+        return ok(app, entity, hh).status(Status.CREATED).build();
     }
 
     @POST
     @Path("{context}/entity/{type}")
     public Response update(@PathParam("context") String persistenceUnit, @PathParam("type") String type, @Context HttpHeaders hh, @Context UriInfo uriInfo, InputStream in) {
-        PersistenceContext app = get(persistenceUnit, uriInfo.getBaseUri());
+        RequestMetrics.start("update");
+        final PersistenceContext app = get(persistenceUnit, uriInfo.getBaseUri(), hh);
         if (app == null || app.getClass(type) == null){
             return Response.status(Status.NOT_FOUND).build();
          }
-        String tenantId = getTenantId(hh);
+        // the body is read on the request thread, the stream belongs to the container
         MediaType contentType = mediaType(hh.getRequestHeader(HttpHeaders.CONTENT_TYPE)); 
-        Object entity = null;
+        final Object entity;
         try {
-            entity = app.unmarshalEntity(type, tenantId, contentType, in);
+            entity = app.unmarshalEntity(type, getTenantId(hh), contentType, in);
         } catch (JAXBException e){
-            throw new WebApplicationException(e);
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        if (!app.getClass(type).isInstance(entity)){
+            return Response.status(Status.BAD_REQUEST).build();
         }
-        entity = app.merge(tenantId, entity);
-        return Response.ok(new StreamingOutputMarshaller(app, entity, hh.getAcceptableMediaTypes())).build();
+        phase(RequestMetrics.MARSHALL);
+        final HttpHeaders headers = new RequestHeaders(hh);
+        return execute(app, hh, new Callable<Response>() {
+            public Response call() {
+                return update(app, headers, entity);
+            }
+        }, true);
+    }
+
+    protected Response update(PersistenceContext app, HttpHeaders hh, Object entity) {
+        entity = app.merge(getTenantId(hh), entity);
+        phase(RequestMetrics.DATABASE);
+        return ok(app, entity, hh).build();
     }
 
     @DELETE
     @Path("{context}/entity/{type}/{key}")
-    public Response delete(@PathParam("context") String persistenceUnit, @PathParam("type") String type, @PathParam("key") String key, @Context HttpHeaders hh, @Context UriInfo ui) {
-        PersistenceContext app = get(persistenceUnit, ui.getBaseUri());
+    public Response delete(@PathParam("context") String persistenceUnit, @PathParam("type") final String type, @PathParam("key") final String key, @Context HttpHeaders hh, @Context UriInfo ui) {
+        RequestMetrics.start("delete");
+        final PersistenceContext app = get(persistenceUnit, ui.getBaseUri(), hh);
         if (app == null || app.getClass(type) == null){
             return Response.status(Status.NOT_FOUND).build();
         }
-        String tenantId = getTenantId(hh);
-        Object id = IdHelper.buildId(app, type, key);
-        app.delete(tenantId, type, id);
-        return Response.ok().build();
+        final String tenantId = getTenantId(hh);
+        return execute(app, hh, new Callable<Response>() {
+            public Response call() {
+                Object id = null;
+                try {
+                    id = IdHelper.buildId(app, type, key);
+                } catch (IllegalArgumentException e){
+                    return Response.status(Status.BAD_REQUEST).build();
+                }
+                phase(RequestMetrics.ID);
+                app.delete(tenantId, type, id);
+                phase(RequestMetrics.DATABASE);
+                return Response.ok().build();
+            }
+        }, true);
     }
     
+    @POST
+    @Path("{context}/batch")
+    public Response batch(@PathParam("context") String persistenceUnit, @Context HttpHeaders hh, @Context UriInfo uriInfo, InputStream in) {
+        RequestMetrics.start("batch");
+        final PersistenceContext app = get(persistenceUnit, uriInfo.getBaseUri(), hh);
+        if (app == null){
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        final MediaType contentType = mediaType(hh.getRequestHeader(HttpHeaders.CONTENT_TYPE));
+        final List<BatchOperation> operations;
+        try {
+            operations = unmarshallBatch(in, contentType);
+        } catch (JAXBException e){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        for (BatchOperation operation: operations){
+            if (!operation.isValid()){
+                return Response.status(Status.BAD_REQUEST).build();
+            }
+            if (app.getClass(operation.getType()) == null){
+                return Response.status(Status.NOT_FOUND).build();
+            }
+        }
+
+        phase(RequestMetrics.MARSHALL);
+        final HttpHeaders headers = new RequestHeaders(hh);
+        return execute(app, hh, new Callable<Response>() {
+            public Response call() {
+                return batch(app, operations, contentType, headers);
+            }
+        }, true);
+    }
+
+    /**
+     * Run the operations of a batch in one transaction and build the response that lists their results
+     * @param app
+     * @param operations
+     * @param contentType the media type of the entities in the operations
+     * @param hh
+     * @return
+     * @throws RejectedExecutionException if the tenant of the request is at its limit
+     */
+    protected Response batch(PersistenceContext app, List<BatchOperation> operations, MediaType contentType, HttpHeaders hh) {
+        List<Object> values = null;
+        try {
+            values = app.batch(getTenantId(hh), operations, contentType);
+        } catch (JAXBException e){
+            throw new WebApplicationException(e);
+        }
+        phase(RequestMetrics.DATABASE);
+
+        List<BatchResult> results = new ArrayList<BatchResult>(operations.size());
+        for (int i = 0; i < operations.size(); i++){
+            BatchOperation operation = operations.get(i);
+            Object value = values.get(i);
+            Status status = Status.OK;
+            if (value == null){
+                status = Status.NOT_FOUND;
+            } else if (BatchOperation.PERSIST.equals(operation.getOperation())){
+                status = Status.CREATED;
+            }
+            String href = null;
+            if (value != null && !operation.isDelete()){
+                href = app.getBaseURI() + app.getName() + "/entity/" + operation.getType() + "/" + IdHelper.stringifyId(value, app);
+            }
+            results.add(new BatchResult(operation.getOperation(), operation.getType(), status.getStatusCode(), href));
+        }
+        String mediaType = StreamingOutputMarshaller.mediaType(hh.getAcceptableMediaTypes()).toString();
+        String result = null;
+        try {
+            result = marshallMetadata(results, mediaType);
+        } catch (JAXBException e){
+            return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+        }
+        return ok(null, result, hh).build();
+    }
+
     @GET
     @Path("{context}/query/{name}")
-    public Response namedQuery(@PathParam("context") String persistenceUnit, @PathParam("name") String name, @Context HttpHeaders hh, @Context UriInfo ui) {
+    public Response namedQuery(@PathParam("context") final String persistenceUnit, @PathParam("name") final String name, @Context HttpHeaders hh, @Context final UriInfo ui) {
+        RequestMetrics.start("query");
+        final PersistenceContext app = get(persistenceUnit, ui.getBaseUri(), hh);
+        if (app == null){
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        final HttpHeaders headers = new RequestHeaders(hh);
+        return execute(app, hh, new Callable<Response>() {
+            public Response call() {
+                return namedQuery(app, persistenceUnit, name, headers, ui);
+            }
+        });
+    }
+
+    protected Response namedQuery(PersistenceContext app, String persistenceUnit, String name, HttpHeaders hh, UriInfo ui) {
+        String limit = ui.getQueryParameters().getFirst(LIMIT_PARAMETER);
+        boolean stream = Boolean.parseBoolean(ui.getQueryParameters().getFirst(STREAM_PARAMETER));
+        if ((limit != null || stream) && ui.getQueryParameters().containsKey(EXPAND_PARAMETER)){
+            // expanded entities are collected over the whole result
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        if (limit != null){
+            return pagedQuery(app, persistenceUnit, name, limit, hh, ui);
+        }
+        if (stream){
+            CursoredStreamingOutputMarshaller output = new CursoredStreamingOutputMarshaller(app, getTenantId(hh), name, Service.getParameterMap(ui), Service.getHintMap(ui), hh.getAcceptableMediaTypes());
+            ResponseBuilder rb = Response.ok(output).header(CompressionHelper.VARY, CompressionHelper.ACCEPT_ENCODING);
+            String encoding = CompressionHelper.negotiate(hh);
+            if (encoding != null){
+                output.setContentEncoding(encoding, getIntProperty(app, CompressionHelper.COMPRESSION_LEVEL, CompressionHelper.DEFAULT_COMPRESSION_LEVEL));
+                rb.header(CompressionHelper.CONTENT_ENCODING, encoding);
+            }
+            return rb.build();
+        }
+        return runQuery(app, "query/" + name, name, false, hh, ui);
+    }
+
+    /**
+     * Run a named query and build the response for its result.  If the context caches responses the
+     * encoded result is cached until an entity type the query depends on is changed.
+     * @param app
+     * @param resource the path of the resource below the context
+     * @param name
+     * @param returnSingleResult
+     * @param hh
+     * @param ui
+     * @return
+     */
+    protected Response runQuery(PersistenceContext app, String resource, String name, boolean returnSingleResult, HttpHeaders hh, UriInfo ui) {
+        MediaType mediaType = mediaType(hh.getAcceptableMediaTypes());
+        ResponseCache cache = app.getResponseCache();
+        String cacheKey = null;
+        ResponseCache.Stamp stamp = null;
+        if (cache != null && mediaType != MediaType.WILDCARD_TYPE){
+            Set<String> dependencies = app.getQueryDependencies(name);
+            if (dependencies != null){
+                cacheKey = responseCacheKey(resource, getTenantId(hh), mediaType, ui);
+                CachedResponse cached = cache.get(cacheKey);
+                if (cached != null){
+                    return cachedResponse(app, cached, hh).build();
+                }
+                stamp = cache.stamp(dependencies);
+            }
+        }
+        Object result = null;
+        try {
+            result = app.query(getTenantId(hh), name, Service.getParameterMap(ui), Service.getHintMap(ui), returnSingleResult, false);
+        } catch (IllegalArgumentException e){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        phase(RequestMetrics.DATABASE);
+        if (stamp == null || result == null){
+            return ok(app, result, mediaType, hh, null).build();
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            app.marshallEntity(result, mediaType, content);
+        } catch (JAXBException e){
+            return ok(app, result, mediaType, hh, null).build();
+        }
+        phase(RequestMetrics.MARSHALL);
+        CachedResponse response = new CachedResponse(content.toByteArray(), EntityTagHelper.buildContentTag(content.toByteArray()));
+        cache.put(cacheKey, response, stamp);
+        return cachedResponse(app, response, hh).build();
+    }
+    
+    @POST
+    @Path("{context}/jpql")
+    public Response jpqlQuery(@PathParam("context") String persistenceUnit, @Context HttpHeaders hh, @Context final UriInfo ui, InputStream in) {
+        RequestMetrics.start("jpql");
+        final PersistenceContext app = get(persistenceUnit, ui.getBaseUri(), hh);
+        if (app == null){
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        if (!app.isJPQLEnabled()){
+            // ad-hoc queries can read any entity, so each persistence unit has to allow them
+            return Response.status(Status.FORBIDDEN).build();
+        }
+        MediaType contentType = mediaType(hh.getRequestHeader(HttpHeaders.CONTENT_TYPE));
+        JPQLQuery jpqlQuery = null;
+        try {
+            jpqlQuery = unmarshallJPQLQuery(in, contentType);
+        } catch (JAXBException e){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        final String jpql = jpqlQuery.getJpql();
+        if (jpql == null){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        for (Parameter parameter: jpqlQuery.getParameters()){
+            if (parameter.getName() == null){
+                return Response.status(Status.BAD_REQUEST).build();
+            }
+            parameters.put(parameter.getName(), parameter.getValue());
+        }
+        final HttpHeaders headers = new RequestHeaders(hh);
+        return execute(app, hh, new Callable<Response>() {
+            public Response call() {
+                Object result = null;
+                try {
+                    result = app.jpqlQuery(getTenantId(headers), jpql, parameters, Service.getHintMap(ui));
+                } catch (IllegalArgumentException e){
+                    return Response.status(Status.BAD_REQUEST).build();
+                }
+                phase(RequestMetrics.DATABASE);
+                return ok(app, result, headers).build();
+            }
+        });
+    }
+
+    /**
+     * Turn the cache of parsed ad-hoc JPQL queries of a context on or off with the enabled query parameter
+     */
+    @PUT
+    @Path("{context}/jpql/cache")
+    public Response setJPQLCache(@PathParam("context") String persistenceUnit, @Context HttpHeaders hh, @Context UriInfo ui) {
         PersistenceContext app = get(persistenceUnit, ui.getBaseUri());
         if (app == null){
             return Response.status(Status.NOT_FOUND).build();
         }
-        Object result = app.query(name, Service.getParameterMap(ui), Service.getHintMap(ui), false, false);
-        return Response.ok(new StreamingOutputMarshaller(app, result, hh.getAcceptableMediaTypes())).build();
+        String enabled = ui.getQueryParameters().getFirst("enabled");
+        if (enabled == null){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        app.getJPQLCache().setEnabled(Boolean.parseBoolean(enabled));
+        return Response.ok().build();
     }
     
     @POST
@@ -416,8 +1020,15 @@ public class Service {
         if (app == null){
             return Response.status(Status.NOT_FOUND).build();
         }
-        Object result = app.query(name, Service.getParameterMap(ui), Service.getHintMap(ui), false, true);
-        return Response.ok(new StreamingOutputMarshaller(app, result.toString(), hh.getAcceptableMediaTypes())).build();
+        Object result = null;
+        try {
+            result = app.query(getTenantId(hh), name, Service.getParameterMap(ui), Service.getHintMap(ui), false, true);
+        } catch (IllegalArgumentException e){
+            return Response.status(Status.BAD_REQUEST).build();
+        } catch (RejectedExecutionException e){
+            return Response.status(Status.SERVICE_UNAVAILABLE).build();
+        }
+        return ok(app, result.toString(), hh).build();
     }
     
     @GET
@@ -428,8 +1039,272 @@ public class Service {
         if (app == null){
             return Response.status(Status.NOT_FOUND).build();
         }
-        Object result = app.query(name, Service.getParameterMap(ui), Service.getHintMap(ui), true, false);
-        return Response.ok(new StreamingOutputMarshaller(app, result, hh.getAcceptableMediaTypes())).build();
+        return runQuery(app, "singleResultQuery/" + name, name, true, hh, ui);
+    }
+    
+    /**
+     * Build an OK response that marshalls the given result in the media type accepted by the client
+     * @param app
+     * @param result
+     * @param hh
+     * @return
+     */
+    protected ResponseBuilder ok(PersistenceContext app, Object result, HttpHeaders hh) {
+        return ok(app, result, mediaType(hh.getAcceptableMediaTypes()), hh, null);
+    }
+
+    /**
+     * Build an OK response that marshalls the given result.  The result is compressed if the client
+     * accepts a content coding we support and the result is at least as large as the compression
+     * threshold of the context.  A single entity is marshalled first to find its size.  The entity tag
+     * of a compressed response is qualified with its content coding since the compressed bytes are a
+     * different representation.
+     * @param app the context of the result, or null if the result is already encoded
+     * @param result
+     * @param mediaType
+     * @param hh
+     * @param tag the entity tag of the uncompressed result, or null
+     * @return
+     */
+    protected ResponseBuilder ok(PersistenceContext app, Object result, MediaType mediaType, HttpHeaders hh, EntityTag tag) {
+        String encoding = CompressionHelper.negotiate(hh);
+        if (encoding != null && app != null && CompressionHelper.isSingleResult(result)){
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try {
+                app.marshallEntity(result, mediaType, content);
+                result = content.toByteArray();
+                phase(RequestMetrics.MARSHALL);
+            } catch (JAXBException e){
+                // the StreamingOutputMarshaller fails the response when it cannot marshall the result either
+            }
+        }
+        StreamingOutputMarshaller output = new StreamingOutputMarshaller(app, result, mediaType);
+        ResponseBuilder rb = Response.ok(output).header(CompressionHelper.VARY, CompressionHelper.ACCEPT_ENCODING);
+        if (encoding != null && CompressionHelper.isCompressible(result, getIntProperty(app, CompressionHelper.COMPRESSION_THRESHOLD, CompressionHelper.DEFAULT_COMPRESSION_THRESHOLD))){
+            output.setContentEncoding(encoding, getIntProperty(app, CompressionHelper.COMPRESSION_LEVEL, CompressionHelper.DEFAULT_COMPRESSION_LEVEL));
+            rb.header(CompressionHelper.CONTENT_ENCODING, encoding);
+            if (tag != null){
+                tag = EntityTagHelper.encodedTag(tag, encoding);
+            }
+        }
+        if (tag != null){
+            rb.tag(tag);
+        }
+        return rb;
+    }
+
+    private static int getIntProperty(PersistenceContext app, String name, int defaultValue) {
+        if (app == null){
+            return defaultValue;
+        }
+        return app.getIntProperty(name, defaultValue);
+    }
+
+    /**
+     * Run the database work of a request that only reads on the executor of its PersistenceContext
+     * @param app
+     * @param hh
+     * @param task
+     * @return
+     * @see #execute(PersistenceContext, HttpHeaders, Callable, boolean)
+     */
+    protected Response execute(PersistenceContext app, HttpHeaders hh, Callable<Response> task) {
+        return execute(app, hh, task, false);
+    }
+
+    /**
+     * Run the database work of a request on the executor of its PersistenceContext, or on the current
+     * thread if the context has no executor.  If the context limits the requests it runs at once the
+     * request must first be admitted by its limiter.  A request that is not admitted, or that can not be
+     * queued because the executor is busy, is answered with 503 Service Unavailable.
+     *
+     * A read that does not complete in time is cancelled and also answered with 503.  Writes are waited
+     * for however long they take: cancelling interrupts the thread, which stops neither JDBC nor JAXB, so
+     * the write could still commit after the client was told to retry it.  The task must not use the
+     * request body or the container's request headers, since a cancelled read can outlive the request;
+     * bodies are read beforehand and headers are copied with RequestHeaders.  The permit of the limiter
+     * is given back when the work finishes, not when the request gives up on it, so a cancelled read
+     * still counts against the limit while it holds a connection.
+     * @param app
+     * @param hh
+     * @param task
+     * @param write true if the task changes the database
+     * @return
+     */
+    protected Response execute(PersistenceContext app, HttpHeaders hh, final Callable<Response> task, boolean write) {
+        BoundedExecutor executor = app.getExecutor();
+        final ConcurrencyLimiter limiter = app.getConcurrencyLimiter();
+        ConcurrencyLimiter.Permit permit = null;
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        // claimed by the worker when it starts, or by this thread if the work never ran, so the permit is given back once
+        final AtomicBoolean started = new AtomicBoolean();
+        final RequestMetrics.Timer timer = RequestMetrics.current();
+        RequestTrace trace = timer == null ? null : timer.getTrace();
+        Response response = null;
+        try {
+            if (limiter != null){
+                permit = limiter.acquire(getTenantId(hh));
+            }
+            if (executor == null){
+                phase(RequestMetrics.QUEUE);
+                response = task.call();
+            } else {
+                final ConcurrencyLimiter.Permit workPermit = permit;
+                response = executor.execute(new Callable<Response>() {
+                    public Response call() throws Exception {
+                        if (!started.compareAndSet(false, true)){
+                            // the request was given up on before the work started
+                            return null;
+                        }
+                        RequestMetrics.setCurrent(timer);
+                        // the wait for admission and for this thread, apart from the phases of the work
+                        phase(RequestMetrics.QUEUE);
+                        try {
+                            return task.call();
+                        } finally {
+                            RequestMetrics.setCurrent(null);
+                            // a cancelled read keeps its connection until it stops, so it counts as in flight until then
+                            if (workPermit != null){
+                                limiter.release(workPermit, timedOut.get());
+                            }
+                        }
+                    }
+                }, !write);
+            }
+            if (trace != null){
+                // lets the caller find the request in the trace it is part of
+                response = Response.fromResponse(response).header(RequestTrace.TRACERESPONSE, trace.getTraceparent()).build();
+            }
+            return response;
+        } catch (RejectedExecutionException e){
+            // the request was not admitted, the executor queue is full or the tenant of the request is at its limit
+            return rejected(app, e);
+        } catch (TimeoutException e){
+            timedOut.set(true);
+            logger.warning("Request for " + app.getName() + " cancelled after " + executor.getTimeout() + " ms");
+            return Response.status(Status.SERVICE_UNAVAILABLE).build();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return Response.status(Status.SERVICE_UNAVAILABLE).build();
+        } catch (ExecutionException e){
+            if (e.getCause() instanceof RejectedExecutionException){
+                // the tenant of the request is at its limit
+                return rejected(app, (RejectedExecutionException)e.getCause());
+            }
+            throw unwrap(e.getCause());
+        } catch (Exception e){
+            throw unwrap(e);
+        } finally {
+            if (permit != null && (executor == null || started.compareAndSet(false, true))){
+                limiter.release(permit, timedOut.get());
+            }
+            if (timer != null){
+                // responses that are streamed are timed until they have been written
+                if (response == null || !(response.getEntity() instanceof StreamingOutputMarshaller)){
+                    timer.finish();
+                }
+                RequestMetrics.setCurrent(null);
+            }
+        }
+    }
+
+    /**
+     * Build the response to a request that was rejected because the context or its tenant is busy
+     * @param app
+     * @param e
+     * @return
+     */
+    private static Response rejected(PersistenceContext app, RejectedExecutionException e) {
+        logger.warning("Request for " + app.getName() + " rejected: " + e.getMessage());
+        return Response.status(Status.SERVICE_UNAVAILABLE).header(RETRY_AFTER, getIntProperty(app, PersistenceContext.LIMITER_RETRY_AFTER, PersistenceContext.DEFAULT_LIMITER_RETRY_AFTER)).build();
+    }
+
+    /**
+     * Record the time since the previous phase of the current request as the time of the given phase
+     * @param phase
+     */
+    private static void phase(String phase) {
+        RequestMetrics.Timer timer = RequestMetrics.current();
+        if (timer != null){
+            timer.phase(phase);
+        }
+    }
+
+    private static RuntimeException unwrap(Throwable exception) {
+        if (exception instanceof RuntimeException){
+            return (RuntimeException)exception;
+        }
+        if (exception instanceof Error){
+            throw (Error)exception;
+        }
+        return new WebApplicationException(exception);
+    }
+
+    /**
+     * Return one page of the results of a named query.  If there are more results, the response carries
+     * a Link header with rel="next" that reads the following page.
+     * @param app
+     * @param persistenceUnit
+     * @param name
+     * @param limitValue
+     * @param hh
+     * @param ui
+     * @return
+     */
+    protected Response pagedQuery(PersistenceContext app, String persistenceUnit, String name, String limitValue, HttpHeaders hh, UriInfo ui) {
+        int limit = 0;
+        try {
+            limit = Integer.parseInt(limitValue);
+        } catch (NumberFormatException e){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        if (limit < 1 || limit > app.getQueryMaxLimit()){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        QueryPage page = null;
+        try {
+            page = app.queryPage(getTenantId(hh), name, Service.getParameterMap(ui), Service.getHintMap(ui), limit, ui.getQueryParameters().getFirst(NEXT_PARAMETER));
+        } catch (IllegalArgumentException e){
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        ResponseBuilder rb = ok(app, page.getResults(), hh);
+        if (page.getNext() != null){
+            rb.header("Link", "<" + buildNextLink(persistenceUnit, name, limit, page.getNext(), ui) + ">; rel=\"next\"");
+        }
+        return rb.build();
+    }
+    
+    /**
+     * Build the link to the page of a named query that follows the current one.  It keeps the matrix and query
+     * parameters of the current request and replaces the continuation token.
+     * @param persistenceUnit
+     * @param name
+     * @param limit
+     * @param next
+     * @param ui
+     * @return
+     */
+    protected String buildNextLink(String persistenceUnit, String name, int limit, String next, UriInfo ui) {
+        StringBuffer link = new StringBuffer();
+        link.append(ui.getBaseUri() + persistenceUnit + "/query/" + name);
+        try {
+            for (Entry<String, Object> parameter: Service.getParameterMap(ui).entrySet()){
+                link.append(";" + parameter.getKey() + "=" + URLEncoder.encode(parameter.getValue().toString(), "UTF-8"));
+            }
+            link.append("?" + LIMIT_PARAMETER + "=" + limit);
+            // the query parameters are copied as the client sent them, only the continuation token changes
+            for (Entry<String, List<String>> parameter: ui.getQueryParameters().entrySet()){
+                if (!LIMIT_PARAMETER.equals(parameter.getKey()) && !NEXT_PARAMETER.equals(parameter.getKey())){
+                    for (String value: parameter.getValue()){
+                        link.append("&" + URLEncoder.encode(parameter.getKey(), "UTF-8") + "=" + URLEncoder.encode(value, "UTF-8"));
+                    }
+                }
+            }
+            link.append("&" + NEXT_PARAMETER + "=" + URLEncoder.encode(next, "UTF-8"));
+        } catch (UnsupportedEncodingException e){
+            throw new WebApplicationException(e);
+        }
+        return link.toString();
     }
     
     protected Descriptor buildDescriptor(PersistenceContext app, String persistenceUnit, ClassDescriptor descriptor, String baseUri){
@@ -500,6 +1375,30 @@ public class Service {
         factory.close();
     }
 
+    /**
+     * Return the context of a request that is timed, and record finding it as the lookup phase of the
+     * request.  Requests that are traced start their trace here.
+     * @param persistenceUnit
+     * @param defaultURI
+     * @param hh
+     * @return
+     */
+    private PersistenceContext get(String persistenceUnit, URI defaultURI, HttpHeaders hh) {
+        PersistenceContext app = get(persistenceUnit, defaultURI);
+        RequestMetrics.Timer timer = RequestMetrics.current();
+        if (timer != null){
+            timer.setContext(app.getName());
+            int threshold = app.getTraceThreshold();
+            if (threshold > 0){
+                List<String> traceparent = hh.getRequestHeader(RequestTrace.TRACEPARENT);
+                RequestTrace trace = RequestTrace.start(traceparent == null || traceparent.isEmpty() ? null : traceparent.get(0), getIntProperty(app, PersistenceContext.TRACE_SAMPLE_PERCENT, PersistenceContext.DEFAULT_TRACE_SAMPLE_PERCENT), timer.getStart());
+                timer.setTrace(trace, TimeUnit.MILLISECONDS.toNanos(threshold));
+            }
+            timer.phase(RequestMetrics.LOOKUP);
+        }
+        return app;
+    }
+
     private PersistenceContext get(String persistenceUnit, URI defaultURI) {
         PersistenceContext app = getPersistenceFactory().getPersistenceContext(persistenceUnit);
 
@@ -524,7 +1423,17 @@ public class Service {
     private static Map<String, Object> getHintMap(UriInfo info){
         Map<String, Object> hints = new HashMap<String, Object>();
          for(String key :  info.getQueryParameters().keySet()) { 
-            hints.put(key, info.getQueryParameters().getFirst(key));  
+            if (!SERVICE_PARAMETERS.contains(key)){
+                hints.put(key, info.getQueryParameters().getFirst(key));  
+            }
+        }
+        String fields = info.getQueryParameters().getFirst(FIELDS_PARAMETER);
+        if (fields != null){
+            hints.put(FieldsHelper.FIELDS_HINT, fields);
+        }
+        String expand = info.getQueryParameters().getFirst(EXPAND_PARAMETER);
+        if (expand != null){
+            hints.put(ExpandHelper.EXPAND_HINT, expand);
         }
         return hints;
     }
@@ -569,10 +1478,70 @@ public class Service {
     }
 
     
+    /**
+     * Build the key a metadata document is cached under in its PersistenceContext.  Documents
+     * contain links so they are specific to the base URI they were requested through.  The base URI
+     * follows the Host header of the request, so the cache only keeps the most recently used keys.
+     * @param document
+     * @param mediaType
+     * @param uriInfo
+     * @return
+     */
+    protected String metadataKey(String document, String mediaType, UriInfo uriInfo) {
+        return document + ";" + mediaType + ";" + uriInfo.getBaseUri();
+    }
+
+    /**
+     * Build the key a response to a read is cached under in the ResponseCache of its PersistenceContext.
+     * Responses contain links so they are specific to the base URI they were requested through, and
+     * they are specific to the tenant since multitenant entities are only read for their own tenant.
+     * @param resource the path of the resource below the context
+     * @param tenantId
+     * @param mediaType
+     * @param ui
+     * @return
+     */
+    protected String responseCacheKey(String resource, String tenantId, MediaType mediaType, UriInfo ui) {
+        StringBuilder key = new StringBuilder();
+        key.append(ui.getBaseUri()).append(resource);
+        // the order of the parameters does not change the response
+        for (Entry<String, Object> parameter: new TreeMap<String, Object>(getParameterMap(ui)).entrySet()){
+            key.append(';').append(parameter.getKey()).append('=').append(parameter.getValue());
+        }
+        char separator = '?';
+        for (Entry<String, List<String>> parameter: new TreeMap<String, List<String>>(ui.getQueryParameters()).entrySet()){
+            key.append(separator).append(parameter.getKey()).append('=').append(parameter.getValue());
+            separator = '&';
+        }
+        key.append(';').append(tenantId).append(';').append(mediaType);
+        return key.toString();
+    }
+
+    /**
+     * Build the response for a cached document, answering with 304 Not Modified if the client already
+     * holds the current version of it
+     * @param app the context the document belongs to, whose compression properties apply
+     * @param cached
+     * @param hh
+     * @return
+     */
+    protected ResponseBuilder cachedResponse(PersistenceContext app, CachedResponse cached, HttpHeaders hh) {
+        if (EntityTagHelper.matches(hh, cached.getTag())){
+            return Response.notModified(cached.getTag());
+        }
+        return ok(app, cached.getContent(), mediaType(hh.getAcceptableMediaTypes()), hh, cached.getTag());
+    }
+
+    protected static synchronized JAXBContext getMetadataContext() throws JAXBException {
+        if (metadataContext == null){
+            Class[] jaxbClasses = new Class[]{Link.class, Attribute.class, Descriptor.class, LinkTemplate.class, PersistenceUnit.class, Query.class, BatchResult.class, JPQLQuery.class};
+            metadataContext = (JAXBContext)JAXBContextFactory.createContext(jaxbClasses, null);
+        }
+        return metadataContext;
+    }
+
     protected String marshallMetadata(Object metadata, String mediaType) throws JAXBException {
-        Class[] jaxbClasses = new Class[]{Link.class, Attribute.class, Descriptor.class, LinkTemplate.class, PersistenceUnit.class, Query.class};
-        JAXBContext context = (JAXBContext)JAXBContextFactory.createContext(jaxbClasses, null);
-        Marshaller marshaller = context.createMarshaller();
+        Marshaller marshaller = getMetadataContext().createMarshaller();
         marshaller.setProperty(JAXBContext.JSON_INCLUDE_ROOT, Boolean.FALSE);
         marshaller.setProperty(MEDIA_TYPE, mediaType);
         StringWriter writer = new StringWriter();
@@ -581,12 +1550,48 @@ public class Service {
     }
     
     protected SessionBeanCall unmarshallSessionBeanCall(InputStream data) throws JAXBException {
-        Class[] jaxbClasses = new Class[]{SessionBeanCall.class};
+        return dispatcher.unmarshallCall(data);
+    }
+    
+    protected JPQLQuery unmarshallJPQLQuery(InputStream data, MediaType mediaType) throws JAXBException {
+        Unmarshaller unmarshaller = getMetadataContext().createUnmarshaller();
+        unmarshaller.setProperty(JAXBContext.JSON_INCLUDE_ROOT, Boolean.FALSE);
+        unmarshaller.setProperty(MEDIA_TYPE, mediaType.toString());
+        StreamSource ss = new StreamSource(data);
+        return unmarshaller.unmarshal(ss, JPQLQuery.class).getValue();
+    }
+    
+    @SuppressWarnings("unchecked")
+    protected List<EntityKey> unmarshallEntityKeys(InputStream data, MediaType mediaType) throws JAXBException {
+        Class[] jaxbClasses = new Class[]{EntityKey.class};
+        JAXBContext context = (JAXBContext)JAXBContextFactory.createContext(jaxbClasses, null);
+        Unmarshaller unmarshaller = context.createUnmarshaller();
+        unmarshaller.setProperty(JAXBContext.JSON_INCLUDE_ROOT, Boolean.FALSE);
+        unmarshaller.setProperty(MEDIA_TYPE, mediaType.toString());
+        StreamSource ss = new StreamSource(data);
+        Object value = unmarshaller.unmarshal(ss, EntityKey.class).getValue();
+        if (value instanceof List){
+            return (List<EntityKey>)value;
+        }
+        List<EntityKey> keys = new ArrayList<EntityKey>();
+        keys.add((EntityKey)value);
+        return keys;
+    }
+    
+    @SuppressWarnings("unchecked")
+    protected List<BatchOperation> unmarshallBatch(InputStream data, MediaType mediaType) throws JAXBException {
+        Class[] jaxbClasses = new Class[]{BatchOperation.class};
         JAXBContext context = (JAXBContext)JAXBContextFactory.createContext(jaxbClasses, null);
         Unmarshaller unmarshaller = context.createUnmarshaller();
         unmarshaller.setProperty(JAXBContext.JSON_INCLUDE_ROOT, Boolean.FALSE);
-        unmarshaller.setProperty(MEDIA_TYPE, MediaType.APPLICATION_JSON);
+        unmarshaller.setProperty(MEDIA_TYPE, mediaType.toString());
         StreamSource ss = new StreamSource(data);
-        return unmarshaller.unmarshal(ss, SessionBeanCall.class).getValue();
+        Object value = unmarshaller.unmarshal(ss, BatchOperation.class).getValue();
+        if (value instanceof List){
+            return (List<BatchOperation>)value;
+        }
+        List<BatchOperation> operations = new ArrayList<BatchOperation>();
+        operations.add((BatchOperation)value);
+        return operations;
     }
 }
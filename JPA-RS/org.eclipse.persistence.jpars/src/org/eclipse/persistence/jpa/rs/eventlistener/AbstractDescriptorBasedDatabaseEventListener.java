@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.eventlistener;
+
+/**
+ * A base for DescriptorBasedDatabaseEventListeners that hands change events to a ChangeEventDispatcher,
+ * so the thread that receives notifications from the database never waits for a ChangeListener.
+ *
+ * Subclasses connect to the database's change notification and call fireObjectInserted and
+ * fireObjectUpdated for the changes they are told about.
+ */
+public abstract class AbstractDescriptorBasedDatabaseEventListener implements DescriptorBasedDatabaseEventListener {
+
+    protected ChangeEventDispatcher dispatcher;
+
+    public AbstractDescriptorBasedDatabaseEventListener(){
+        this(new ChangeEventDispatcher());
+    }
+
+    public AbstractDescriptorBasedDatabaseEventListener(ChangeEventDispatcher dispatcher){
+        this.dispatcher = dispatcher;
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        dispatcher.addChangeListener(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        dispatcher.removeChangeListener(listener);
+    }
+
+    public ChangeEventDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    protected void fireObjectInserted(String entityName, String transactionId, String rowId) {
+        dispatcher.objectInserted(entityName, transactionId, rowId);
+    }
+
+    protected void fireObjectUpdated(String entityName, String transactionId, String rowId) {
+        dispatcher.objectUpdated(entityName, transactionId, rowId);
+    }
+}
@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.eventlistener;
+
+/**
+ * A change to a row of an entity, as reported to a ChangeListener.  Events are numbered in the order
+ * they are received so clients can ask for the events after the last one they saw.
+ */
+public class ChangeEvent {
+
+    public static final String INSERT = "insert";
+    public static final String UPDATE = "update";
+
+    private long id;
+    private String type;
+    private String entityName;
+    private String transactionId;
+    private String rowId;
+
+    public ChangeEvent(long id, String type, String entityName, String transactionId, String rowId){
+        this.id = id;
+        this.type = type;
+        this.entityName = entityName;
+        this.transactionId = transactionId;
+        this.rowId = rowId;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return insert or update
+     */
+    public String getType() {
+        return type;
+    }
+
+    public String getEntityName() {
+        return entityName;
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public String getRowId() {
+        return rowId;
+    }
+}
@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.eventlistener;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers change events to ChangeListeners without making the thread that reports them wait.
+ *
+ * Listeners are kept in a copy-on-write list so events are dispatched without locking.  Each listener
+ * has its own bounded queue; dispatching an event only adds it to the queues, and the queues are drained
+ * by a small pool of threads.  A queue is drained by at most one thread at a time, so a listener sees
+ * its events in order, and at most batchSize events are delivered before the thread moves on so a slow
+ * listener does not keep others waiting.  When the queue of a listener is full, further events for it
+ * are dropped and counted.
+ *
+ * An update of a row that is already waiting to be delivered to a listener, and was queued less than
+ * the coalescing window ago, is not queued again.  The listener is told once that the row changed.
+ *
+ * @see AbstractDescriptorBasedDatabaseEventListener
+ */
+public class ChangeEventDispatcher implements ChangeListener {
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final long DEFAULT_COALESCING_WINDOW = 100;
+
+    private CopyOnWriteArrayList<ListenerQueue> queues = new CopyOnWriteArrayList<ListenerQueue>();
+    private ExecutorService executor;
+    private int queueCapacity;
+    private int batchSize;
+    private long coalescingWindow;
+
+    private AtomicLong lastId = new AtomicLong();
+    private AtomicLong dropped = new AtomicLong();
+    private AtomicLong coalesced = new AtomicLong();
+    private AtomicLong delivered = new AtomicLong();
+
+    public ChangeEventDispatcher(){
+        this("events", DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_COALESCING_WINDOW);
+    }
+
+    /**
+     * @param name used to name the threads that deliver events
+     * @param threads the number of threads that deliver events
+     * @param queueCapacity the number of events that can wait for each listener
+     * @param batchSize the number of events delivered to a listener before its thread moves on to others
+     * @param coalescingWindow the time in milliseconds within which updates of a row are coalesced, 0 to deliver every update
+     */
+    public ChangeEventDispatcher(final String name, int threads, int queueCapacity, int batchSize, long coalescingWindow){
+        this.queueCapacity = Math.max(queueCapacity, 1);
+        this.batchSize = Math.max(batchSize, 1);
+        this.coalescingWindow = coalescingWindow;
+        // each listener has at most one drain task waiting, so the task queue is bounded by the listeners
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "jpa-rs-" + name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        queues.addIfAbsent(new ListenerQueue(listener));
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        queues.remove(new ListenerQueue(listener));
+    }
+
+    public void objectInserted(String entityName, String transactionId, String rowId) {
+        dispatch(new ChangeEvent(lastId.incrementAndGet(), ChangeEvent.INSERT, entityName, transactionId, rowId));
+    }
+
+    public void objectUpdated(String entityName, String transactionId, String rowId) {
+        dispatch(new ChangeEvent(lastId.incrementAndGet(), ChangeEvent.UPDATE, entityName, transactionId, rowId));
+    }
+
+    /**
+     * Call register on all listeners
+     */
+    public void register() {
+        for (ListenerQueue queue: queues){
+            queue.listener.register();
+        }
+    }
+
+    /**
+     * Call unregister on all listeners
+     */
+    public void unregister() {
+        for (ListenerQueue queue: queues){
+            queue.listener.unregister();
+        }
+    }
+
+    protected void dispatch(ChangeEvent event) {
+        for (ListenerQueue queue: queues){
+            queue.offer(event);
+        }
+    }
+
+    /**
+     * Stop delivering events.  Events that are waiting are discarded.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        queues.clear();
+    }
+
+    /**
+     * Return the number of events waiting to be delivered to all listeners
+     * @return
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ListenerQueue queue: queues){
+            depth += queue.size.get();
+        }
+        return depth;
+    }
+
+    /**
+     * Return the number of events waiting to be delivered to a listener
+     * @param listener
+     * @return the number of events, or 0 if the listener is not registered
+     */
+    public int getQueueDepth(ChangeListener listener) {
+        for (ListenerQueue queue: queues){
+            if (queue.listener == listener){
+                return queue.size.get();
+            }
+        }
+        return 0;
+    }
+
+    public int getListenerCount() {
+        return queues.size();
+    }
+
+    /**
+     * Return the number of events dropped because the queue of a listener was full
+     * @return
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Return the number of updates that were not queued because an update of the same row was waiting
+     * @return
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * The events waiting for one listener
+     */
+    private class ListenerQueue implements Runnable {
+
+        private ChangeListener listener;
+        private Queue<ChangeEvent> events = new ConcurrentLinkedQueue<ChangeEvent>();
+        private AtomicInteger size = new AtomicInteger();
+        private AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        /** the queued update of each row, keyed by entity and row id, and when each was queued **/
+        private ConcurrentMap<String, ChangeEvent> pendingUpdates = new ConcurrentHashMap<String, ChangeEvent>();
+        private ConcurrentMap<ChangeEvent, Long> queuedAt = new ConcurrentHashMap<ChangeEvent, Long>();
+
+        public ListenerQueue(ChangeListener listener){
+            this.listener = listener;
+        }
+
+        public void offer(ChangeEvent event) {
+            String key = null;
+            if (coalescingWindow > 0 && ChangeEvent.UPDATE.equals(event.getType()) && event.getRowId() != null){
+                key = event.getEntityName() + '/' + event.getRowId();
+                long now = System.currentTimeMillis();
+                ChangeEvent pending = pendingUpdates.putIfAbsent(key, event);
+                if (pending != null){
+                    Long since = queuedAt.get(pending);
+                    if (since != null && now - since < coalescingWindow){
+                        coalesced.incrementAndGet();
+                        return;
+                    }
+                    pendingUpdates.put(key, event);
+                }
+                queuedAt.put(event, now);
+            }
+            if (size.incrementAndGet() > queueCapacity){
+                size.decrementAndGet();
+                dropped.incrementAndGet();
+                if (key != null){
+                    pendingUpdates.remove(key, event);
+                    queuedAt.remove(event);
+                }
+                return;
+            }
+            events.offer(event);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)){
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e){
+                    // shut down
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        public void run() {
+            try {
+                for (int i = 0; i < batchSize; i++){
+                    ChangeEvent event = events.poll();
+                    if (event == null){
+                        break;
+                    }
+                    size.decrementAndGet();
+                    if (queuedAt.remove(event) != null){
+                        pendingUpdates.remove(event.getEntityName() + '/' + event.getRowId(), event);
+                    }
+                    try {
+                        if (ChangeEvent.INSERT.equals(event.getType())){
+                            listener.objectInserted(event.getEntityName(), event.getTransactionId(), event.getRowId());
+                        } else {
+                            listener.objectUpdated(event.getEntityName(), event.getTransactionId(), event.getRowId());
+                        }
+                        delivered.incrementAndGet();
+                    } catch (RuntimeException e){
+                        // a failing listener does not stop delivery to it or to others
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                // events may have arrived after the last poll, or the batch ended with events left
+                if (!events.isEmpty()){
+                    schedule();
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof ListenerQueue && ((ListenerQueue)object).listener == listener;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(listener);
+        }
+    }
+}
@@ -35,6 +35,13 @@ public interface DescriptorBasedDatabaseEventListener extends DatabaseEventListe
      */
     public void register(Session session, ClassDescriptor descriptor);
     
+    /**
+     * Add a listener to be told about changes.  Listeners may be added and removed while events are
+     * delivered, and a slow listener must not hold up the thread that receives database events or the
+     * other listeners.
+     * @param listener
+     * @see ChangeEventDispatcher
+     */
     public void addChangeListener(ChangeListener listener);
     
     public void removeChangeListener(ChangeListener listener);
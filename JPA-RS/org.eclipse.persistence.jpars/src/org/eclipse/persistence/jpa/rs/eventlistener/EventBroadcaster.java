@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.eventlistener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ChangeListener that numbers the change events of a PersistenceContext and passes each of them to
+ * the subscribers for its entity.
+ *
+ * The most recent events are kept so a subscriber that reconnects with the id of the last event it
+ * received is first given the events it missed.  Event ids are numbered from 1 by each broadcaster, so
+ * clients are given them prefixed with the epoch of the broadcaster.  A client that reconnects with
+ * the id of another epoch, such as one from before its context was restarted, is given all the kept
+ * events.
+ *
+ * @see org.eclipse.persistence.jpa.rs.PersistenceContext#subscribeToEvents(String)
+ */
+public class EventBroadcaster implements ChangeListener {
+
+    private static final AtomicInteger broadcasters = new AtomicInteger();
+
+    /** Tells the ids of this broadcaster apart from those of earlier ones **/
+    private String epoch = Long.toString(System.currentTimeMillis(), 36) + Integer.toString(broadcasters.incrementAndGet(), 36);
+    private long lastId = 0;
+    private ChangeEvent[] history;
+    private int historyHead = 0;
+    private int historySize = 0;
+    private List<EventSubscriber> subscribers = new ArrayList<EventSubscriber>();
+    private int maxSubscribers;
+
+    /**
+     * @param historySize the number of recent events kept for subscribers that resume
+     */
+    public EventBroadcaster(int historySize){
+        this(historySize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param historySize the number of recent events kept for subscribers that resume
+     * @param maxSubscribers the number of subscribers there can be at once
+     */
+    public EventBroadcaster(int historySize, int maxSubscribers){
+        this.history = new ChangeEvent[Math.max(historySize, 0)];
+        this.maxSubscribers = maxSubscribers;
+    }
+
+    public void objectInserted(String entityName, String transactionId, String rowId) {
+        publish(ChangeEvent.INSERT, entityName, transactionId, rowId);
+    }
+
+    public void objectUpdated(String entityName, String transactionId, String rowId) {
+        publish(ChangeEvent.UPDATE, entityName, transactionId, rowId);
+    }
+
+    public void register() {
+    }
+
+    /**
+     * Close all subscribers
+     */
+    public synchronized void unregister() {
+        for (EventSubscriber subscriber: subscribers){
+            subscriber.close();
+        }
+        subscribers.clear();
+    }
+
+    protected synchronized void publish(String type, String entityName, String transactionId, String rowId) {
+        ChangeEvent event = new ChangeEvent(++lastId, type, entityName, transactionId, rowId);
+        if (history.length > 0){
+            if (historySize == history.length){
+                history[historyHead] = event;
+                historyHead = (historyHead + 1) % history.length;
+            } else {
+                history[(historyHead + historySize) % history.length] = event;
+                historySize++;
+            }
+        }
+        for (int i = subscribers.size() - 1; i >= 0; i--){
+            EventSubscriber subscriber = subscribers.get(i);
+            if (subscriber.getEntityName().equals(entityName) && !subscriber.offer(event)){
+                subscribers.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Add a subscriber.  If the id of the last event the client received is given, the kept events
+     * after it are buffered first.
+     * @param subscriber
+     * @param lastEventId the id of the last event the client received, or null
+     * @throws RejectedExecutionException if there are as many subscribers as there can be
+     */
+    public synchronized void subscribe(EventSubscriber subscriber, Long lastEventId) {
+        if (subscribers.size() >= maxSubscribers){
+            throw new RejectedExecutionException("Event streams are limited to " + maxSubscribers + " clients");
+        }
+        if (lastEventId != null){
+            for (int i = 0; i < historySize; i++){
+                ChangeEvent event = history[(historyHead + i) % history.length];
+                if (event.getId() > lastEventId && event.getEntityName().equals(subscriber.getEntityName())){
+                    subscriber.offer(event);
+                }
+            }
+        }
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * Add a subscriber for a client that gave the id of the last event it received as it was sent by
+     * eventId.  Ids of another epoch are taken to be from before the events this broadcaster kept.
+     * @param subscriber
+     * @param lastEventId the Last-Event-ID of the client, or null
+     * @throws RejectedExecutionException if there are as many subscribers as there can be
+     */
+    public synchronized void resume(EventSubscriber subscriber, String lastEventId) {
+        Long id = null;
+        int separator = lastEventId == null ? -1 : lastEventId.lastIndexOf('-');
+        if (separator > 0){
+            try {
+                id = Long.valueOf(lastEventId.substring(separator + 1).trim());
+                if (!epoch.equals(lastEventId.substring(0, separator).trim())){
+                    id = Long.valueOf(0);
+                }
+            } catch (NumberFormatException e){
+                // not one of our ids, the client gets the events from now on
+            }
+        }
+        subscribe(subscriber, id);
+    }
+
+    /**
+     * Return the id of an event as it is sent to clients
+     * @param event
+     * @return
+     */
+    public String eventId(ChangeEvent event) {
+        return epoch + "-" + event.getId();
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    public synchronized void unsubscribe(EventSubscriber subscriber) {
+        subscribers.remove(subscriber);
+        subscriber.close();
+    }
+
+    public synchronized int getSubscriberCount() {
+        return subscribers.size();
+    }
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.eventlistener;
+
+/**
+ * The change events waiting to be sent to one client.
+ *
+ * Events are held in a ring buffer of fixed capacity.  If a client does not keep up and the buffer is
+ * full, either the oldest event is dropped to make room or the subscriber is closed so the client is
+ * disconnected and can resume from the last event it received.
+ *
+ * @see EventBroadcaster
+ */
+public class EventSubscriber {
+
+    /** The overflow policy that drops the oldest buffered event **/
+    public static final String DROP_OLDEST = "drop-oldest";
+
+    /** The overflow policy that closes the subscriber **/
+    public static final String DISCONNECT = "disconnect";
+
+    private String entityName;
+    private boolean disconnectOnOverflow;
+    private ChangeEvent[] buffer;
+    private int head = 0;
+    private int size = 0;
+    private long dropped = 0;
+    private boolean closed = false;
+
+    /**
+     * @param entityName the entity to receive the changes of
+     * @param capacity the number of events that can be buffered
+     * @param overflowPolicy DROP_OLDEST or DISCONNECT
+     */
+    public EventSubscriber(String entityName, int capacity, String overflowPolicy){
+        if (!DROP_OLDEST.equals(overflowPolicy) && !DISCONNECT.equals(overflowPolicy)){
+            throw new IllegalArgumentException("Unknown overflow policy " + overflowPolicy);
+        }
+        this.entityName = entityName;
+        this.buffer = new ChangeEvent[Math.max(capacity, 1)];
+        this.disconnectOnOverflow = DISCONNECT.equals(overflowPolicy);
+    }
+
+    public String getEntityName() {
+        return entityName;
+    }
+
+    /**
+     * Add an event to the buffer
+     * @param event
+     * @return false if the subscriber is closed
+     */
+    public synchronized boolean offer(ChangeEvent event) {
+        if (closed){
+            return false;
+        }
+        if (size == buffer.length){
+            if (disconnectOnOverflow){
+                close();
+                return false;
+            }
+            buffer[head] = null;
+            head = (head + 1) % buffer.length;
+            size--;
+            dropped++;
+        }
+        buffer[(head + size) % buffer.length] = event;
+        size++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Take the oldest buffered event, waiting for one if the buffer is empty
+     * @param timeout the time in milliseconds to wait
+     * @return the event, or null if none arrived in time or the subscriber is closed
+     * @throws InterruptedException
+     */
+    public synchronized ChangeEvent poll(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (size == 0 && !closed){
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0){
+                return null;
+            }
+            wait(remaining);
+        }
+        if (size == 0){
+            return null;
+        }
+        ChangeEvent event = buffer[head];
+        buffer[head] = null;
+        head = (head + 1) % buffer.length;
+        size--;
+        return event;
+    }
+
+    /**
+     * Stop buffering events.  A client waiting in poll is woken up.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed && size == 0;
+    }
+
+    /**
+     * Return the number of events dropped because the buffer was full
+     * @return
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
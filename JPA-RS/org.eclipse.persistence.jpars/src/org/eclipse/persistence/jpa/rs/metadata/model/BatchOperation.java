@@ -0,0 +1,75 @@
+package org.eclipse.persistence.jpa.rs.metadata.model;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * A single operation in a batch request.  Persist and merge operations carry the entity
+ * in the media type of the request, delete operations carry the primary key string as used
+ * in the find URL.
+ */
+@XmlRootElement
+public class BatchOperation {
+
+    public static final String PERSIST = "persist";
+    public static final String MERGE = "merge";
+    public static final String DELETE = "delete";
+
+    private String operation = null;
+    private String type = null;
+    private String id = null;
+    private String entity = null;
+
+    public BatchOperation(){
+    }
+
+    public BatchOperation(String operation, String type, String id, String entity){
+        this.operation = operation;
+        this.type = type;
+        this.id = id;
+        this.entity = entity;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+    public String getType() {
+        return type;
+    }
+    public void setType(String type) {
+        this.type = type;
+    }
+    public String getId() {
+        return id;
+    }
+    public void setId(String id) {
+        this.id = id;
+    }
+    public String getEntity() {
+        return entity;
+    }
+    public void setEntity(String entity) {
+        this.entity = entity;
+    }
+
+    public boolean isDelete(){
+        return DELETE.equals(operation);
+    }
+
+    /**
+     * An operation is valid if it is one of the known operations and it carries
+     * the data that operation requires
+     * @return
+     */
+    public boolean isValid(){
+        if (type == null){
+            return false;
+        }
+        if (isDelete()){
+            return id != null;
+        }
+        return (PERSIST.equals(operation) || MERGE.equals(operation)) && entity != null;
+    }
+}
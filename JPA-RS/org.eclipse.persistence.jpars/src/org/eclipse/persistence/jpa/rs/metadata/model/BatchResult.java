@@ -0,0 +1,47 @@
+package org.eclipse.persistence.jpa.rs.metadata.model;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class BatchResult {
+
+    private String operation;
+    private String type;
+    private int status;
+    private String href;
+
+    public BatchResult(){
+    }
+
+    public BatchResult(String operation, String type, int status, String href){
+        this.operation = operation;
+        this.type = type;
+        this.status = status;
+        this.href = href;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+    public String getType() {
+        return type;
+    }
+    public void setType(String type) {
+        this.type = type;
+    }
+    public int getStatus() {
+        return status;
+    }
+    public void setStatus(int status) {
+        this.status = status;
+    }
+    public String getHref() {
+        return href;
+    }
+    public void setHref(String href) {
+        this.href = href;
+    }
+}
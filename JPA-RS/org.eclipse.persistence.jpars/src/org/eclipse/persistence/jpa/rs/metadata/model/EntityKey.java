@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.metadata.model;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Identifies an entity to read in a multi-get, either by its id in the form used in entity URLs or
+ * by the href of its link
+ */
+@XmlRootElement
+public class EntityKey {
+
+    private String id = null;
+    private String href = null;
+
+    public EntityKey(){
+    }
+
+    public EntityKey(String id, String href){
+        this.id = id;
+        this.href = href;
+    }
+
+    public String getId() {
+        return id;
+    }
+    public void setId(String id) {
+        this.id = id;
+    }
+    public String getHref() {
+        return href;
+    }
+    public void setHref(String href) {
+        this.href = href;
+    }
+}
@@ -0,0 +1,26 @@
+package org.eclipse.persistence.jpa.rs.metadata.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class JPQLQuery {
+
+    private String jpql = null;
+    private List<Parameter> parameters = new ArrayList<Parameter>();
+
+    public String getJpql() {
+        return jpql;
+    }
+    public void setJpql(String jpql) {
+        this.jpql = jpql;
+    }
+    public List<Parameter> getParameters() {
+        return parameters;
+    }
+    public void setParameters(List<Parameter> parameters) {
+        this.parameters = parameters;
+    }
+}
@@ -2,9 +2,16 @@ package org.eclipse.persistence.jpa.rs.metadata.model;
 
 public class Parameter {
 
+    private String name = null;
     private String value = null;
     private String typeName = null;
     
+    public String getName() {
+        return name;
+    }
+    public void setName(String name) {
+        this.name = name;
+    }
     public String getValue() {
         return value;
     }
@@ -0,0 +1,716 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.core.MediaType;
+
+import org.eclipse.persistence.config.CacheUsage;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.FetchGroupManager;
+import org.eclipse.persistence.internal.helper.ConversionManager;
+import org.eclipse.persistence.internal.queries.ContainerPolicy;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.jpa.rs.PersistenceContext;
+import org.eclipse.persistence.mappings.AggregateObjectMapping;
+import org.eclipse.persistence.mappings.CollectionMapping;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+import org.eclipse.persistence.mappings.ObjectReferenceMapping;
+import org.eclipse.persistence.mappings.foundation.AbstractDirectMapping;
+import org.eclipse.persistence.queries.FetchGroup;
+
+/**
+ * Encodes and decodes entities in a compact binary format built from the mappings of their
+ * ClassDescriptors, as an alternative to JSON and XML for clients that can read it.
+ *
+ * A document starts with a magic number and version followed by a single value.  Every value
+ * starts with a tag byte.  Integers are written as zig-zag varints and strings as UTF-8 preceded
+ * by their length.  The first time an entity or embeddable type is written its name and the names
+ * of its mapped attributes are written once; after that the type is referred to by its index and
+ * its attributes by their position in that table.  Attributes with null values are not written.
+ *
+ * Relationships are written as links made up of the type of the target and the values of its
+ * primary key, rather than the target itself.  When decoding, links are resolved against the cache
+ * or turned into an object shell as the LinkAdapter does for JSON and XML.  Relationships on the paths
+ * of an ExpandedResult are written in place as the entities they refer to instead.
+ *
+ * A list of unknown size that could not be finished, because reading its elements failed after the
+ * response was sent, ends with an error tag and message instead of its end tag.
+ *
+ * @see PersistenceContext#marshallEntity(Object, MediaType, OutputStream)
+ * @see PersistenceContext#unmarshalEntity(String, String, MediaType, InputStream)
+ */
+public class BinaryCodec {
+
+    public static final String APPLICATION_BINARY = "application/x-jpars-binary";
+
+    public static final MediaType APPLICATION_BINARY_TYPE = new MediaType("application", "x-jpars-binary");
+
+    protected static final int MAGIC = 0x4A52;
+    protected static final int VERSION = 1;
+
+    protected static final int NULL = 0;
+    protected static final int TRUE = 1;
+    protected static final int FALSE = 2;
+    protected static final int INT = 3;
+    protected static final int LONG = 4;
+    protected static final int SHORT = 5;
+    protected static final int BYTE = 6;
+    protected static final int CHAR = 7;
+    protected static final int FLOAT = 8;
+    protected static final int DOUBLE = 9;
+    protected static final int STRING = 10;
+    protected static final int BYTES = 11;
+    protected static final int DATE = 12;
+    protected static final int TIMESTAMP = 13;
+    protected static final int TEXT = 14;
+    protected static final int LINK = 15;
+    protected static final int LIST = 16;
+    protected static final int OBJECT = 17;
+    protected static final int STREAM = 18;
+    protected static final int END = 19;
+    protected static final int ERROR = 20;
+
+    /**
+     * Return true if the given media type is the binary format
+     * @param mediaType
+     * @return
+     */
+    public static boolean isBinary(MediaType mediaType) {
+        return mediaType != null && APPLICATION_BINARY_TYPE.getType().equalsIgnoreCase(mediaType.getType())
+            && APPLICATION_BINARY_TYPE.getSubtype().equalsIgnoreCase(mediaType.getSubtype());
+    }
+
+    /**
+     * Write an entity, or a list of entities or values, to the output
+     * @param context
+     * @param object
+     * @param output
+     * @throws IOException
+     */
+    public static void encode(PersistenceContext context, Object object, OutputStream output) throws IOException {
+        Encoder encoder = new Encoder(context, output);
+        if (object instanceof ExpandedResult){
+            encoder.setExpandedPaths(((ExpandedResult)object).getPaths());
+            object = ((ExpandedResult)object).getResult();
+        }
+        encoder.writeValue(object);
+        encoder.flush();
+    }
+
+    /**
+     * Read an entity of the given type, or a list, from the input with the default limits
+     * @param context
+     * @param type the entity name of the expected type
+     * @param input
+     * @return
+     * @throws IOException if the document is malformed or exceeds the limits
+     */
+    public static Object decode(PersistenceContext context, String type, InputStream input) throws IOException {
+        return decode(context, type, input, PersistenceContext.DEFAULT_BINARY_MAX_LENGTH, PersistenceContext.DEFAULT_BINARY_MAX_DEPTH);
+    }
+
+    /**
+     * Read an entity of the given type, or a list, from the input
+     * @param context
+     * @param type the entity name of the expected type
+     * @param input
+     * @param maxLength the largest string, byte array, list or attribute table accepted
+     * @param maxDepth the deepest nesting of lists and objects accepted
+     * @return
+     * @throws IOException if the document is malformed or exceeds the limits
+     */
+    public static Object decode(PersistenceContext context, String type, InputStream input, int maxLength, int maxDepth) throws IOException {
+        Decoder decoder = new Decoder(context, input, maxLength, maxDepth);
+        try {
+            return decoder.readValue(type == null ? null : context.getDescriptor(type), null);
+        } catch (RuntimeException e){
+            // values of the wrong type for their attributes, unknown type indexes and the like
+            IOException exception = new IOException("Malformed JPA-RS binary document");
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    /**
+     * Writes values to an output stream.  An Encoder writes one document and remembers the types it
+     * has written so it must not be shared.
+     */
+    public static class Encoder {
+
+        private AbstractSession session;
+        private OutputStream output;
+        private Map<ClassDescriptor, TypeEntry> types = new HashMap<ClassDescriptor, TypeEntry>();
+        private Set<String> expandedPaths = Collections.emptySet();
+        private byte[] buffer = new byte[10];
+
+        public Encoder(PersistenceContext context, OutputStream output) throws IOException {
+            this.session = (AbstractSession)JpaHelper.getServerSession(context.getEmf());
+            this.output = output;
+            writeRawVarint(MAGIC);
+            writeRawVarint(VERSION);
+        }
+
+        /**
+         * Start a list whose size is not known in advance.  Elements are written with writeValue
+         * and the list is ended with endStream.
+         * @throws IOException
+         */
+        public void startStream() throws IOException {
+            output.write(STREAM);
+        }
+
+        public void endStream() throws IOException {
+            output.write(END);
+        }
+
+        /**
+         * End a list started with startStream that could not be finished.  Reading it fails with the message.
+         * @param message
+         * @throws IOException
+         */
+        public void abortStream(String message) throws IOException {
+            output.write(ERROR);
+            writeString(message);
+            output.flush();
+        }
+
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+        /**
+         * Write the targets of relationships on the given paths, and on each path leading to them, in
+         * place rather than as links.  Expanding bids.user writes both the bids and their users.
+         * @param paths
+         */
+        public void setExpandedPaths(Collection<String> paths) {
+            Set<String> expanded = new HashSet<String>();
+            for (String path: paths){
+                int index = -1;
+                do {
+                    index = path.indexOf('.', index + 1);
+                    expanded.add(index < 0 ? path : path.substring(0, index));
+                } while (index >= 0);
+            }
+            this.expandedPaths = expanded;
+        }
+
+        public void writeValue(Object value) throws IOException {
+            if (value == null){
+                output.write(NULL);
+            } else if (value instanceof String){
+                output.write(STRING);
+                writeString((String)value);
+            } else if (value instanceof Integer){
+                output.write(INT);
+                writeRawVarint(zigzag(((Integer)value).longValue()));
+            } else if (value instanceof Long){
+                output.write(LONG);
+                writeRawVarint(zigzag((Long)value));
+            } else if (value instanceof Boolean){
+                output.write(((Boolean)value) ? TRUE : FALSE);
+            } else if (value instanceof Double){
+                output.write(DOUBLE);
+                writeFixed(Double.doubleToLongBits((Double)value), 8);
+            } else if (value instanceof Float){
+                output.write(FLOAT);
+                writeFixed(Float.floatToIntBits((Float)value), 4);
+            } else if (value instanceof Short){
+                output.write(SHORT);
+                writeRawVarint(zigzag(((Short)value).longValue()));
+            } else if (value instanceof Byte){
+                output.write(BYTE);
+                output.write((Byte)value);
+            } else if (value instanceof Character){
+                output.write(CHAR);
+                writeRawVarint((Character)value);
+            } else if (value instanceof byte[]){
+                byte[] bytes = (byte[])value;
+                output.write(BYTES);
+                writeRawVarint(bytes.length);
+                output.write(bytes);
+            } else if (value instanceof Timestamp){
+                output.write(TIMESTAMP);
+                writeRawVarint(zigzag(((Timestamp)value).getTime()));
+                writeRawVarint(((Timestamp)value).getNanos());
+            } else if (value instanceof Date){
+                output.write(DATE);
+                writeRawVarint(zigzag(((Date)value).getTime()));
+            } else if (value instanceof Calendar){
+                output.write(DATE);
+                writeRawVarint(zigzag(((Calendar)value).getTimeInMillis()));
+            } else if (value instanceof Object[]){
+                Object[] values = (Object[])value;
+                output.write(LIST);
+                writeRawVarint(values.length);
+                for (Object element: values){
+                    writeValue(element);
+                }
+            } else if (value instanceof Collection){
+                Collection<?> values = (Collection<?>)value;
+                output.write(LIST);
+                writeRawVarint(values.size());
+                for (Object element: values){
+                    writeValue(element);
+                }
+            } else {
+                ClassDescriptor descriptor = session.getDescriptor(value.getClass());
+                if (descriptor == null){
+                    // BigDecimal, BigInteger, enums and other values that have a string form
+                    output.write(TEXT);
+                    writeString(value.toString());
+                } else {
+                    output.write(OBJECT);
+                    writeObject(descriptor, value, null);
+                }
+            }
+        }
+
+        /**
+         * Write the attributes of an object
+         * @param descriptor
+         * @param object
+         * @param path the relationship path the object was reached through, or null for a result
+         * @throws IOException
+         */
+        protected void writeObject(ClassDescriptor descriptor, Object object, String path) throws IOException {
+            TypeEntry entry = writeType(descriptor);
+            FetchGroupManager fetchGroupManager = descriptor.getFetchGroupManager();
+            for (int i = 0; i < entry.mappings.length; i++){
+                DatabaseMapping mapping = entry.mappings[i];
+                if (fetchGroupManager != null && !fetchGroupManager.isAttributeFetched(object, mapping.getAttributeName())){
+                    continue;
+                }
+                Object value = mapping.getRealAttributeValueFromObject(object, session);
+                if (value == null){
+                    continue;
+                }
+                writeRawVarint(i + 1);
+                String attributePath = path == null ? mapping.getAttributeName() : path + "." + mapping.getAttributeName();
+                if (mapping.isCollectionMapping()){
+                    ContainerPolicy policy = mapping.getContainerPolicy();
+                    output.write(LIST);
+                    writeRawVarint(policy.sizeFor(value));
+                    for (Object iterator = policy.iteratorFor(value); policy.hasNext(iterator);){
+                        writeReference(policy.next(iterator, session), attributePath);
+                    }
+                } else if (mapping.isObjectReferenceMapping()){
+                    writeReference(value, attributePath);
+                } else if (mapping.isAggregateObjectMapping()){
+                    output.write(OBJECT);
+                    writeObject(mapping.getReferenceDescriptor(), value, attributePath);
+                } else {
+                    writeValue(value);
+                }
+            }
+            writeRawVarint(0);
+        }
+
+        /**
+         * Write the target of a relationship in place if its path is expanded, otherwise as a link
+         */
+        protected void writeReference(Object target, String path) throws IOException {
+            if (target == null || !expandedPaths.contains(path)){
+                writeLink(target);
+                return;
+            }
+            output.write(OBJECT);
+            writeObject(session.getDescriptor(target.getClass()), target, path);
+        }
+
+        protected void writeLink(Object target) throws IOException {
+            if (target == null){
+                output.write(NULL);
+                return;
+            }
+            ClassDescriptor descriptor = session.getDescriptor(target.getClass());
+            output.write(LINK);
+            writeType(descriptor);
+            for (DatabaseMapping mapping: descriptor.getObjectBuilder().getPrimaryKeyMappings()){
+                writeValue(mapping.getRealAttributeValueFromObject(target, session));
+            }
+        }
+
+        /**
+         * Write a reference to the type, along with its attribute table if it has not been written before
+         */
+        protected TypeEntry writeType(ClassDescriptor descriptor) throws IOException {
+            TypeEntry entry = types.get(descriptor);
+            if (entry != null){
+                writeRawVarint(entry.index);
+                return entry;
+            }
+            entry = new TypeEntry(types.size(), descriptor);
+            types.put(descriptor, entry);
+            writeRawVarint(entry.index);
+            writeString(entry.name);
+            writeRawVarint(entry.mappings.length);
+            for (DatabaseMapping mapping: entry.mappings){
+                writeString(mapping.getAttributeName());
+            }
+            return entry;
+        }
+
+        protected void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes("UTF-8");
+            writeRawVarint(bytes.length);
+            output.write(bytes);
+        }
+
+        protected void writeRawVarint(long value) throws IOException {
+            int length = 0;
+            while ((value & ~0x7FL) != 0){
+                buffer[length++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte)value;
+            output.write(buffer, 0, length);
+        }
+
+        protected void writeFixed(long value, int bytes) throws IOException {
+            for (int i = bytes - 1; i >= 0; i--){
+                buffer[i] = (byte)value;
+                value >>>= 8;
+            }
+            output.write(buffer, 0, bytes);
+        }
+    }
+
+    /**
+     * Reads values written by an Encoder.  Lengths and nesting read from the document are checked
+     * against limits before anything is allocated for them, since the document comes from the client.
+     */
+    public static class Decoder {
+
+        private PersistenceContext context;
+        private AbstractSession session;
+        private InputStream input;
+        private List<TypeEntry> types = new ArrayList<TypeEntry>();
+        private int maxLength;
+        private int maxDepth;
+        private int depth = 0;
+
+        public Decoder(PersistenceContext context, InputStream input) throws IOException {
+            this(context, input, PersistenceContext.DEFAULT_BINARY_MAX_LENGTH, PersistenceContext.DEFAULT_BINARY_MAX_DEPTH);
+        }
+
+        /**
+         * @param context
+         * @param input
+         * @param maxLength the largest string, byte array, list or attribute table accepted
+         * @param maxDepth the deepest nesting of lists and objects accepted
+         * @throws IOException
+         */
+        public Decoder(PersistenceContext context, InputStream input, int maxLength, int maxDepth) throws IOException {
+            this.context = context;
+            this.session = (AbstractSession)JpaHelper.getServerSession(context.getEmf());
+            this.input = input;
+            this.maxLength = maxLength;
+            this.maxDepth = maxDepth;
+            if (readRawVarint() != MAGIC){
+                throw new IOException("Not a JPA-RS binary document");
+            }
+            long version = readRawVarint();
+            if (version != VERSION){
+                throw new IOException("Unsupported JPA-RS binary version " + version);
+            }
+        }
+
+        /**
+         * Read the next value
+         * @param expected the descriptor of the object expected, used to resolve embeddable types
+         * @param mapping the mapping the value is read for, or null
+         * @return
+         * @throws IOException
+         */
+        public Object readValue(ClassDescriptor expected, DatabaseMapping mapping) throws IOException {
+            Object value = readValueOrEnd(expected, mapping);
+            if (value == END_OF_STREAM){
+                throw new IOException("End of list outside of a list");
+            }
+            return value;
+        }
+
+        /**
+         * Read the next value, or the end of the list of unknown size being read
+         */
+        protected Object readValueOrEnd(ClassDescriptor expected, DatabaseMapping mapping) throws IOException {
+            int tag = readByte();
+            if (tag != LIST && tag != STREAM && tag != OBJECT){
+                return readValue(tag, expected, mapping);
+            }
+            if (++depth > maxDepth){
+                throw new IOException("Values are nested more than " + maxDepth + " deep");
+            }
+            try {
+                return readValue(tag, expected, mapping);
+            } finally {
+                depth--;
+            }
+        }
+
+        protected Object readValue(int tag, ClassDescriptor expected, DatabaseMapping mapping) throws IOException {
+            switch (tag){
+                case NULL: return null;
+                case TRUE: return Boolean.TRUE;
+                case FALSE: return Boolean.FALSE;
+                case INT: return Integer.valueOf((int)unzigzag(readRawVarint()));
+                case LONG: return Long.valueOf(unzigzag(readRawVarint()));
+                case SHORT: return Short.valueOf((short)unzigzag(readRawVarint()));
+                case BYTE: return Byte.valueOf((byte)readByte());
+                case CHAR: return Character.valueOf((char)readRawVarint());
+                case FLOAT: return Float.intBitsToFloat((int)readFixed(4));
+                case DOUBLE: return Double.longBitsToDouble(readFixed(8));
+                case STRING:
+                case TEXT: return readString();
+                case BYTES: return readBytes(readLength());
+                case DATE: return new Date(unzigzag(readRawVarint()));
+                case TIMESTAMP: {
+                    Timestamp timestamp = new Timestamp(unzigzag(readRawVarint()));
+                    timestamp.setNanos((int)readRawVarint());
+                    return timestamp;
+                }
+                case LINK: return readLink();
+                case LIST: {
+                    int size = readLength();
+                    // the size is not trusted to presize the list, the elements have to be there
+                    List<Object> values = new ArrayList<Object>();
+                    for (int i = 0; i < size; i++){
+                        values.add(readValue(expected, mapping));
+                    }
+                    return values;
+                }
+                case STREAM: {
+                    List<Object> values = new ArrayList<Object>();
+                    Object value = null;
+                    while ((value = readValueOrEnd(expected, mapping)) != END_OF_STREAM){
+                        values.add(value);
+                    }
+                    return values;
+                }
+                case END: return END_OF_STREAM;
+                case ERROR: throw new IOException("List was not finished: " + readString());
+                case OBJECT: return readObject(expected);
+                default: throw new IOException("Unknown value tag " + tag);
+            }
+        }
+
+        protected Object readObject(ClassDescriptor expected) throws IOException {
+            TypeEntry entry = readType(expected);
+            Object object = entry.descriptor.getObjectBuilder().buildNewInstance();
+            int field = 0;
+            while ((field = (int)readRawVarint()) != 0){
+                if (field < 0 || field > entry.mappings.length){
+                    throw new IOException("Unknown attribute " + field + " of " + entry.name);
+                }
+                DatabaseMapping mapping = entry.mappings[field - 1];
+                ClassDescriptor reference = mapping == null ? null : mapping.getReferenceDescriptor();
+                Object value = readValue(reference, mapping);
+                if (mapping == null){
+                    // the attribute is not mapped on this side
+                    continue;
+                }
+                if (mapping.isCollectionMapping()){
+                    ContainerPolicy policy = mapping.getContainerPolicy();
+                    List<?> values = (List<?>)value;
+                    Object container = policy.containerInstance(values.size());
+                    for (Object element: values){
+                        policy.addInto(element, container, session);
+                    }
+                    value = container;
+                } else if (mapping.isAbstractDirectMapping() && value != null){
+                    Class<?> type = ((AbstractDirectMapping)mapping).getAttributeClassification();
+                    if (type != null && !type.isInstance(value)){
+                        value = ConversionManager.getDefaultManager().convertObject(value, type);
+                    }
+                }
+                mapping.setRealAttributeValueInObject(object, value);
+            }
+            return object;
+        }
+
+        protected Object readLink() throws IOException {
+            TypeEntry entry = readType(null);
+            List<DatabaseMapping> pkMappings = entry.descriptor.getObjectBuilder().getPrimaryKeyMappings();
+            Object[] keyElements = new Object[pkMappings.size()];
+            for (int i = 0; i < keyElements.length; i++){
+                Object value = readValue(null, null);
+                Class<?> type = pkMappings.get(i).getAttributeClassification();
+                if (value != null && type != null && !type.isInstance(value)){
+                    value = ConversionManager.getDefaultManager().convertObject(value, type);
+                }
+                keyElements[i] = value;
+            }
+            String entityType = entry.descriptor.getAlias();
+            Object id = IdHelper.buildId(context, entry.descriptor, keyElements);
+
+            FetchGroup fetchGroup = new FetchGroup();
+            for (DatabaseMapping mapping: pkMappings){
+                fetchGroup.addAttribute(mapping.getAttributeName());
+            }
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put(QueryHints.FETCH_GROUP, fetchGroup);
+            properties.put(QueryHints.CACHE_USAGE, CacheUsage.CheckCacheOnly);
+            Object entity = context.find(null, entityType, id, properties);
+            if (entity == null){
+                return IdHelper.buildObjectShell(context, entityType, id);
+            }
+            return entity;
+        }
+
+        /**
+         * Read a reference to a type, along with its attribute table if this is the first reference
+         */
+        protected TypeEntry readType(ClassDescriptor expected) throws IOException {
+            int index = (int)readRawVarint();
+            if (index < types.size()){
+                return types.get(index);
+            }
+            if (index != types.size()){
+                throw new IOException("Unknown type " + index);
+            }
+            String name = readString();
+            ClassDescriptor descriptor = session.getDescriptorForAlias(name);
+            if (descriptor == null){
+                descriptor = expected;
+            }
+            if (descriptor == null){
+                throw new IOException("Unknown type " + name);
+            }
+            int size = readLength();
+            List<DatabaseMapping> mappings = new ArrayList<DatabaseMapping>();
+            for (int i = 0; i < size; i++){
+                mappings.add(descriptor.getMappingForAttributeName(readString()));
+            }
+            TypeEntry entry = new TypeEntry(index, name, descriptor, mappings.toArray(new DatabaseMapping[size]));
+            types.add(entry);
+            return entry;
+        }
+
+        protected String readString() throws IOException {
+            return new String(readBytes(readLength()), "UTF-8");
+        }
+
+        /**
+         * Read the length of a string, byte array, list or attribute table
+         * @throws IOException if the length is negative or above the limit
+         */
+        protected int readLength() throws IOException {
+            long length = readRawVarint();
+            if (length < 0 || length > maxLength){
+                throw new IOException("Length " + length + " is not between 0 and " + maxLength);
+            }
+            return (int)length;
+        }
+
+        protected byte[] readBytes(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length){
+                int count = input.read(bytes, read, length - read);
+                if (count < 0){
+                    throw new EOFException();
+                }
+                read += count;
+            }
+            return bytes;
+        }
+
+        protected int readByte() throws IOException {
+            int value = input.read();
+            if (value < 0){
+                throw new EOFException();
+            }
+            return value;
+        }
+
+        protected long readRawVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7){
+                int b = readByte();
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0){
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        protected long readFixed(int bytes) throws IOException {
+            long value = 0;
+            for (int i = 0; i < bytes; i++){
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+    }
+
+    /** Marks the end of a list of unknown size while it is read **/
+    private static final Object END_OF_STREAM = new Object();
+
+    /**
+     * The attributes of a type that are written, in the order of their ids
+     */
+    protected static class TypeEntry {
+
+        protected int index;
+        protected String name;
+        protected ClassDescriptor descriptor;
+        protected DatabaseMapping[] mappings;
+
+        protected TypeEntry(int index, ClassDescriptor descriptor){
+            this.index = index;
+            this.descriptor = descriptor;
+            this.name = descriptor.isAggregateDescriptor() ? descriptor.getJavaClassName() : descriptor.getAlias();
+            List<DatabaseMapping> encoded = new ArrayList<DatabaseMapping>();
+            for (DatabaseMapping mapping: descriptor.getMappings()){
+                if (mapping.isAbstractDirectMapping() || mapping instanceof ObjectReferenceMapping
+                        || (mapping instanceof CollectionMapping && !mapping.isDirectCollectionMapping())
+                        || mapping instanceof AggregateObjectMapping){
+                    encoded.add(mapping);
+                }
+            }
+            this.mappings = encoded.toArray(new DatabaseMapping[encoded.size()]);
+        }
+
+        protected TypeEntry(int index, String name, ClassDescriptor descriptor, DatabaseMapping[] mappings){
+            this.index = index;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.mappings = mappings;
+        }
+    }
+
+    protected static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    protected static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the database work of a PersistenceContext on a fixed number of threads with a bounded queue.
+ *
+ * Each PersistenceContext that is configured with an executor gets its own, so a context with slow
+ * queries can only tie up its own threads.  When its threads are busy and its queue is full further
+ * work is rejected immediately rather than waiting.  Reads that do not complete within the timeout are
+ * cancelled.  Writes are waited for however long they take, since interrupting a thread stops neither
+ * JDBC nor JAXB, so a write that was given up on could still commit.
+ *
+ * @see org.eclipse.persistence.jpa.rs.PersistenceContext#getExecutor()
+ */
+public class BoundedExecutor {
+
+    private ThreadPoolExecutor executor;
+    private long timeout;
+
+    /**
+     * @param name used to name the threads of the executor
+     * @param threads the number of threads that run work
+     * @param queueSize the number of tasks that can wait for a thread
+     * @param timeout the time in milliseconds to wait for a task to complete
+     */
+    public BoundedExecutor(final String name, int threads, int queueSize, long timeout){
+        this.timeout = timeout;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)), new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "jpa-rs-" + name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a task on the executor and wait for its result, cancelling it if it does not complete in time
+     * @param task
+     * @return
+     * @throws RejectedExecutionException if the executor is busy and its queue is full
+     * @throws TimeoutException if the task did not complete in time.  It is cancelled.
+     * @throws ExecutionException if the task threw an exception
+     * @throws InterruptedException
+     */
+    public <T> T execute(Callable<T> task) throws TimeoutException, ExecutionException, InterruptedException {
+        return execute(task, true);
+    }
+
+    /**
+     * Run a task on the executor and wait for its result
+     * @param task
+     * @param timed false to wait for the task however long it takes and never cancel it, as for writes
+     * @return
+     * @throws RejectedExecutionException if the executor is busy and its queue is full
+     * @throws TimeoutException if the task is timed and did not complete in time.  It is cancelled.
+     * @throws ExecutionException if the task threw an exception
+     * @throws InterruptedException if the waiting thread was interrupted.  A timed task is cancelled.
+     */
+    public <T> T execute(Callable<T> task, boolean timed) throws TimeoutException, ExecutionException, InterruptedException {
+        Future<T> future = executor.submit(task);
+        if (!timed){
+            return future.get();
+        }
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e){
+            future.cancel(true);
+            throw e;
+        } catch (InterruptedException e){
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Return the number of tasks waiting for a thread
+     * @return
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Stop accepting work and interrupt the work that is running
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
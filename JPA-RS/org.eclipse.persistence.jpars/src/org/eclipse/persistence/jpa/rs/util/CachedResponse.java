@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.io.UnsupportedEncodingException;
+
+import javax.ws.rs.core.EntityTag;
+
+/**
+ * A response body that has already been encoded, along with the entity tag computed from it.
+ * Instances are immutable so they can be shared by concurrent requests.
+ *
+ * @see EntityTagHelper
+ */
+public class CachedResponse {
+
+    private byte[] content;
+    private EntityTag tag;
+
+    public CachedResponse(byte[] content){
+        this.content = content;
+        this.tag = EntityTagHelper.buildContentTag(content);
+    }
+
+    /**
+     * @param content
+     * @param tag an entity tag that identifies the content, such as one built from the version of an entity
+     */
+    public CachedResponse(byte[] content, EntityTag tag){
+        this.content = content;
+        this.tag = tag;
+    }
+
+    public CachedResponse(String content){
+        this(encode(content));
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public EntityTag getTag() {
+        return tag;
+    }
+
+    private static byte[] encode(String content) {
+        try {
+            return content.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e){
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.HttpHeaders;
+
+/**
+ * EclipseLink helper class used to compress response bodies with the gzip or deflate content coding
+ * negotiated from the Accept-Encoding header of a request.
+ *
+ * Results whose encoded size is known are only compressed if they are at least as large as the
+ * threshold.  Single entities are marshalled into memory first so their size is known.  Lists and
+ * expanded results are always compressed since their size is only known once they are written.
+ *
+ * Totals of the bytes written before and after compression are kept for all compressed responses.
+ */
+public class CompressionHelper {
+
+    /** Persistence unit property that sets the smallest response, in bytes, that is compressed **/
+    public static final String COMPRESSION_THRESHOLD = "eclipselink.jpa-rs.compression.threshold";
+
+    /** Persistence unit property that sets the deflate level, from 0 (none) to 9 (best) **/
+    public static final String COMPRESSION_LEVEL = "eclipselink.jpa-rs.compression.level";
+
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String VARY = "Vary";
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static AtomicLong compressedResponses = new AtomicLong();
+    private static AtomicLong uncompressedBytes = new AtomicLong();
+    private static AtomicLong compressedBytes = new AtomicLong();
+
+    /**
+     * Choose the content coding for a response from the Accept-Encoding header of the request.
+     * A coding that is named takes the quality given for it, even when * is also given, and any
+     * other coding takes the quality of *.  gzip is preferred over deflate when the client accepts
+     * both equally.
+     * @param hh
+     * @return gzip, deflate or null if the response should not be compressed
+     */
+    public static String negotiate(HttpHeaders hh) {
+        List<String> values = hh.getRequestHeader(ACCEPT_ENCODING);
+        if (values == null){
+            return null;
+        }
+        // the quality of gzip, deflate and *, or -1 if they are not named
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String value: values){
+            for (String coding: value.split(",")){
+                String[] parts = coding.trim().split(";");
+                String name = parts[0].trim().toLowerCase();
+                float q = 1;
+                for (int i = 1; i < parts.length; i++){
+                    String parameter = parts[i].trim();
+                    if (parameter.startsWith("q=")){
+                        try {
+                            q = Float.parseFloat(parameter.substring(2));
+                        } catch (NumberFormatException e){
+                            q = 0;
+                        }
+                    }
+                }
+                if (name.equals(GZIP) || name.equals("x-gzip")){
+                    gzip = Math.max(gzip, q);
+                } else if (name.equals(DEFLATE)){
+                    deflate = Math.max(deflate, q);
+                } else if (name.equals("*")){
+                    any = Math.max(any, q);
+                }
+            }
+        }
+        if (gzip < 0){
+            gzip = any;
+        }
+        if (deflate < 0){
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate){
+            return GZIP;
+        }
+        if (deflate > 0){
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Return true if a result is a single entity or value whose encoded size is only known once it has
+     * been marshalled.  It is small enough to marshall into memory to decide whether to compress it.
+     * @param result
+     * @return
+     */
+    public static boolean isSingleResult(Object result) {
+        return result != null && !(result instanceof byte[] || result instanceof String
+                || result instanceof Collection || result instanceof ExpandedResult);
+    }
+
+    /**
+     * Return true if a result is worth compressing
+     * @param result
+     * @param threshold
+     * @return
+     */
+    public static boolean isCompressible(Object result, int threshold) {
+        if (result instanceof byte[]){
+            return ((byte[])result).length >= threshold;
+        }
+        if (result instanceof String){
+            try {
+                // a lower bound of the encoded length is enough for most strings
+                String string = (String)result;
+                return string.length() >= threshold || string.getBytes("UTF-8").length >= threshold;
+            } catch (UnsupportedEncodingException e){
+                return false;
+            }
+        }
+        if (result instanceof Collection){
+            return !((Collection<?>)result).isEmpty();
+        }
+        if (result instanceof ExpandedResult){
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Wrap an output stream in one that compresses with the given content coding
+     * @param output
+     * @param encoding gzip or deflate
+     * @param level
+     * @return
+     * @throws IOException
+     */
+    public static CompressingOutputStream compress(OutputStream output, String encoding, int level) throws IOException {
+        return new CompressingOutputStream(output, encoding, level);
+    }
+
+    public static long getCompressedResponses() {
+        return compressedResponses.get();
+    }
+
+    public static long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    public static long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * Return the ratio of uncompressed to compressed size over all compressed responses
+     * @return
+     */
+    public static double getCompressionRatio() {
+        long compressed = compressedBytes.get();
+        if (compressed == 0){
+            return 1;
+        }
+        return (double)uncompressedBytes.get() / compressed;
+    }
+
+    /**
+     * An output stream that compresses what is written to it and adds its sizes to the totals
+     * when it is finished
+     */
+    public static class CompressingOutputStream extends OutputStream {
+
+        private CountingOutputStream compressed;
+        private DeflaterOutputStream deflater;
+        private Deflater def;
+        private long count = 0;
+        private boolean finished = false;
+
+        public CompressingOutputStream(OutputStream output, String encoding, int level) throws IOException {
+            compressed = new CountingOutputStream(output);
+            if (GZIP.equals(encoding)){
+                LevelGZIPOutputStream gzip = new LevelGZIPOutputStream(compressed, level);
+                def = gzip.getDeflater();
+                deflater = gzip;
+            } else {
+                def = new Deflater(level);
+                deflater = new DeflaterOutputStream(compressed, def, 8192);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            deflater.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            deflater.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            deflater.flush();
+        }
+
+        /**
+         * Write the remaining compressed data without closing the underlying stream
+         * @throws IOException
+         */
+        public void finish() throws IOException {
+            if (finished){
+                return;
+            }
+            finished = true;
+            try {
+                deflater.finish();
+                deflater.flush();
+            } finally {
+                // release the native memory of the deflater now rather than when it is collected
+                def.end();
+            }
+            compressedResponses.incrementAndGet();
+            uncompressedBytes.addAndGet(count);
+            compressedBytes.addAndGet(compressed.getCount());
+        }
+
+        /**
+         * Release the deflater of a stream that was not finished, such as when writing to it failed
+         */
+        public void end() {
+            if (!finished){
+                finished = true;
+                def.end();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                compressed.close();
+            }
+        }
+    }
+
+    static class CountingOutputStream extends OutputStream {
+
+        private OutputStream output;
+        private long count = 0;
+
+        public CountingOutputStream(OutputStream output){
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            output.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            output.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    private static class LevelGZIPOutputStream extends GZIPOutputStream {
+
+        public LevelGZIPOutputStream(OutputStream output, int level) throws IOException {
+            super(output, 8192);
+            def.setLevel(level);
+        }
+
+        public Deflater getDeflater() {
+            return def;
+        }
+    }
+}
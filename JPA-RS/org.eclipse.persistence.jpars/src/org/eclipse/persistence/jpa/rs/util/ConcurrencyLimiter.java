@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of requests a PersistenceContext runs at once, with a limit that adapts to the
+ * latency of the requests.
+ *
+ * The limit follows the gradient between the lowest latency seen recently, which is taken as the
+ * latency without queueing, and the latency of each request.  While requests are as fast as that the
+ * limit grows by about the square root of itself, and as they slow down because they queue for
+ * connections or in the database it shrinks in proportion.  Requests that time out cut the limit by
+ * a fixed factor.  The lowest latency is measured again every probeInterval
+ * requests so the limit follows a database that has become slower for good.
+ *
+ * Requests over the limit wait for a short time in a queue per tenant.  Freed capacity is handed to
+ * the tenants in turn, so a tenant with many waiting requests can not starve the others, and each
+ * tenant can only have queueSize requests waiting.  A request that can not be queued, or that waits
+ * too long, is rejected so the client can retry later rather than adding to the load.
+ *
+ * @see org.eclipse.persistence.jpa.rs.PersistenceContext#getConcurrencyLimiter()
+ */
+public class ConcurrencyLimiter {
+
+    /** Latency up to this multiple of the lowest latency is not taken as a sign of queueing **/
+    private static final double TOLERANCE = 1.5;
+
+    /** The share of each new limit that is taken into the limit **/
+    private static final double SMOOTHING = 0.2;
+
+    /** The factor the limit is cut by when a request times out **/
+    private static final double BACKOFF = 0.9;
+
+    private int minLimit;
+    private int maxLimit;
+    private long maxWait;
+    private int queueSize;
+    private int probeInterval = 1000;
+
+    private double limit;
+    private int inFlight = 0;
+    private long minLatency = Long.MAX_VALUE;
+    private int samples = 0;
+
+    /** Waiting requests by tenant, in the order the tenants are served **/
+    private LinkedHashMap<String, LinkedList<Waiter>> queues = new LinkedHashMap<String, LinkedList<Waiter>>();
+    private int queued = 0;
+
+    private AtomicLong accepted = new AtomicLong();
+    private AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param initialLimit
+     * @param minLimit
+     * @param maxLimit
+     * @param maxWait the time in milliseconds a request can wait for capacity before it is rejected
+     * @param queueSize the number of requests each tenant can have waiting
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long maxWait, int queueSize){
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+        this.maxWait = maxWait;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Admit a request.  It must be given back with release when it completes
+     * @param tenantId the tenant of the request, or null
+     * @return
+     * @throws RejectedExecutionException if the request could not be admitted in time
+     */
+    public Permit acquire(String tenantId) {
+        String key = tenantId == null ? "" : tenantId;
+        synchronized (this){
+            if (queued == 0 && inFlight < (int)limit){
+                return admit();
+            }
+            LinkedList<Waiter> queue = queues.get(key);
+            if (maxWait <= 0 || (queue != null && queue.size() >= queueSize)){
+                throw reject(key);
+            }
+            if (queue == null){
+                queue = new LinkedList<Waiter>();
+                queues.put(key, queue);
+            }
+            Waiter waiter = new Waiter();
+            queue.add(waiter);
+            queued++;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+            try {
+                while (!waiter.admitted){
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0){
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            if (waiter.admitted){
+                // admitted by release, which has already counted it as in flight
+                accepted.incrementAndGet();
+                return new Permit(inFlight);
+            }
+            queue.remove(waiter);
+            queued--;
+            if (queue.isEmpty()){
+                queues.remove(key);
+            }
+            throw reject(key);
+        }
+    }
+
+    /**
+     * Give back the capacity of a request that completed, and adapt the limit to its latency
+     * @param permit
+     * @param timedOut true if the request did not complete in time
+     */
+    public void release(Permit permit, boolean timedOut) {
+        long latency = System.nanoTime() - permit.start;
+        synchronized (this){
+            inFlight--;
+            sample(latency, permit.inFlight, timedOut);
+            // hand the freed capacity to the waiting tenants in turn
+            while (queued > 0 && inFlight < (int)limit){
+                Iterator<Map.Entry<String, LinkedList<Waiter>>> iterator = queues.entrySet().iterator();
+                Map.Entry<String, LinkedList<Waiter>> next = iterator.next();
+                iterator.remove();
+                Waiter waiter = next.getValue().removeFirst();
+                if (!next.getValue().isEmpty()){
+                    queues.put(next.getKey(), next.getValue());
+                }
+                queued--;
+                inFlight++;
+                waiter.admitted = true;
+            }
+            notifyAll();
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int)limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Set the number of requests after which the lowest latency is measured again
+     * @param probeInterval
+     */
+    public synchronized void setProbeInterval(int probeInterval) {
+        this.probeInterval = probeInterval;
+    }
+
+    private Permit admit() {
+        inFlight++;
+        accepted.incrementAndGet();
+        return new Permit(inFlight);
+    }
+
+    private RejectedExecutionException reject(String tenantId) {
+        rejected.incrementAndGet();
+        return new RejectedExecutionException("Concurrency limit of " + (int)limit + " reached" + (tenantId.length() == 0 ? "" : " for tenant " + tenantId));
+    }
+
+    private void sample(long latency, int inFlightAtStart, boolean timedOut) {
+        if (timedOut){
+            limit = Math.max(minLimit, limit * BACKOFF);
+            return;
+        }
+        if (++samples >= probeInterval){
+            samples = 0;
+            minLatency = latency;
+        } else if (latency < minLatency){
+            minLatency = latency;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * minLatency / Math.max(latency, 1)));
+        if (gradient == 1.0 && inFlightAtStart * 2 < limit){
+            // the limit was not what held the request back, so there is nothing to learn from it
+            return;
+        }
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        limit = Math.min(maxLimit, Math.max(minLimit, limit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+    }
+
+    /**
+     * The admission of a request
+     */
+    public static class Permit {
+
+        private long start = System.nanoTime();
+        private int inFlight;
+
+        private Permit(int inFlight){
+            this.inFlight = inFlight;
+        }
+    }
+
+    private static class Waiter {
+
+        private boolean admitted = false;
+    }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.bind.JAXBException;
+
+import org.eclipse.persistence.jpa.rs.PersistenceContext;
+import org.eclipse.persistence.jpa.rs.util.CompressionHelper.CompressingOutputStream;
+
+/**
+ * {@link StreamingOutput} implementation that runs a named query when the response is written
+ * and marshalls its results to the output one at a time as they are read from a database cursor.
+ *
+ * @see PersistenceContext#streamQuery(String, String, Map, Map, MediaType, OutputStream)
+ */
+public class CursoredStreamingOutputMarshaller implements StreamingOutput {
+    private PersistenceContext context;
+    private String tenantId;
+    private String queryName;
+    private Map<?, ?> parameters;
+    private Map<String, ?> hints;
+    private MediaType mediaType;
+    private String contentEncoding = null;
+    private int compressionLevel = CompressionHelper.DEFAULT_COMPRESSION_LEVEL;
+
+    public CursoredStreamingOutputMarshaller(PersistenceContext context, String queryName, Map<?, ?> parameters, Map<String, ?> hints, List<MediaType> acceptedTypes) {
+        this(context, null, queryName, parameters, hints, acceptedTypes);
+    }
+
+    /**
+     * @param context
+     * @param tenantId the tenant to run the query for, or null
+     * @param queryName
+     * @param parameters
+     * @param hints
+     * @param acceptedTypes
+     */
+    public CursoredStreamingOutputMarshaller(PersistenceContext context, String tenantId, String queryName, Map<?, ?> parameters, Map<String, ?> hints, List<MediaType> acceptedTypes) {
+        this.context = context;
+        this.tenantId = tenantId;
+        this.queryName = queryName;
+        this.parameters = parameters;
+        this.hints = hints;
+        this.mediaType = StreamingOutputMarshaller.mediaType(acceptedTypes);
+        if (this.mediaType == MediaType.WILDCARD_TYPE){
+            this.mediaType = MediaType.APPLICATION_JSON_TYPE;
+        }
+    }
+
+    /**
+     * Compress the output with the given content coding
+     * @param contentEncoding gzip or deflate
+     * @param compressionLevel
+     * @see StreamingOutputMarshaller#setContentEncoding(String, int)
+     */
+    public void setContentEncoding(String contentEncoding, int compressionLevel) {
+        this.contentEncoding = contentEncoding;
+        this.compressionLevel = compressionLevel;
+    }
+
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        CompressingOutputStream compressed = null;
+        if (contentEncoding != null){
+            compressed = CompressionHelper.compress(output, contentEncoding, compressionLevel);
+            output = compressed;
+        }
+        try {
+            context.streamQuery(tenantId, queryName, parameters, hints, mediaType, output);
+            if (compressed != null){
+                compressed.finish();
+            }
+        } catch (JAXBException e) {
+            throw new WebApplicationException(e);
+        } catch (RejectedExecutionException e) {
+            // the tenant is at its limit
+            throw new WebApplicationException(Status.SERVICE_UNAVAILABLE);
+        } finally {
+            if (compressed != null){
+                compressed.end();
+            }
+        }
+    }
+}
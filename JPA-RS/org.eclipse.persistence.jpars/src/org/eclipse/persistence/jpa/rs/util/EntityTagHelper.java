@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.VersionLockingPolicy;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.jpa.rs.PersistenceContext;
+
+/**
+ * EclipseLink helper class used to build strong entity tags for entities and to evaluate
+ * If-None-Match conditions against them.
+ *
+ * Entities that use version locking are tagged with their version value, so a tag can be checked
+ * without marshalling the entity.  Other entities are tagged with a digest of their marshalled form.
+ */
+public class EntityTagHelper {
+
+    public static final String IF_NONE_MATCH = "If-None-Match";
+
+    /**
+     * Build an entity tag from the optimistic locking version of the given entity
+     * @param context
+     * @param descriptor
+     * @param entity
+     * @param mediaType
+     * @return the tag, or null if the entity does not use version locking
+     */
+    public static EntityTag buildVersionTag(PersistenceContext context, ClassDescriptor descriptor, Object entity, MediaType mediaType) {
+        if (!descriptor.usesOptimisticLocking() || !(descriptor.getOptimisticLockingPolicy() instanceof VersionLockingPolicy)){
+            return null;
+        }
+        AbstractSession session = (AbstractSession)JpaHelper.getServerSession(context.getEmf());
+        Object primaryKey = descriptor.getObjectBuilder().extractPrimaryKeyFromObject(entity, session);
+        Object version = descriptor.getOptimisticLockingPolicy().getWriteLockValue(entity, primaryKey, session);
+        if (version == null){
+            return null;
+        }
+        return new EntityTag(version.toString() + "-" + mediaType.getSubtype());
+    }
+
+    /**
+     * Build an entity tag from a digest of the marshalled form of an entity
+     * @param content
+     * @return
+     */
+    public static EntityTag buildContentTag(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+            StringBuffer tag = new StringBuffer(digest.length * 2);
+            for (byte b: digest){
+                tag.append(Character.forDigit((b >> 4) & 0xF, 16));
+                tag.append(Character.forDigit(b & 0xF, 16));
+            }
+            return new EntityTag(tag.toString());
+        } catch (NoSuchAlgorithmException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Qualify an entity tag with the content coding of a compressed representation
+     * @param tag
+     * @param contentEncoding
+     * @return
+     */
+    public static EntityTag encodedTag(EntityTag tag, String contentEncoding) {
+        return new EntityTag(tag.getValue() + "-" + contentEncoding, tag.isWeak());
+    }
+
+    /**
+     * Return true if the If-None-Match header of the request matches the given tag, in which case the
+     * client already has the current representation.  Tags of compressed representations of the
+     * same content match as well.  If-None-Match uses the weak comparison of RFC 7232, so a W/ prefix
+     * on either tag is ignored.
+     * @param hh
+     * @param tag
+     * @return
+     */
+    public static boolean matches(HttpHeaders hh, EntityTag tag) {
+        List<String> values = hh.getRequestHeader(IF_NONE_MATCH);
+        if (values == null || tag == null){
+            return false;
+        }
+        for (String value: values){
+            for (String candidate: value.split(",")){
+                candidate = candidate.trim();
+                if (candidate.equals("*")){
+                    return true;
+                }
+                if (candidate.startsWith("W/")){
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("\"" + tag.getValue() + "\"")){
+                    return true;
+                }
+                if (candidate.equals("\"" + encodedTag(tag, CompressionHelper.GZIP).getValue() + "\"") || candidate.equals("\"" + encodedTag(tag, CompressionHelper.DEFLATE).getValue() + "\"")){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.eclipse.persistence.jpa.rs.eventlistener.ChangeEvent;
+import org.eclipse.persistence.jpa.rs.eventlistener.EventBroadcaster;
+import org.eclipse.persistence.jpa.rs.eventlistener.EventSubscriber;
+
+/**
+ * Writes the change events of a subscriber to a client as a stream of Server-Sent Events until the
+ * client disconnects or the subscriber is closed.
+ *
+ * Each event carries its id so a client that reconnects can send it back in the Last-Event-ID header.
+ * A comment is written when no event arrives within the heartbeat interval so that broken connections
+ * are noticed and intermediaries do not time the connection out.
+ */
+public class EventStreamOutput implements StreamingOutput {
+
+    public static final String TEXT_EVENT_STREAM = "text/event-stream";
+    public static final String LAST_EVENT_ID = "Last-Event-ID";
+
+    private EventBroadcaster broadcaster;
+    private EventSubscriber subscriber;
+    private long heartbeat;
+
+    /**
+     * @param broadcaster
+     * @param subscriber a subscriber of the broadcaster, it is unsubscribed when the stream ends
+     * @param heartbeat the time in milliseconds after which a comment is sent if there are no events
+     */
+    public EventStreamOutput(EventBroadcaster broadcaster, EventSubscriber subscriber, long heartbeat){
+        this.broadcaster = broadcaster;
+        this.subscriber = subscriber;
+        this.heartbeat = heartbeat;
+    }
+
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        Writer writer = new OutputStreamWriter(output, "UTF-8");
+        try {
+            while (!subscriber.isClosed()){
+                ChangeEvent event = subscriber.poll(heartbeat);
+                if (event == null){
+                    writer.write(":\n\n");
+                } else {
+                    writeEvent(writer, event);
+                }
+                writer.flush();
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        } finally {
+            broadcaster.unsubscribe(subscriber);
+        }
+    }
+
+    protected void writeEvent(Writer writer, ChangeEvent event) throws IOException {
+        writer.write("id: ");
+        writer.write(broadcaster.eventId(event));
+        writer.write("\nevent: ");
+        writer.write(event.getType());
+        writer.write("\ndata: {\"entity\":");
+        writeString(writer, event.getEntityName());
+        writer.write(",\"transactionId\":");
+        writeString(writer, event.getTransactionId());
+        writer.write(",\"rowId\":");
+        writeString(writer, event.getRowId());
+        writer.write("}\n\n");
+    }
+
+    private static void writeString(Writer writer, String value) throws IOException {
+        if (value == null){
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\'){
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20){
+                // also keeps line breaks out of the data line
+                writer.write(String.format("\\u%04x", (int)c));
+            } else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.Query;
+
+import org.eclipse.persistence.annotations.BatchFetchType;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.queries.ContainerPolicy;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+
+/**
+ * EclipseLink helper class used to return the entities reached through some relationships of a result
+ * along with the result, rather than only their links.
+ *
+ * The relationship paths requested with the expand query parameter, such as bids and bids.user, are
+ * batch fetched with IN so each level of a path is read with one more SQL statement whatever the number
+ * of results.  The entities reached are then collected while the EntityManager is still open.
+ *
+ * @see ExpandedResult
+ */
+public class ExpandHelper {
+
+    /** Hint holding a comma separated list of the relationship paths to expand **/
+    public static final String EXPAND_HINT = "eclipselink.jpa-rs.expand";
+
+    /** Batch hints start with an identification variable, which is not used **/
+    private static final String BATCH_ALIAS = "e.";
+
+    /**
+     * Parse a comma separated list of relationship paths and check each of them against the given descriptor
+     * @param descriptor
+     * @param expand
+     * @return
+     * @throws IllegalArgumentException if a path does not follow relationships of the descriptor
+     */
+    public static List<String> parsePaths(ClassDescriptor descriptor, String expand) {
+        List<String> paths = new ArrayList<String>();
+        for (String value: expand.split(",")){
+            String path = value.trim();
+            if (path.length() == 0){
+                continue;
+            }
+            ClassDescriptor current = descriptor;
+            for (String name: path.split("\\.")){
+                DatabaseMapping mapping = current == null ? null : current.getMappingForAttributeName(name);
+                if (mapping == null || !mapping.isForeignReferenceMapping() || mapping.isDirectCollectionMapping()){
+                    throw new IllegalArgumentException("Unknown relationship " + path + " of " + descriptor.getAlias());
+                }
+                current = mapping.getReferenceDescriptor();
+            }
+            if (!paths.contains(path)){
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Set the hints that batch fetch the given paths, and each path leading to them, with IN on a query
+     * @param query
+     * @param paths
+     */
+    public static void setBatchHints(Query query, List<String> paths) {
+        query.setHint(QueryHints.BATCH_TYPE, BatchFetchType.IN);
+        Set<String> batched = new HashSet<String>();
+        for (String path: paths){
+            int index = -1;
+            do {
+                index = path.indexOf('.', index + 1);
+                String prefix = index < 0 ? path : path.substring(0, index);
+                if (batched.add(prefix)){
+                    query.setHint(QueryHints.BATCH, BATCH_ALIAS + prefix);
+                }
+            } while (index >= 0);
+        }
+    }
+
+    /**
+     * Collect the entities reached through the given paths from an entity, or from each entity in a list
+     * @param result
+     * @param paths
+     * @param session
+     * @return each entity reached, once, in the order they were reached
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Object> expand(Object result, List<String> paths, AbstractSession session) {
+        List<Object> expanded = new ArrayList<Object>();
+        if (result == null){
+            return expanded;
+        }
+        List<Object> roots = result instanceof List ? (List<Object>)result : Collections.singletonList(result);
+        Map<Object, Object> reached = new IdentityHashMap<Object, Object>();
+        for (String path: paths){
+            List<Object> current = roots;
+            for (String name: path.split("\\.")){
+                List<Object> next = new ArrayList<Object>();
+                Map<Object, Object> level = new IdentityHashMap<Object, Object>();
+                for (Object object: current){
+                    if (object == null){
+                        continue;
+                    }
+                    ClassDescriptor descriptor = session.getDescriptor(object.getClass());
+                    DatabaseMapping mapping = descriptor == null ? null : descriptor.getMappingForAttributeName(name);
+                    if (mapping == null){
+                        continue;
+                    }
+                    Object value = mapping.getRealAttributeValueFromObject(object, session);
+                    if (value == null){
+                        continue;
+                    }
+                    if (mapping.isCollectionMapping()){
+                        ContainerPolicy policy = mapping.getContainerPolicy();
+                        for (Object iterator = policy.iteratorFor(value); policy.hasNext(iterator);){
+                            addTarget(policy.next(iterator, session), next, level);
+                        }
+                    } else {
+                        addTarget(value, next, level);
+                    }
+                }
+                for (Object target: next){
+                    if (reached.put(target, target) == null){
+                        expanded.add(target);
+                    }
+                }
+                current = next;
+            }
+        }
+        return expanded;
+    }
+
+    private static void addTarget(Object target, List<Object> targets, Map<Object, Object> added) {
+        if (target != null && added.put(target, target) == null){
+            targets.add(target);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.List;
+
+/**
+ * The result of a find or query along with the entities reached through the relationships
+ * that were requested to be expanded.
+ *
+ * @see ExpandHelper
+ */
+public class ExpandedResult {
+
+    /** an entity or a list of results **/
+    private Object result;
+
+    private List<Object> expanded;
+
+    private List<String> paths;
+
+    public ExpandedResult(Object result, List<Object> expanded, List<String> paths){
+        this.result = result;
+        this.expanded = expanded;
+        this.paths = paths;
+    }
+
+    public Object getResult() {
+        return result;
+    }
+
+    /**
+     * Return the entities reached through the expanded relationships, each once, in the order they were reached
+     * @return
+     */
+    public List<Object> getExpanded() {
+        return expanded;
+    }
+
+    /**
+     * Return the expanded relationship paths, such as bids and bids.user
+     * @return
+     */
+    public List<String> getPaths() {
+        return paths;
+    }
+}
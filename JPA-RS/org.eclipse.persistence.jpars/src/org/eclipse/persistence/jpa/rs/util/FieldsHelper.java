@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.VersionLockingPolicy;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+import org.eclipse.persistence.queries.FetchGroup;
+
+/**
+ * EclipseLink helper class used to read and return only some of the attributes of entities.
+ *
+ * The attributes requested with the fields query parameter are turned into a FetchGroup so only
+ * their columns are selected.  The primary key and version attributes are always included since
+ * links and entity tags are built from them.  Before they are marshalled, entities are projected
+ * onto new instances that only hold the requested attributes, so reading the others does not cause
+ * them to be loaded.
+ *
+ * @see org.eclipse.persistence.jpa.rs.PersistenceContext#find(String, String, Object, java.util.Map)
+ */
+public class FieldsHelper {
+
+    /** Hint holding a comma separated list of the attributes to read **/
+    public static final String FIELDS_HINT = "eclipselink.jpa-rs.fields";
+
+    /**
+     * Build a FetchGroup for the given attributes of a descriptor
+     * @param descriptor
+     * @param fields a comma separated list of attribute names
+     * @return
+     * @throws IllegalArgumentException if an attribute is not mapped by the descriptor
+     */
+    public static FetchGroup buildFetchGroup(ClassDescriptor descriptor, String fields) {
+        FetchGroup fetchGroup = new FetchGroup();
+        for (DatabaseMapping mapping: descriptor.getObjectBuilder().getPrimaryKeyMappings()){
+            fetchGroup.addAttribute(mapping.getAttributeName());
+        }
+        if (descriptor.usesOptimisticLocking() && descriptor.getOptimisticLockingPolicy() instanceof VersionLockingPolicy){
+            VersionLockingPolicy policy = (VersionLockingPolicy)descriptor.getOptimisticLockingPolicy();
+            DatabaseMapping mapping = descriptor.getObjectBuilder().getMappingForField(policy.getWriteLockField());
+            if (mapping != null){
+                fetchGroup.addAttribute(mapping.getAttributeName());
+            }
+        }
+        for (String field: fields.split(",")){
+            String name = field.trim();
+            if (name.length() == 0){
+                continue;
+            }
+            if (descriptor.getMappingForAttributeName(name) == null){
+                throw new IllegalArgumentException("Unknown attribute " + name + " of " + descriptor.getAlias());
+            }
+            fetchGroup.addAttribute(name);
+        }
+        return fetchGroup;
+    }
+
+    /**
+     * Copy the attributes of the fetch group from an entity, or from each entity in a list, to a new
+     * instance.  Values that are not entities, such as the rows of a report query, are returned as is.
+     * @param result
+     * @param fetchGroup
+     * @param session
+     * @return
+     */
+    public static Object project(Object result, FetchGroup fetchGroup, AbstractSession session) {
+        if (result == null || fetchGroup == null){
+            return result;
+        }
+        if (result instanceof List){
+            List<?> results = (List<?>)result;
+            List<Object> projected = new ArrayList<Object>(results.size());
+            for (Object entity: results){
+                projected.add(project(entity, fetchGroup, session));
+            }
+            return projected;
+        }
+        ClassDescriptor descriptor = session.getDescriptor(result.getClass());
+        if (descriptor == null){
+            return result;
+        }
+        Object projected = descriptor.getObjectBuilder().buildNewInstance();
+        for (DatabaseMapping mapping: descriptor.getMappings()){
+            if (fetchGroup.containsAttribute(mapping.getAttributeName())){
+                mapping.setRealAttributeValueInObject(projected, mapping.getRealAttributeValueFromObject(result, session));
+            }
+        }
+        return projected;
+    }
+}
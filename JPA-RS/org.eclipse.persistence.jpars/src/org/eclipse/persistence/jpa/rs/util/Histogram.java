@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative long values, such as latencies in nanoseconds or sizes in bytes.
+ *
+ * Values are counted in buckets that split each power of two into four, so a percentile is reported
+ * within about 19% of the true value whatever its magnitude.  Recording a value is a few shifts and an
+ * atomic increment with no locking or allocation, so it can be done on every request.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int SUB_BUCKET_BITS = 2;
+
+    private AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong sum = new AtomicLong();
+    private AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0){
+            value = 0;
+        }
+        buckets.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)){
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Return the value that the given share of the recorded values are at or below
+     * @param quantile from 0 to 1
+     * @return the upper bound of the bucket the percentile falls in, or 0 if nothing was recorded
+     */
+    public long getPercentile(double quantile) {
+        long total = count.get();
+        if (total == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++){
+            seen += buckets.get(i);
+            if (seen >= rank){
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS){
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS){
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+}
@@ -30,6 +30,7 @@ import org.eclipse.persistence.config.CacheUsage;
 import org.eclipse.persistence.config.QueryHints;
 import org.eclipse.persistence.descriptors.ClassDescriptor;
 import org.eclipse.persistence.dynamic.DynamicEntity;
+import org.eclipse.persistence.exceptions.ConversionException;
 import org.eclipse.persistence.internal.dynamic.DynamicEntityImpl;
 import org.eclipse.persistence.internal.jpa.CMP3Policy;
 import org.eclipse.persistence.internal.queries.EntityFetchGroup;
@@ -54,8 +55,22 @@ public class IdHelper {
     private static final String SEPARATOR_STRING = "+";
     
     public static Object buildId(PersistenceContext app, String entityName, String idString) {
-        Server session = JpaHelper.getServerSession(app.getEmf());
         ClassDescriptor descriptor = app.getDescriptor(entityName);
+        return buildId(app, descriptor, buildKeyElements(app, descriptor, idString));
+    }
+
+    /**
+     * Convert a primary key string, as used in the find URL, to the values of the primary key attributes
+     * of the given descriptor, in the order of its primary key mappings
+     * @param app
+     * @param descriptor
+     * @param idString
+     * @return
+     * @throws IllegalArgumentException if the string does not have a value for each primary key attribute
+     * or a value can not be converted to the type of its attribute
+     */
+    public static Object[] buildKeyElements(PersistenceContext app, ClassDescriptor descriptor, String idString) {
+        Server session = JpaHelper.getServerSession(app.getEmf());
         List<DatabaseMapping> pkMappings = descriptor.getObjectBuilder().getPrimaryKeyMappings();
         List<SortableKey> pkIndices = new ArrayList<SortableKey>();
         int index = 0;
@@ -66,23 +81,41 @@ public class IdHelper {
         Collections.sort(pkIndices);
         
         // Handle composite key in map
-        int[] elementIndex = new int[pkMappings.size()];
         Object[] keyElements = new Object[pkMappings.size()];
         StringTokenizer tokenizer = new StringTokenizer(idString, SEPARATOR_STRING);
         int tokens = tokenizer.countTokens();
         if (tokens != pkMappings.size()){
-            throw new RuntimeException("Failed, incorrect number of keys values");
+            throw new IllegalArgumentException("Failed, incorrect number of keys values");
         }
         index = 0;
         Iterator<SortableKey> iterator = pkIndices.iterator();
         while (tokenizer.hasMoreTokens()){
             SortableKey key = iterator.next();
-            Object idValue = session.getPlatform().getConversionManager().convertObject(tokenizer.nextToken(), key.getMapping().getAttributeClassification());
+            String token = tokenizer.nextToken();
+            Object idValue = null;
+            try {
+                idValue = session.getPlatform().getConversionManager().convertObject(token, key.getMapping().getAttributeClassification());
+            } catch (ConversionException e){
+                throw new IllegalArgumentException("Failed, invalid value " + token + " for key " + key.getMapping().getAttributeName(), e);
+            }
             keyElements[key.getIndex()] = idValue;
             index++;
         }
+        return keyElements;
+    }
 
+    /**
+     * Build a value that can be used in a find from the values of the primary key attributes of
+     * the given descriptor, in the order of its primary key mappings
+     * @param app
+     * @param descriptor
+     * @param keyElements
+     * @return
+     */
+    public static Object buildId(PersistenceContext app, ClassDescriptor descriptor, Object[] keyElements) {
         if (descriptor.hasCMPPolicy()) {
+            Server session = JpaHelper.getServerSession(app.getEmf());
+            int[] elementIndex = new int[keyElements.length];
             CMP3Policy policy = (CMP3Policy) descriptor.getCMPPolicy();
             return policy.createPrimaryKeyInstanceFromPrimaryKeyValues((AbstractSession) session, elementIndex, keyElements);
         }
@@ -93,6 +126,37 @@ public class IdHelper {
         return keyElements;
     }
     
+    /**
+     * Build the primary key string of an entity, dynamic or not, as used in the find URL
+     * @param entity
+     * @param app
+     * @return
+     */
+    public static String stringifyId(Object entity, PersistenceContext app){
+        if (entity instanceof DynamicEntityImpl){
+            return stringifyId((DynamicEntityImpl)entity, app);
+        }
+        ClassDescriptor descriptor = app.getDescriptorForClass(entity.getClass());
+        AbstractSession session = (AbstractSession)JpaHelper.getServerSession(app.getEmf());
+        List<DatabaseMapping> pkMappings = descriptor.getObjectBuilder().getPrimaryKeyMappings();
+        List<SortableKey> pkIndices = new ArrayList<SortableKey>();
+        int index = 0;
+        for (DatabaseMapping mapping: pkMappings){
+            pkIndices.add(new SortableKey(mapping, index));
+            index++;
+        }
+        Collections.sort(pkIndices);
+        StringBuffer key = new StringBuffer();
+        Iterator<SortableKey> sortableKeys = pkIndices.iterator();
+        while (sortableKeys.hasNext()){
+            key.append(sortableKeys.next().getMapping().getRealAttributeValueFromObject(entity, session).toString());
+            if (sortableKeys.hasNext()){
+                key.append(SEPARATOR_STRING);
+            }
+        }
+        return key.toString();
+    }
+
     public static String stringifyId(DynamicEntityImpl entity, PersistenceContext app){
         ClassDescriptor descriptor = app.getDescriptor(entity.getType().getName());
         List<DatabaseMapping> pkMappings = descriptor.getObjectBuilder().getPrimaryKeyMappings();
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.persistence.queries.DatabaseQuery;
+
+/**
+ * A size bounded cache of the queries parsed from the JPQL of ad-hoc queries, keyed by the JPQL text.
+ *
+ * Cached queries are prepared, so running the same JPQL again skips both parsing and SQL generation.
+ * When the cache is full the least recently used query is dropped.  Callers must run a clone of a
+ * cached query since setting parameters and hints changes it.
+ *
+ * @see org.eclipse.persistence.jpa.rs.PersistenceContext#jpqlQuery(String, Map, Map)
+ */
+public class JPQLQueryCache {
+
+    private int maxSize;
+    private volatile boolean enabled;
+    private Map<String, DatabaseQuery> queries;
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize the number of queries to keep.  The cache is disabled if it is 0 or less.
+     */
+    public JPQLQueryCache(final int maxSize){
+        this.maxSize = maxSize;
+        this.enabled = maxSize > 0;
+        this.queries = new LinkedHashMap<String, DatabaseQuery>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DatabaseQuery> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Return the query parsed from the given JPQL
+     * @param jpql
+     * @return the query or null if it is not cached or the cache is disabled
+     */
+    public DatabaseQuery get(String jpql) {
+        if (!enabled){
+            return null;
+        }
+        DatabaseQuery query = null;
+        synchronized (queries){
+            query = queries.get(jpql);
+        }
+        if (query == null){
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return query;
+    }
+
+    public void put(String jpql, DatabaseQuery query) {
+        if (!enabled){
+            return;
+        }
+        synchronized (queries){
+            queries.put(jpql, query);
+        }
+    }
+
+    /**
+     * Drop the queries whose key starts with the given prefix
+     * @param prefix
+     */
+    public void removeAll(String prefix) {
+        synchronized (queries){
+            for (Iterator<String> iterator = queries.keySet().iterator(); iterator.hasNext();){
+                if (iterator.next().startsWith(prefix)){
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn the cache on or off.  Turning it off drops the cached queries.
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled && maxSize > 0;
+        if (!this.enabled){
+            synchronized (queries){
+                queries.clear();
+            }
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getSize() {
+        synchronized (queries){
+            return queries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.expressions.Expression;
+import org.eclipse.persistence.expressions.ExpressionBuilder;
+import org.eclipse.persistence.expressions.ExpressionOperator;
+import org.eclipse.persistence.internal.expressions.FunctionExpression;
+import org.eclipse.persistence.internal.expressions.QueryKeyExpression;
+import org.eclipse.persistence.internal.helper.ConversionManager;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+import org.eclipse.persistence.queries.ReadAllQuery;
+
+/**
+ * EclipseLink helper class used for keyset (seek) pagination of read queries.
+ *
+ * A page is ordered by the ORDER BY attributes of the query followed by the primary key.  The
+ * continuation token handed to the client holds the values of those attributes for the last entity
+ * of a page, and the next page is read with a predicate that selects the rows that sort after those
+ * values rather than by skipping rows with an OFFSET.
+ *
+ * Only ascending or descending orderings on direct attributes of the queried entity can be paged, and
+ * those attributes must not be null.
+ */
+public class KeysetHelper {
+
+    private static final String SEPARATOR_STRING = ".";
+
+    /**
+     * Build the list of keys a query will be paged on: its ORDER BY attributes followed by the primary
+     * key attributes that are not already part of the ordering
+     * @param descriptor
+     * @param query
+     * @return
+     * @throws IllegalArgumentException if the ordering of the query can not be used for paging
+     */
+    public static List<SeekKey> getSeekKeys(ClassDescriptor descriptor, ReadAllQuery query) {
+        List<SeekKey> keys = new ArrayList<SeekKey>();
+        for (Expression orderBy: query.getOrderByExpressions()){
+            boolean descending = false;
+            Expression attribute = orderBy;
+            if (orderBy.isFunctionExpression()){
+                int selector = ((FunctionExpression)orderBy).getOperator().getSelector();
+                if (selector == ExpressionOperator.Descending){
+                    descending = true;
+                } else if (selector != ExpressionOperator.Ascending){
+                    throw new IllegalArgumentException("Query " + query.getName() + " can not be paged on " + orderBy);
+                }
+                attribute = ((FunctionExpression)orderBy).getBaseExpression();
+            }
+            if (!attribute.isQueryKeyExpression() || !((QueryKeyExpression)attribute).getBaseExpression().isExpressionBuilder()){
+                throw new IllegalArgumentException("Query " + query.getName() + " can not be paged on " + orderBy);
+            }
+            DatabaseMapping mapping = descriptor.getMappingForAttributeName(((QueryKeyExpression)attribute).getName());
+            if (mapping == null || !mapping.isDirectToFieldMapping()){
+                throw new IllegalArgumentException("Query " + query.getName() + " can not be paged on " + orderBy);
+            }
+            keys.add(new SeekKey(mapping, descending));
+        }
+        for (DatabaseMapping mapping: descriptor.getObjectBuilder().getPrimaryKeyMappings()){
+            if (!mapping.isDirectToFieldMapping()){
+                throw new IllegalArgumentException("Query " + query.getName() + " can not be paged, primary key " + mapping.getAttributeName() + " is not a basic attribute");
+            }
+            boolean ordered = false;
+            for (SeekKey key: keys){
+                if (key.getMapping() == mapping){
+                    ordered = true;
+                }
+            }
+            if (!ordered){
+                keys.add(new SeekKey(mapping, false));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Build the ORDER BY expressions for the given keys
+     * @param builder
+     * @param keys
+     * @return
+     */
+    public static List<Expression> buildOrderBy(ExpressionBuilder builder, List<SeekKey> keys) {
+        List<Expression> orderBy = new ArrayList<Expression>(keys.size());
+        for (SeekKey key: keys){
+            Expression attribute = builder.get(key.getMapping().getAttributeName());
+            orderBy.add(key.isDescending() ? attribute.descending() : attribute.ascending());
+        }
+        return orderBy;
+    }
+
+    /**
+     * Build the predicate that selects the rows that sort after the given key values:
+     * (k1 > v1) or (k1 = v1 and k2 > v2) or ...
+     * @param builder
+     * @param keys
+     * @param values
+     * @return
+     */
+    public static Expression buildSeekExpression(ExpressionBuilder builder, List<SeekKey> keys, Object[] values) {
+        Expression seek = null;
+        Expression equal = null;
+        for (int i = 0; i < keys.size(); i++){
+            SeekKey key = keys.get(i);
+            Expression attribute = builder.get(key.getMapping().getAttributeName());
+            Expression after = key.isDescending() ? attribute.lessThan(values[i]) : attribute.greaterThan(values[i]);
+            if (equal != null){
+                after = equal.and(after);
+            }
+            seek = seek == null ? after : seek.or(after);
+            Expression same = attribute.equal(values[i]);
+            equal = equal == null ? same : equal.and(same);
+        }
+        return seek;
+    }
+
+    /**
+     * Build the continuation token for the page that follows the given entity
+     * @param entity the last entity of the current page
+     * @param keys
+     * @param conversionManager
+     * @return
+     */
+    public static String buildContinuation(Object entity, List<SeekKey> keys, ConversionManager conversionManager) {
+        StringBuffer token = new StringBuffer();
+        for (int i = 0; i < keys.size(); i++){
+            Object value = keys.get(i).getMapping().getAttributeValueFromObject(entity);
+            if (value == null){
+                throw new IllegalArgumentException("Can not page on null value of " + keys.get(i).getMapping().getAttributeName());
+            }
+            if (i > 0){
+                token.append(SEPARATOR_STRING);
+            }
+            token.append(encode((String)conversionManager.convertObject(value, String.class)));
+        }
+        return token.toString();
+    }
+
+    /**
+     * Read the key values out of a continuation token
+     * @param token
+     * @param keys
+     * @param conversionManager
+     * @return
+     * @throws IllegalArgumentException if the token does not match the keys of the query
+     */
+    public static Object[] parseContinuation(String token, List<SeekKey> keys, ConversionManager conversionManager) {
+        String[] parts = token.split("\\" + SEPARATOR_STRING, -1);
+        if (parts.length != keys.size()){
+            throw new IllegalArgumentException("Invalid continuation token " + token);
+        }
+        Object[] values = new Object[parts.length];
+        for (int i = 0; i < parts.length; i++){
+            try {
+                values[i] = conversionManager.convertObject(decode(parts[i]), keys.get(i).getMapping().getAttributeClassification());
+            } catch (RuntimeException e){
+                throw new IllegalArgumentException("Invalid continuation token " + token, e);
+            }
+        }
+        return values;
+    }
+
+    private static String encode(String value) {
+        try {
+            String encoded = DatatypeConverter.printBase64Binary(value.getBytes("UTF-8"));
+            int end = encoded.indexOf('=');
+            if (end >= 0){
+                encoded = encoded.substring(0, end);
+            }
+            return encoded.replace('+', '-').replace('/', '_');
+        } catch (UnsupportedEncodingException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        StringBuffer encoded = new StringBuffer(value.replace('-', '+').replace('_', '/'));
+        while (encoded.length() % 4 != 0){
+            encoded.append('=');
+        }
+        try {
+            return new String(DatatypeConverter.parseBase64Binary(encoded.toString()), "UTF-8");
+        } catch (UnsupportedEncodingException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static class SeekKey {
+
+        private DatabaseMapping mapping;
+        private boolean descending;
+
+        public SeekKey(DatabaseMapping mapping, boolean descending){
+            this.mapping = mapping;
+            this.descending = descending;
+        }
+
+        public DatabaseMapping getMapping(){
+            return mapping;
+        }
+
+        public boolean isDescending(){
+            return descending;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import static org.eclipse.persistence.jaxb.JAXBContext.MEDIA_TYPE;
+
+import java.beans.PropertyChangeListener;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.core.MediaType;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import org.eclipse.persistence.dynamic.DynamicEntity;
+import org.eclipse.persistence.internal.dynamic.DynamicEntityImpl;
+import org.eclipse.persistence.jaxb.JAXBContext;
+import org.eclipse.persistence.jpa.rs.PersistenceContext;
+
+/**
+ * A pool of configured JAXB Marshallers and Unmarshallers for a PersistenceContext.
+ *
+ * Marshallers and Unmarshallers are not thread safe, so each is borrowed by one request at a time and
+ * returned when the request is done with it.  They are kept per media type with their properties,
+ * LinkAdapter and listener already set.  At most maxSize idle instances are kept per media type;
+ * when the pool is empty a new instance is created rather than waiting for one to be returned.
+ *
+ * @see PersistenceContext#marshallEntity(Object, MediaType, java.io.OutputStream)
+ */
+public class MarshallerPool {
+
+    /** Sets the self link of dynamic entities before they are marshalled **/
+    public static final Marshaller.Listener SELF_LINK_LISTENER = new Marshaller.Listener() {
+        @Override
+        public void beforeMarshal(Object source) {
+            if (source instanceof DynamicEntity){
+                DynamicEntityImpl sourceImpl = (DynamicEntityImpl)source;
+                PropertyChangeListener listener = sourceImpl._persistence_getPropertyChangeListener();
+                sourceImpl._persistence_setPropertyChangeListener(null);
+                ((DynamicEntity)source).set("self", source);
+                sourceImpl._persistence_setPropertyChangeListener(listener);
+            }
+        }
+    };
+
+    private PersistenceContext context;
+    private int maxSize;
+    private volatile LinkAdapter adapter = null;
+
+    private ConcurrentMap<String, Pool<Marshaller>> marshallers = new ConcurrentHashMap<String, Pool<Marshaller>>();
+    private ConcurrentMap<String, Pool<Unmarshaller>> unmarshallers = new ConcurrentHashMap<String, Pool<Unmarshaller>>();
+
+    public MarshallerPool(PersistenceContext context, int maxSize){
+        this.context = context;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Borrow a Marshaller for the given media type.  It must be given back with returnMarshaller
+     * @param mediaType
+     * @return
+     * @throws JAXBException
+     */
+    public Marshaller borrowMarshaller(MediaType mediaType) throws JAXBException {
+        Marshaller marshaller = getPool(marshallers, mediaType).poll();
+        if (marshaller == null){
+            marshaller = context.getJAXBContext().createMarshaller();
+            marshaller.setProperty(MEDIA_TYPE, mediaType.toString());
+            marshaller.setProperty(JAXBContext.JSON_INCLUDE_ROOT, Boolean.FALSE);
+            marshaller.setAdapter(getAdapter());
+            marshaller.setListener(SELF_LINK_LISTENER);
+        }
+        return marshaller;
+    }
+
+    /**
+     * Give back a Marshaller borrowed for the given media type
+     * @param mediaType
+     * @param marshaller
+     */
+    public void returnMarshaller(MediaType mediaType, Marshaller marshaller) {
+        if (marshaller.getAdapter(LinkAdapter.class) != adapter){
+            // created before the pool was cleared
+            return;
+        }
+        try {
+            // callers may have switched to fragment output for lists
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.FALSE);
+        } catch (JAXBException e){
+            return;
+        }
+        getPool(marshallers, mediaType).offer(marshaller, maxSize);
+    }
+
+    /**
+     * Borrow an Unmarshaller for the given media type.  It must be given back with returnUnmarshaller
+     * @param mediaType
+     * @return
+     * @throws JAXBException
+     */
+    public Unmarshaller borrowUnmarshaller(MediaType mediaType) throws JAXBException {
+        Unmarshaller unmarshaller = getPool(unmarshallers, mediaType).poll();
+        if (unmarshaller == null){
+            unmarshaller = context.getJAXBContext().createUnmarshaller();
+            unmarshaller.setProperty(MEDIA_TYPE, mediaType.toString());
+            unmarshaller.setProperty(JAXBContext.JSON_INCLUDE_ROOT, Boolean.FALSE);
+            unmarshaller.setAdapter(getAdapter());
+        }
+        return unmarshaller;
+    }
+
+    /**
+     * Give back an Unmarshaller borrowed for the given media type
+     * @param mediaType
+     * @param unmarshaller
+     */
+    public void returnUnmarshaller(MediaType mediaType, Unmarshaller unmarshaller) {
+        if (unmarshaller.getAdapter(LinkAdapter.class) != adapter){
+            return;
+        }
+        getPool(unmarshallers, mediaType).offer(unmarshaller, maxSize);
+    }
+
+    /**
+     * Discard all idle instances.  This must be called when the base URI of the context changes since
+     * it is held by the LinkAdapter of every pooled instance.
+     */
+    public synchronized void clear() {
+        adapter = null;
+        marshallers.clear();
+        unmarshallers.clear();
+    }
+
+    protected LinkAdapter getAdapter() {
+        LinkAdapter linkAdapter = adapter;
+        if (linkAdapter == null){
+            synchronized (this){
+                if (adapter == null){
+                    adapter = new LinkAdapter(context.getBaseURI().toString(), context);
+                }
+                linkAdapter = adapter;
+            }
+        }
+        return linkAdapter;
+    }
+
+    private static <T> Pool<T> getPool(ConcurrentMap<String, Pool<T>> pools, MediaType mediaType) {
+        String key = mediaType.toString();
+        Pool<T> pool = pools.get(key);
+        if (pool == null){
+            pool = new Pool<T>();
+            Pool<T> existing = pools.putIfAbsent(key, pool);
+            if (existing != null){
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    private static class Pool<T> {
+
+        private Queue<T> idle = new ConcurrentLinkedQueue<T>();
+        private AtomicInteger size = new AtomicInteger();
+
+        public T poll() {
+            T instance = idle.poll();
+            if (instance != null){
+                size.decrementAndGet();
+            }
+            return instance;
+        }
+
+        public void offer(T instance, int maxSize) {
+            if (size.incrementAndGet() > maxSize){
+                size.decrementAndGet();
+                return;
+            }
+            idle.offer(instance);
+        }
+    }
+}
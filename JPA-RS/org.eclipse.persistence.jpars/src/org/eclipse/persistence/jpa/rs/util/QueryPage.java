@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.List;
+
+/**
+ * One page of the results of a query along with the continuation token
+ * used to read the page that follows it.
+ *
+ * @see KeysetHelper
+ */
+public class QueryPage {
+
+    private List<Object> results;
+
+    /** null if this is the last page **/
+    private String next;
+
+    public QueryPage(List<Object> results, String next){
+        this.results = results;
+        this.next = next;
+    }
+
+    public List<Object> getResults() {
+        return results;
+    }
+
+    public String getNext() {
+        return next;
+    }
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.Query;
+
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.helper.ConversionManager;
+import org.eclipse.persistence.queries.DatabaseQuery;
+
+/**
+ * What is needed to set the parameters and hints of a request on a named query, worked out once
+ * per query rather than on every request.
+ *
+ * A plan holds a converter for each argument of the query, chosen for the argument type, so string
+ * values from the URL can be converted without looking the argument up or going through the generic
+ * conversion.  Parameters the query does not have, and hints other than those that tune how a query
+ * reads, are rejected before the query runs.
+ *
+ * @see org.eclipse.persistence.jpa.rs.PersistenceContext#getQueryPlan(String, DatabaseQuery)
+ */
+public class QueryPlan {
+
+    /** The names of the hints a request may set on a query.  Hints that change the cache, lock or write are not allowed. **/
+    protected static final Set<String> HINTS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            QueryHints.JDBC_FETCH_SIZE, QueryHints.JDBC_MAX_ROWS, QueryHints.JDBC_TIMEOUT,
+            QueryHints.READ_ONLY, QueryHints.REFRESH,
+            QueryHints.BATCH, QueryHints.BATCH_TYPE, QueryHints.BATCH_SIZE,
+            QueryHints.FETCH, QueryHints.LEFT_FETCH)));
+
+    private String name;
+    private Map<String, ParameterConverter> converters;
+    private ClassDescriptor descriptor;
+
+    /**
+     * @param name
+     * @param dbQuery the named query
+     * @param descriptor the descriptor of the entities the query reads, or null if it does not read entities
+     */
+    public QueryPlan(String name, DatabaseQuery dbQuery, ClassDescriptor descriptor){
+        this.name = name;
+        this.descriptor = descriptor;
+        List<String> arguments = dbQuery.getArguments();
+        List<Class> types = dbQuery.getArgumentTypes();
+        this.converters = new HashMap<String, ParameterConverter>(arguments.size() * 2);
+        for (int i = 0; i < arguments.size(); i++){
+            Class type = i < types.size() ? types.get(i) : null;
+            converters.put(arguments.get(i), ParameterConverter.forType(type));
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Return the descriptor of the entities read by the query, or null if it does not read entities
+     * @return
+     */
+    public ClassDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * Set the given parameters on a query created for this plan, converted to the argument types
+     * @param query
+     * @param parameters
+     * @throws IllegalArgumentException if the query does not have one of the parameters
+     */
+    public void setParameters(Query query, Map<?, ?> parameters) {
+        if (parameters == null){
+            return;
+        }
+        for (Map.Entry<?, ?> entry: parameters.entrySet()){
+            ParameterConverter converter = converters.get(entry.getKey());
+            if (converter == null){
+                throw new IllegalArgumentException("Query " + name + " does not have a parameter " + entry.getKey());
+            }
+            query.setParameter((String)entry.getKey(), converter.convert(entry.getValue()));
+        }
+    }
+
+    /**
+     * Check that all the given hints can be set on the query
+     * @param hints
+     * @throws IllegalArgumentException if a hint is not one a request may set, or only applies to
+     * queries that read entities and the query does not
+     */
+    public void checkHints(Map<String, ?> hints) {
+        checkHints(name, descriptor, hints);
+    }
+
+    /**
+     * Check that all the given hints can be set on a query that is not named, such as ad-hoc JPQL
+     * @param name the name of the query used in messages
+     * @param descriptor the descriptor of the entities the query reads, or null if it does not read entities
+     * @param hints
+     * @throws IllegalArgumentException if a hint is not one a request may set, or only applies to
+     * queries that read entities and the query does not
+     */
+    public static void checkHints(String name, ClassDescriptor descriptor, Map<String, ?> hints) {
+        if (hints == null){
+            return;
+        }
+        for (String key: hints.keySet()){
+            if (FieldsHelper.FIELDS_HINT.equals(key) || ExpandHelper.EXPAND_HINT.equals(key)){
+                if (descriptor == null){
+                    throw new IllegalArgumentException("Query " + name + " does not return entities and can not use " + key);
+                }
+            } else if (!HINTS.contains(key)){
+                throw new IllegalArgumentException("Hint " + key + " can not be set on query " + name);
+            }
+        }
+    }
+
+    /**
+     * Converts the value of a parameter to the type of a query argument
+     */
+    public static abstract class ParameterConverter {
+
+        public abstract Object convert(Object value);
+
+        /**
+         * Return a converter to the given type.  Strings are parsed directly for the common types,
+         * other values and types go through the ConversionManager.
+         * @param type the argument type, or null if it is not known
+         * @return
+         */
+        public static ParameterConverter forType(final Class type) {
+            if (type == null || type == Object.class){
+                return IDENTITY;
+            }
+            if (type == String.class){
+                return new ParameterConverter() {
+                    public Object convert(Object value) {
+                        return value instanceof String ? value : generic(value, type);
+                    }
+                };
+            }
+            if (type == Integer.class || type == int.class){
+                return new ParameterConverter() {
+                    public Object convert(Object value) {
+                        return value instanceof String ? Integer.valueOf(((String)value).trim()) : generic(value, type);
+                    }
+                };
+            }
+            if (type == Long.class || type == long.class){
+                return new ParameterConverter() {
+                    public Object convert(Object value) {
+                        return value instanceof String ? Long.valueOf(((String)value).trim()) : generic(value, type);
+                    }
+                };
+            }
+            if (type == Double.class || type == double.class){
+                return new ParameterConverter() {
+                    public Object convert(Object value) {
+                        return value instanceof String ? Double.valueOf(((String)value).trim()) : generic(value, type);
+                    }
+                };
+            }
+            if (type == Boolean.class || type == boolean.class){
+                return new ParameterConverter() {
+                    public Object convert(Object value) {
+                        return value instanceof String ? Boolean.valueOf(((String)value).trim()) : generic(value, type);
+                    }
+                };
+            }
+            return new ParameterConverter() {
+                public Object convert(Object value) {
+                    return generic(value, type);
+                }
+            };
+        }
+
+        protected static Object generic(Object value, Class type) {
+            return ConversionManager.getDefaultManager().convertObject(value, type);
+        }
+
+        private static final ParameterConverter IDENTITY = new ParameterConverter() {
+            public Object convert(Object value) {
+                return value;
+            }
+        };
+    }
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+
+/**
+ * A copy of the headers of a request, taken on the request thread.
+ *
+ * The work of a request that runs on an executor thread uses the copy, so it does not touch the
+ * request after the container has finished with it, which happens when the work outlives its timeout.
+ *
+ * @see BoundedExecutor
+ */
+public class RequestHeaders implements HttpHeaders {
+
+    private Headers headers = new Headers();
+    private List<MediaType> acceptableMediaTypes;
+    private List<Locale> acceptableLanguages;
+    private MediaType mediaType;
+    private Locale language;
+    private Map<String, Cookie> cookies;
+
+    public RequestHeaders(HttpHeaders hh){
+        if (hh.getRequestHeaders() != null){
+            for (Map.Entry<String, List<String>> entry: hh.getRequestHeaders().entrySet()){
+                headers.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<String>(entry.getValue())));
+            }
+        }
+        this.acceptableMediaTypes = copy(hh.getAcceptableMediaTypes());
+        this.acceptableLanguages = copy(hh.getAcceptableLanguages());
+        this.mediaType = hh.getMediaType();
+        this.language = hh.getLanguage();
+        this.cookies = hh.getCookies() == null ? Collections.<String, Cookie>emptyMap() : Collections.unmodifiableMap(new HashMap<String, Cookie>(hh.getCookies()));
+    }
+
+    public List<String> getRequestHeader(String name) {
+        return headers.get(name);
+    }
+
+    public MultivaluedMap<String, String> getRequestHeaders() {
+        return headers;
+    }
+
+    public List<MediaType> getAcceptableMediaTypes() {
+        return acceptableMediaTypes;
+    }
+
+    public List<Locale> getAcceptableLanguages() {
+        return acceptableLanguages;
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    public Locale getLanguage() {
+        return language;
+    }
+
+    public Map<String, Cookie> getCookies() {
+        return cookies;
+    }
+
+    private static <T> List<T> copy(List<T> values) {
+        return values == null ? Collections.<T>emptyList() : Collections.unmodifiableList(new ArrayList<T>(values));
+    }
+
+    /**
+     * Header values by name, with names compared ignoring case as HTTP does
+     */
+    private static class Headers extends TreeMap<String, List<String>> implements MultivaluedMap<String, String> {
+
+        private static final long serialVersionUID = 1L;
+
+        public Headers(){
+            super(String.CASE_INSENSITIVE_ORDER);
+        }
+
+        public void putSingle(String key, String value) {
+            List<String> values = new ArrayList<String>(1);
+            values.add(value);
+            put(key, values);
+        }
+
+        public void add(String key, String value) {
+            List<String> values = get(key);
+            if (values == null){
+                putSingle(key, value);
+            } else {
+                values = new ArrayList<String>(values);
+                values.add(value);
+                put(key, values);
+            }
+        }
+
+        public String getFirst(String key) {
+            List<String> values = get(key);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+    }
+}
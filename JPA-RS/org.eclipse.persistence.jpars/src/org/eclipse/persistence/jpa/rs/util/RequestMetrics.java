@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Latency and size histograms of the requests JPA-RS serves, kept per context, Service operation and
+ * phase of the request.
+ *
+ * The phases of a request are timed with a Timer.  Each call to phase records the time since the
+ * previous one, so a request is split into:
+ * <ul>
+ * <li>lookup - finding the PersistenceContext</li>
+ * <li>queue - waiting to be admitted by the limiter of the context and for a thread of its executor</li>
+ * <li>id - building the id of the entity from the URL</li>
+ * <li>db - running the JPA operation</li>
+ * <li>marshall - marshalling or unmarshalling entities, when it is done before the response is written</li>
+ * <li>write - writing the response body, including marshalling and compression when they are streamed</li>
+ * <li>total - the whole request</li>
+ * </ul>
+ * The number of bytes written for each response is recorded as well.
+ *
+ * The Timer of a request is held by the thread working on it, and must be handed on when the work
+ * moves to another thread.
+ *
+ * @see org.eclipse.persistence.jpa.rs.Service#metrics()
+ */
+public class RequestMetrics {
+
+    public static final String LOOKUP = "lookup";
+    public static final String QUEUE = "queue";
+    public static final String ID = "id";
+    public static final String DATABASE = "db";
+    public static final String MARSHALL = "marshall";
+    public static final String WRITE = "write";
+    public static final String TOTAL = "total";
+
+    /** The types of metrics that are single values **/
+    public static final String COUNTER = "counter";
+    public static final String GAUGE = "gauge";
+
+    private static final double[] QUANTILES = new double[]{0.5, 0.9, 0.99, 0.999};
+
+    private static ConcurrentMap<String, Histogram> latencies = new ConcurrentHashMap<String, Histogram>();
+    private static ConcurrentMap<String, Histogram> sizes = new ConcurrentHashMap<String, Histogram>();
+
+    private static ThreadLocal<Timer> current = new ThreadLocal<Timer>();
+
+    /**
+     * Start timing a request on the current thread
+     * @param operation the Service operation
+     * @return
+     */
+    public static Timer start(String operation) {
+        Timer timer = new Timer(operation);
+        current.set(timer);
+        return timer;
+    }
+
+    /**
+     * Return the Timer of the request the current thread is working on
+     * @return the timer, or null if the request is not timed
+     */
+    public static Timer current() {
+        return current.get();
+    }
+
+    /**
+     * Make the current thread work on the request of the given timer
+     * @param timer the timer, or null if the thread is done with the request
+     */
+    public static void setCurrent(Timer timer) {
+        if (timer == null){
+            current.remove();
+        } else {
+            current.set(timer);
+        }
+    }
+
+    /**
+     * Return the latency histogram of a phase of an operation
+     * @param context
+     * @param operation
+     * @param phase
+     * @return the histogram, or null if nothing has been recorded for it
+     */
+    public static Histogram getLatency(String context, String operation, String phase) {
+        return latencies.get(labels(context, operation, phase));
+    }
+
+    /**
+     * Return the histogram of the response sizes of an operation
+     * @param context
+     * @param operation
+     * @return the histogram, or null if nothing has been recorded for it
+     */
+    public static Histogram getSize(String context, String operation) {
+        return sizes.get(labels(context, operation, null));
+    }
+
+    public static void clear() {
+        latencies.clear();
+        sizes.clear();
+    }
+
+    /**
+     * Write the histograms in the Prometheus text exposition format, latencies in seconds
+     * @param out
+     */
+    public static void write(StringBuilder out) {
+        out.append("# TYPE jpars_request_seconds summary\n");
+        for (Map.Entry<String, Histogram> entry: new TreeMap<String, Histogram>(latencies).entrySet()){
+            writeSummary(out, "jpars_request_seconds", entry.getKey(), entry.getValue(), 1e-9);
+        }
+        out.append("# TYPE jpars_response_bytes summary\n");
+        for (Map.Entry<String, Histogram> entry: new TreeMap<String, Histogram>(sizes).entrySet()){
+            writeSummary(out, "jpars_response_bytes", entry.getKey(), entry.getValue(), 1);
+        }
+    }
+
+    /**
+     * Write the type of a metric family in the Prometheus text exposition format.  It must come
+     * before all the samples of the family.
+     * @param out
+     * @param name
+     * @param type COUNTER or GAUGE
+     */
+    public static void writeType(StringBuilder out, String name, String type) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Add a sample of a counter or gauge to its family, starting the family with its type the first
+     * time.  Samples of a family have to be written together, so those of several contexts are
+     * collected by family and the families are written one after the other.
+     * @param families the samples written so far by the name of their family, in the order the families were started
+     * @param name the name of the family, which ends in _total for counters
+     * @param type COUNTER or GAUGE
+     * @param context the context the value is for, or null
+     * @param value
+     */
+    public static void addSample(Map<String, StringBuilder> families, String name, String type, String context, Number value) {
+        StringBuilder family = families.get(name);
+        if (family == null){
+            family = new StringBuilder();
+            writeType(family, name, type);
+            families.put(name, family);
+        }
+        writeSample(family, name, context, value);
+    }
+
+    /**
+     * Write a single sample in the Prometheus text exposition format
+     * @param out
+     * @param name
+     * @param context the context the value is for, or null
+     * @param value
+     */
+    public static void writeSample(StringBuilder out, String name, String context, Number value) {
+        out.append(name);
+        if (context != null){
+            out.append("{context=\"").append(escape(context)).append("\"}");
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void writeSummary(StringBuilder out, String name, String labels, Histogram histogram, double scale) {
+        for (double quantile: QUANTILES){
+            out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ");
+            out.append(histogram.getPercentile(quantile) * scale).append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSum() * scale).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String labels(String context, String operation, String phase) {
+        StringBuilder labels = new StringBuilder();
+        labels.append("context=\"").append(escape(context)).append("\",operation=\"").append(operation).append('"');
+        if (phase != null){
+            labels.append(",phase=\"").append(phase).append('"');
+        }
+        return labels.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static Histogram getHistogram(ConcurrentMap<String, Histogram> histograms, String key) {
+        Histogram histogram = histograms.get(key);
+        if (histogram == null){
+            histogram = new Histogram();
+            Histogram existing = histograms.putIfAbsent(key, histogram);
+            if (existing != null){
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Times the phases of a request
+     */
+    public static class Timer {
+
+        private String operation;
+        private volatile String context = null;
+        private long start = System.nanoTime();
+        private volatile long mark = start;
+        private volatile boolean finished = false;
+        private volatile RequestTrace trace = null;
+        private long traceThreshold = 0;
+
+        private Timer(String operation){
+            this.operation = operation;
+        }
+
+        /**
+         * Add the phases of the request to a trace as well
+         * @param trace
+         * @param threshold the time in nanoseconds over which the trace is logged
+         */
+        public void setTrace(RequestTrace trace, long threshold) {
+            this.traceThreshold = threshold;
+            this.trace = trace;
+        }
+
+        /**
+         * @return the System.nanoTime value at which the request started
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the trace of the request, or null if it is not traced
+         */
+        public RequestTrace getTrace() {
+            return trace;
+        }
+
+        /**
+         * Set the context of the request once it has been found.  Nothing is recorded for requests
+         * without a context.
+         * @param context
+         */
+        public void setContext(String context) {
+            this.context = context;
+        }
+
+        /**
+         * Record the time since the previous phase ended as the time of the given phase
+         * @param phase
+         */
+        public void phase(String phase) {
+            long now = System.nanoTime();
+            if (context != null){
+                getHistogram(latencies, labels(context, operation, phase)).record(now - mark);
+            }
+            if (trace != null){
+                trace.addSpan(phase, mark, now, null);
+            }
+            mark = now;
+        }
+
+        /**
+         * Record the size of the response body
+         * @param bytes
+         */
+        public void written(long bytes) {
+            if (context != null){
+                getHistogram(sizes, labels(context, operation, null)).record(bytes);
+            }
+        }
+
+        /**
+         * Record the time of the whole request.  Only the first call has an effect.
+         */
+        public void finish() {
+            if (finished){
+                return;
+            }
+            finished = true;
+            long duration = System.nanoTime() - start;
+            if (context != null){
+                getHistogram(latencies, labels(context, operation, TOTAL)).record(duration);
+            }
+            if (trace != null){
+                trace.finish(context, operation, duration, traceThreshold);
+            }
+            if (current.get() == this){
+                current.remove();
+            }
+        }
+    }
+}
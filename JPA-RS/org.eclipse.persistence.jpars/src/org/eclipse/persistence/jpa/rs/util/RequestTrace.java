@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * The spans of a request that is traced: each phase of the request and, if the request is sampled,
+ * each SQL statement run for it with its duration.
+ *
+ * A trace joins the W3C trace context of the request.  If the request has a traceparent header its
+ * trace id is kept and the span of the request is a child of the span in the header, and a request
+ * the caller sampled is always sampled here.  Other requests are sampled at the configured rate, so
+ * capturing SQL only costs anything for a small share of the requests.
+ *
+ * A request that takes longer than the threshold of its context is logged as a single JSON record.
+ *
+ * @see RequestMetrics.Timer#setTrace(RequestTrace, long)
+ * @see SQLTraceListener
+ */
+public class RequestTrace {
+
+    public static final String TRACEPARENT = "traceparent";
+    public static final String TRACERESPONSE = "traceresponse";
+
+    private static final Logger logger = Logger.getLogger("org.eclipse.persistence.jpa.rs.trace");
+
+    private static final Random random = new Random();
+
+    private String traceId;
+    private String parentId;
+    private String spanId;
+    private boolean sampled;
+
+    private long start;
+    private long callStart = 0;
+    private List<Span> spans = new ArrayList<Span>();
+
+    private RequestTrace(String traceId, String parentId, boolean sampled, long start){
+        this.start = start;
+        this.traceId = traceId;
+        this.parentId = parentId;
+        this.spanId = randomHex(8);
+        this.sampled = sampled;
+    }
+
+    /**
+     * Start the trace of a request
+     * @param traceparent the traceparent header of the request, or null
+     * @param samplePercent the percentage of requests without a sampled traceparent to capture SQL for
+     * @return
+     */
+    public static RequestTrace start(String traceparent, int samplePercent) {
+        return start(traceparent, samplePercent, System.nanoTime());
+    }
+
+    /**
+     * Start the trace of a request that has already been running, so the times of its spans are
+     * measured from when the request started
+     * @param traceparent the traceparent header of the request, or null
+     * @param samplePercent the percentage of requests without a sampled traceparent to capture SQL for
+     * @param start the System.nanoTime value at which the request started
+     * @return
+     * @see RequestMetrics.Timer#getStart()
+     */
+    public static RequestTrace start(String traceparent, int samplePercent, long start) {
+        if (traceparent != null){
+            String[] parts = traceparent.trim().split("-");
+            if (parts.length >= 4 && parts[0].length() == 2 && !parts[0].equals("ff") && isHex(parts[1], 32) && isHex(parts[2], 16) && isHex(parts[3], 2)){
+                boolean sampled = (Integer.parseInt(parts[3], 16) & 1) == 1 || random.nextInt(100) < samplePercent;
+                return new RequestTrace(parts[1], parts[2], sampled, start);
+            }
+            // an invalid header starts a new trace
+        }
+        return new RequestTrace(randomHex(16), null, random.nextInt(100) < samplePercent, start);
+    }
+
+    /**
+     * Return the trace context of the span of the request, as a traceparent header value
+     * @return
+     */
+    public String getTraceparent() {
+        return "00-" + traceId + "-" + spanId + (sampled ? "-01" : "-00");
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * Add a span from start to end, both System.nanoTime values
+     * @param name
+     * @param start
+     * @param end
+     * @param detail what the span did, such as its SQL, or null
+     */
+    public synchronized void addSpan(String name, long start, long end, String detail) {
+        spans.add(new Span(name, start - this.start, end - start, detail));
+    }
+
+    /**
+     * Mark the start of a call to the database
+     */
+    public synchronized void callStarted() {
+        callStart = System.nanoTime();
+    }
+
+    /**
+     * Add a span for the call to the database since callStarted
+     * @param sql
+     */
+    public synchronized void callFinished(String sql) {
+        if (callStart != 0){
+            addSpan("sql", callStart, System.nanoTime(), sql);
+            callStart = 0;
+        }
+    }
+
+    public synchronized List<Span> getSpans() {
+        return new ArrayList<Span>(spans);
+    }
+
+    /**
+     * Log the trace if the request took longer than the threshold
+     * @param context
+     * @param operation
+     * @param duration the time of the request in nanoseconds
+     * @param threshold in nanoseconds
+     */
+    public void finish(String context, String operation, long duration, long threshold) {
+        if (duration >= threshold){
+            logger.info(toJSON(context, operation, duration));
+        }
+    }
+
+    /**
+     * Return the trace as a single line JSON record, with times in milliseconds
+     * @param context
+     * @param operation
+     * @param duration in nanoseconds
+     * @return
+     */
+    public synchronized String toJSON(String context, String operation, long duration) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"traceId\":\"").append(traceId).append('"');
+        if (parentId != null){
+            json.append(",\"parentId\":\"").append(parentId).append('"');
+        }
+        json.append(",\"spanId\":\"").append(spanId).append('"');
+        json.append(",\"context\":\"").append(escape(context)).append('"');
+        json.append(",\"operation\":\"").append(operation).append('"');
+        json.append(",\"durationMs\":").append(duration / 1e6);
+        json.append(",\"spans\":[");
+        for (int i = 0; i < spans.size(); i++){
+            Span span = spans.get(i);
+            if (i > 0){
+                json.append(',');
+            }
+            json.append("{\"name\":\"").append(span.name).append('"');
+            json.append(",\"startMs\":").append(span.start / 1e6);
+            json.append(",\"durationMs\":").append(span.duration / 1e6);
+            if (span.detail != null){
+                json.append(",\"detail\":\"").append(escape(span.detail)).append('"');
+            }
+            json.append('}');
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private static boolean isHex(String value, int length) {
+        if (value.length() != length){
+            return false;
+        }
+        boolean zero = true;
+        for (int i = 0; i < length; i++){
+            char c = value.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))){
+                return false;
+            }
+            zero = zero && c == '0';
+        }
+        // all zero ids are invalid
+        return !zero || length == 2;
+    }
+
+    private static String randomHex(int bytes) {
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        for (int i = 0; i < bytes; i++){
+            String digits = Integer.toHexString(random.nextInt(256));
+            if (digits.length() == 1){
+                hex.append('0');
+            }
+            hex.append(digits);
+        }
+        return hex.toString();
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\'){
+                escaped.append('\\').append(c);
+            } else if (c < ' '){
+                escaped.append(' ');
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * A timed part of a request
+     */
+    public static class Span {
+
+        private String name;
+        private long start;
+        private long duration;
+        private String detail;
+
+        private Span(String name, long start, long duration, String detail){
+            this.name = name;
+            this.start = start;
+            this.duration = duration;
+            this.detail = detail;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the time in nanoseconds from the start of the request to the start of the span
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the duration of the span in nanoseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+    }
+}
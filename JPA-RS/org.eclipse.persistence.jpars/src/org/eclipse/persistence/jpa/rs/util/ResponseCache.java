@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.persistence.jpa.rs.eventlistener.ChangeListener;
+
+/**
+ * A cache of encoded responses to reads, bounded by the number of bytes it holds.
+ *
+ * Each response depends on a set of entity types.  Every type has a generation that is incremented
+ * whenever entities of the type are written, either through the PersistenceContext or as reported by
+ * change notification.  A response is stored with the generations its types had before it was read and
+ * is only returned while they are unchanged, so a response read concurrently with a write is never
+ * served after the write.  Writes the cache is not told of, such as those made by session beans or
+ * outside JPA-RS, are only bounded by the maximum age of a response, if one is set.
+ *
+ * Eviction is segmented LRU: a new response goes into the probationary segment and is moved into the
+ * protected segment when it is hit again.  Responses that are only read once are evicted first, and
+ * the protected segment is kept to a share of the cache so it can not be filled by responses that
+ * were popular long ago.
+ *
+ * @see org.eclipse.persistence.jpa.rs.PersistenceContext#getResponseCache()
+ */
+public class ResponseCache implements ChangeListener {
+
+    /** The share of the cache the protected segment may take **/
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private long maxBytes;
+    private long maxEntryBytes;
+    private long protectedMaxBytes;
+    private long maxAgeNanos;
+
+    private LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>();
+    private LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<String, Entry>();
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+
+    private ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+    private AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param maxBytes the total size of the responses that can be kept
+     * @param maxEntryBytes the size of the largest response that is kept
+     */
+    public ResponseCache(long maxBytes, long maxEntryBytes){
+        this(maxBytes, maxEntryBytes, 0);
+    }
+
+    /**
+     * @param maxBytes the total size of the responses that can be kept
+     * @param maxEntryBytes the size of the largest response that is kept
+     * @param maxAgeMillis the time a response is kept, or 0 to keep it until it is evicted or made stale
+     */
+    public ResponseCache(long maxBytes, long maxEntryBytes, long maxAgeMillis){
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.protectedMaxBytes = (long)(maxBytes * PROTECTED_SHARE);
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    /**
+     * Record the current generations of the given types.  This must be done before the response
+     * that depends on them is read.
+     * @param types the names of the entity types the response depends on
+     * @return
+     */
+    public Stamp stamp(Collection<String> types) {
+        String[] names = types.toArray(new String[types.size()]);
+        long[] values = new long[names.length];
+        for (int i = 0; i < names.length; i++){
+            values[i] = getGeneration(names[i]).get();
+        }
+        return new Stamp(names, values);
+    }
+
+    /**
+     * Return the response cached under a key, if the types it depends on have not been written since
+     * it was read and it is not older than the maximum age
+     * @param key
+     * @return the response or null
+     */
+    public CachedResponse get(String key) {
+        synchronized (this){
+            Entry entry = protectedEntries.remove(key);
+            if (entry != null){
+                protectedBytes -= entry.size();
+            } else {
+                entry = probation.remove(key);
+                if (entry != null){
+                    probationBytes -= entry.size();
+                }
+            }
+            if (entry != null){
+                if (isCurrent(entry.stamp) && !isExpired(entry)){
+                    // a hit moves the entry to the most recently used end of the protected segment
+                    protectedEntries.put(key, entry);
+                    protectedBytes += entry.size();
+                    demote();
+                    hits.incrementAndGet();
+                    return entry.response;
+                }
+                invalidations.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Cache a response
+     * @param key
+     * @param response
+     * @param stamp the generations of the types the response depends on, taken before it was read
+     */
+    public void put(String key, CachedResponse response, Stamp stamp) {
+        if (response.getContent().length > maxEntryBytes || !isCurrent(stamp)){
+            return;
+        }
+        Entry entry = new Entry(response, stamp);
+        synchronized (this){
+            Entry previous = protectedEntries.remove(key);
+            if (previous != null){
+                protectedBytes -= previous.size();
+            }
+            previous = probation.remove(key);
+            if (previous != null){
+                probationBytes -= previous.size();
+            }
+            probation.put(key, entry);
+            probationBytes += entry.size();
+            evict();
+        }
+    }
+
+    /**
+     * Make the responses that depend on the given type stale
+     * @param type the name of an entity type
+     */
+    public void invalidate(String type) {
+        getGeneration(type).incrementAndGet();
+    }
+
+    public void objectInserted(String entityName, String transactionId, String rowId) {
+        invalidate(entityName);
+    }
+
+    public void objectUpdated(String entityName, String transactionId, String rowId) {
+        invalidate(entityName);
+    }
+
+    public void register() {
+    }
+
+    public void unregister() {
+    }
+
+    /**
+     * Drop all responses
+     */
+    public synchronized void clear() {
+        probation.clear();
+        protectedEntries.clear();
+        probationBytes = 0;
+        protectedBytes = 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Return the share of lookups that found a current response
+     * @return
+     */
+    public double getHitRate() {
+        long found = hits.get();
+        long total = found + misses.get();
+        return total == 0 ? 0 : (double)found / total;
+    }
+
+    /**
+     * Return the number of responses evicted to make room for others
+     * @return
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Return the number of responses found to be stale when they were looked up
+     * @return
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public synchronized int getSize() {
+        return probation.size() + protectedEntries.size();
+    }
+
+    public synchronized long getBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private AtomicLong getGeneration(String type) {
+        AtomicLong generation = generations.get(type);
+        if (generation == null){
+            generation = new AtomicLong();
+            AtomicLong existing = generations.putIfAbsent(type, generation);
+            if (existing != null){
+                generation = existing;
+            }
+        }
+        return generation;
+    }
+
+    private boolean isExpired(Entry entry) {
+        return maxAgeNanos > 0 && System.nanoTime() - entry.created > maxAgeNanos;
+    }
+
+    private boolean isCurrent(Stamp stamp) {
+        for (int i = 0; i < stamp.types.length; i++){
+            if (getGeneration(stamp.types[i]).get() != stamp.generations[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move the least recently used protected entries back to the probationary segment until the
+     * protected segment is within its share
+     */
+    private void demote() {
+        Iterator<Map.Entry<String, Entry>> iterator = protectedEntries.entrySet().iterator();
+        while (protectedBytes > protectedMaxBytes && iterator.hasNext()){
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            protectedBytes -= eldest.getValue().size();
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().size();
+        }
+        evict();
+    }
+
+    /**
+     * Evict the least recently used probationary entries, then protected ones, until the cache is
+     * within its size
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = probation.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && iterator.hasNext()){
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            probationBytes -= eldest.getValue().size();
+            evictions.incrementAndGet();
+        }
+        iterator = protectedEntries.entrySet().iterator();
+        while (probationBytes + protectedBytes > maxBytes && iterator.hasNext()){
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            protectedBytes -= eldest.getValue().size();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * The generations of the types a response depends on at the time it was read
+     */
+    public static class Stamp {
+
+        private String[] types;
+        private long[] generations;
+
+        private Stamp(String[] types, long[] generations){
+            this.types = types;
+            this.generations = generations;
+        }
+    }
+
+    private static class Entry {
+
+        private CachedResponse response;
+        private Stamp stamp;
+        private long created;
+
+        public Entry(CachedResponse response, Stamp stamp){
+            this.response = response;
+            this.stamp = stamp;
+            this.created = System.nanoTime();
+        }
+
+        public int size() {
+            return response.getContent().length;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import org.eclipse.persistence.internal.databaseaccess.DatabaseCall;
+import org.eclipse.persistence.queries.Call;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+
+/**
+ * Adds a span for each SQL statement a session runs to the trace of the request it is run for, if the
+ * request is sampled.  The request is the one the thread running the statement is working on, so SQL
+ * run to load relationships lazily while the response is written is traced as well.
+ *
+ * @see org.eclipse.persistence.jpa.rs.PersistenceContext#getTraceThreshold()
+ */
+public class SQLTraceListener extends SessionEventAdapter {
+
+    @Override
+    public void preExecuteCall(SessionEvent event) {
+        RequestTrace trace = getSampledTrace();
+        if (trace != null){
+            trace.callStarted();
+        }
+    }
+
+    @Override
+    public void postExecuteCall(SessionEvent event) {
+        RequestTrace trace = getSampledTrace();
+        if (trace != null){
+            Call call = event.getCall();
+            trace.callFinished(call instanceof DatabaseCall ? ((DatabaseCall)call).getSQLString() : String.valueOf(call));
+        }
+    }
+
+    private static RequestTrace getSampledTrace() {
+        RequestMetrics.Timer timer = RequestMetrics.current();
+        if (timer == null || timer.getTrace() == null || !timer.getTrace().isSampled()){
+            return null;
+        }
+        return timer.getTrace();
+    }
+}
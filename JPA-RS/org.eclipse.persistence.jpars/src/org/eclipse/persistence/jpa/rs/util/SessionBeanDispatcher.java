@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import static org.eclipse.persistence.jaxb.JAXBContext.MEDIA_TYPE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ejb.NoSuchEJBException;
+import javax.ejb.Singleton;
+import javax.ejb.Stateless;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.ws.rs.core.MediaType;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.stream.StreamSource;
+
+import org.eclipse.persistence.jaxb.JAXBContext;
+import org.eclipse.persistence.jaxb.JAXBContextFactory;
+import org.eclipse.persistence.jpa.rs.metadata.model.SessionBeanCall;
+
+/**
+ * Calls methods of session beans on behalf of the session bean endpoint of the service.
+ *
+ * Everything that does not depend on the arguments of a call is looked up once and kept: the JNDI
+ * proxy of each stateless or singleton bean, the classes of parameters, the Method for each bean
+ * class, name and signature, and a JAXB context for each type of return value.  Any other bean is
+ * looked up for every call, since a stateful bean must not be shared between clients.  A proxy is
+ * dropped when a call through it finds that the bean no longer exists, so the next call looks the
+ * bean up again.
+ *
+ * Proxies are kept by JNDI name, parameter classes for the class loader they were loaded through,
+ * Methods for the bean class that declares or inherits them and JAXB contexts for the class they
+ * bind, without holding any of them.  A redeployed application gets its own classes and the class
+ * loader it replaces can be collected.
+ *
+ * @see org.eclipse.persistence.jpa.rs.Service#callSessionBean(javax.ws.rs.core.HttpHeaders, javax.ws.rs.core.UriInfo, InputStream)
+ */
+public class SessionBeanDispatcher {
+
+    private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+
+    static {
+        for (Class<?> type: new Class<?>[]{boolean.class, byte.class, char.class, short.class, int.class, long.class, float.class, double.class}){
+            PRIMITIVES.put(type.getName(), type);
+        }
+    }
+
+    private volatile JAXBContext callContext = null;
+
+    /** a soft reference to the proxy of each stateless or singleton bean by JNDI name **/
+    private ConcurrentMap<String, SoftReference<Object>> beans = new ConcurrentHashMap<String, SoftReference<Object>>();
+    /** parameter classes by name for each class loader they are loaded through **/
+    private Map<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>> classes = new WeakHashMap<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>>();
+    /** soft references to methods by name and signature for each bean class **/
+    private Map<Class<?>, ConcurrentMap<String, SoftReference<Method>>> methods = new WeakHashMap<Class<?>, ConcurrentMap<String, SoftReference<Method>>>();
+    /** a soft reference to the JAXBContext of each return type, or FALSE if the type cannot be bound **/
+    private Map<Class<?>, Object> returnContexts = Collections.synchronizedMap(new WeakHashMap<Class<?>, Object>());
+
+    /**
+     * Read a SessionBeanCall from JSON
+     * @param data
+     * @return
+     * @throws JAXBException
+     */
+    public SessionBeanCall unmarshallCall(InputStream data) throws JAXBException {
+        JAXBContext context = callContext;
+        if (context == null){
+            context = (JAXBContext)JAXBContextFactory.createContext(new Class[]{SessionBeanCall.class}, null);
+            callContext = context;
+        }
+        Unmarshaller unmarshaller = context.createUnmarshaller();
+        unmarshaller.setProperty(JAXBContext.JSON_INCLUDE_ROOT, Boolean.FALSE);
+        unmarshaller.setProperty(MEDIA_TYPE, MediaType.APPLICATION_JSON);
+        return unmarshaller.unmarshal(new StreamSource(data), SessionBeanCall.class).getValue();
+    }
+
+    /**
+     * Return the bean bound to the given JNDI name.  Only the proxy of a bean whose class is known to
+     * be stateless or a singleton is kept for later calls.
+     * @param jndiName
+     * @return the bean or null if nothing is bound to the name
+     * @throws NamingException
+     */
+    public Object lookup(String jndiName) throws NamingException {
+        SoftReference<Object> reference = beans.get(jndiName);
+        Object bean = reference == null ? null : reference.get();
+        if (bean == null){
+            bean = new InitialContext().lookup(jndiName);
+            if (bean != null && isShareable(bean.getClass())){
+                beans.put(jndiName, new SoftReference<Object>(bean));
+            }
+        }
+        return bean;
+    }
+
+    /**
+     * Return whether one proxy of a bean may serve every client.  This is only known when the
+     * proxy is of the bean class or a subclass of it, as with the no-interface view of a bean.
+     */
+    protected static boolean isShareable(Class<?> beanClass) {
+        for (Class<?> type = beanClass; type != null; type = type.getSuperclass()){
+            if (type.isAnnotationPresent(Stateless.class) || type.isAnnotationPresent(Singleton.class)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Load a parameter class through the context class loader.  Primitive type names are accepted.
+     * @param typeName
+     * @return
+     * @throws ClassNotFoundException
+     */
+    public Class<?> loadClass(String typeName) throws ClassNotFoundException {
+        Class<?> type = PRIMITIVES.get(typeName);
+        if (type != null){
+            return type;
+        }
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        ConcurrentMap<String, WeakReference<Class<?>>> loaded = null;
+        synchronized (classes){
+            loaded = classes.get(loader);
+            if (loaded == null){
+                loaded = new ConcurrentHashMap<String, WeakReference<Class<?>>>();
+                classes.put(loader, loaded);
+            }
+        }
+        WeakReference<Class<?>> reference = loaded.get(typeName);
+        type = reference == null ? null : reference.get();
+        if (type == null){
+            type = loader.loadClass(typeName);
+            loaded.put(typeName, new WeakReference<Class<?>>(type));
+        }
+        return type;
+    }
+
+    /**
+     * Call a method of the bean bound to a JNDI name
+     * @param jndiName
+     * @param bean the bean returned by lookup for the JNDI name
+     * @param methodName
+     * @param parameters
+     * @param args
+     * @return the return value of the method
+     * @throws NoSuchMethodException
+     * @throws InvocationTargetException
+     * @throws IllegalAccessException
+     */
+    public Object invoke(String jndiName, Object bean, String methodName, Class<?>[] parameters, Object[] args) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+        Method method = getMethod(bean.getClass(), methodName, parameters);
+        try {
+            return method.invoke(bean, args);
+        } catch (InvocationTargetException e){
+            // the bean is gone, for instance because it was redeployed, and must be looked up again
+            if (e.getCause() instanceof NoSuchEJBException){
+                SoftReference<Object> reference = beans.get(jndiName);
+                if (reference != null && reference.get() == bean){
+                    beans.remove(jndiName, reference);
+                }
+            }
+            throw e;
+        }
+    }
+
+    protected Method getMethod(Class<?> beanClass, String methodName, Class<?>[] parameters) throws NoSuchMethodException {
+        StringBuilder key = new StringBuilder(methodName).append('(');
+        for (Class<?> parameter: parameters){
+            key.append(parameter.getName()).append(',');
+        }
+        String signature = key.append(')').toString();
+        ConcurrentMap<String, SoftReference<Method>> declared = null;
+        synchronized (methods){
+            declared = methods.get(beanClass);
+            if (declared == null){
+                declared = new ConcurrentHashMap<String, SoftReference<Method>>();
+                methods.put(beanClass, declared);
+            }
+        }
+        // the method refers to the bean class, so it is only softly held to let the class be collected
+        SoftReference<Method> reference = declared.get(signature);
+        Method method = reference == null ? null : reference.get();
+        if (method == null){
+            method = beanClass.getMethod(methodName, parameters);
+            try {
+                // skip the access check made on every invoke
+                method.setAccessible(true);
+            } catch (SecurityException e){
+            }
+            declared.put(signature, new SoftReference<Method>(method));
+        }
+        return method;
+    }
+
+    /**
+     * Marshall the return value of a call to JSON or XML with a JAXB context built for its type.  The
+     * elements of a collection are marshalled with a context built for their type, as a JSON array or
+     * as the children of a List element in XML.
+     * @param value
+     * @param mediaType
+     * @return the marshalled value or null if the media type is neither JSON nor XML, the type of
+     * the value cannot be bound with JAXB or the elements of a collection are not all of one type
+     */
+    public byte[] marshallResult(Object value, MediaType mediaType) {
+        if (value == null || !(MediaType.APPLICATION_JSON_TYPE.equals(mediaType) || MediaType.APPLICATION_XML_TYPE.equals(mediaType))){
+            return null;
+        }
+        if (value instanceof Collection){
+            return marshallResults((Collection<?>)value, mediaType);
+        }
+        Class<?> type = value.getClass();
+        JAXBContext context = getReturnContext(type);
+        if (context == null){
+            return null;
+        }
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            createMarshaller(context, mediaType).marshal(root(type, value), output);
+            return output.toByteArray();
+        } catch (JAXBException e){
+            returnContexts.put(type, Boolean.FALSE);
+            return null;
+        }
+    }
+
+    protected byte[] marshallResults(Collection<?> values, MediaType mediaType) {
+        Class<?> type = null;
+        for (Object element: values){
+            if (element == null || (type != null && element.getClass() != type)){
+                return null;
+            }
+            type = element.getClass();
+        }
+        if (type == null && MediaType.APPLICATION_JSON_TYPE.equals(mediaType)){
+            return new byte[]{'[', ']'};
+        }
+        JAXBContext context = null;
+        if (type != null){
+            context = getReturnContext(type);
+            if (context == null){
+                return null;
+            }
+        }
+        List<Object> roots = new ArrayList<Object>(values.size());
+        for (Object element: values){
+            roots.add(root(type, element));
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            if (MediaType.APPLICATION_JSON_TYPE.equals(mediaType)){
+                createMarshaller(context, mediaType).marshal(roots, output);
+                return output.toByteArray();
+            }
+            XMLStreamWriter writer = XMLOutputFactory.newFactory().createXMLStreamWriter(output);
+            writer.writeStartDocument();
+            writer.writeStartElement("List");
+            if (context != null){
+                Marshaller marshaller = createMarshaller(context, mediaType);
+                marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+                for (Object root: roots){
+                    marshaller.marshal(root, writer);
+                }
+            }
+            writer.writeEndDocument();
+            writer.flush();
+            return output.toByteArray();
+        } catch (JAXBException e){
+            returnContexts.put(type, Boolean.FALSE);
+            return null;
+        } catch (XMLStreamException e){
+            return null;
+        }
+    }
+
+    private static Marshaller createMarshaller(JAXBContext context, MediaType mediaType) throws JAXBException {
+        Marshaller marshaller = context.createMarshaller();
+        marshaller.setProperty(MEDIA_TYPE, mediaType.toString());
+        marshaller.setProperty(JAXBContext.JSON_INCLUDE_ROOT, Boolean.FALSE);
+        return marshaller;
+    }
+
+    /**
+     * Wrap a value whose type is not a root element in a result element
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Object root(Class<?> type, Object value) {
+        if (type.getAnnotation(XmlRootElement.class) == null){
+            return new JAXBElement(new QName("result"), type, value);
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected JAXBContext getReturnContext(Class<?> type) {
+        Object entry = returnContexts.get(type);
+        if (entry == Boolean.FALSE){
+            return null;
+        }
+        // the context refers to the type, so it is only softly held to let the type be collected
+        JAXBContext context = entry == null ? null : ((SoftReference<JAXBContext>)entry).get();
+        if (context == null){
+            try {
+                context = (JAXBContext)JAXBContextFactory.createContext(new Class[]{type}, null);
+            } catch (JAXBException e){
+                returnContexts.put(type, Boolean.FALSE);
+                return null;
+            }
+            returnContexts.put(type, new SoftReference<JAXBContext>(context));
+        }
+        return context;
+    }
+}
@@ -15,24 +15,26 @@ package org.eclipse.persistence.jpa.rs.util;
 
 import static org.eclipse.persistence.jaxb.JAXBContext.MEDIA_TYPE;
 
-import java.beans.PropertyChangeListener;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.StreamingOutput;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 
-import org.eclipse.persistence.dynamic.DynamicEntity;
-import org.eclipse.persistence.internal.dynamic.DynamicEntityImpl;
 import org.eclipse.persistence.jpa.rs.PersistenceContext;
+import org.eclipse.persistence.jpa.rs.util.CompressionHelper.CompressingOutputStream;
+import org.eclipse.persistence.jpa.rs.util.CompressionHelper.CountingOutputStream;
 
 /**
  * Simple {@link StreamingOutput} implementation that uses the provided
@@ -43,10 +45,19 @@ import org.eclipse.persistence.jpa.rs.PersistenceContext;
  * @since EclipseLink 2.4.0
  */
 public class StreamingOutputMarshaller implements StreamingOutput {
+    private static final Logger logger = Logger.getLogger(StreamingOutputMarshaller.class.getName());
+
     private PersistenceContext context;
     private Object result;
     private MediaType mediaType;
 
+    /** gzip or deflate if the output should be compressed **/
+    private String contentEncoding = null;
+    private int compressionLevel = CompressionHelper.DEFAULT_COMPRESSION_LEVEL;
+
+    /** Times the request the output is for, if it is timed **/
+    private RequestMetrics.Timer timer = RequestMetrics.current();
+
     public StreamingOutputMarshaller(PersistenceContext context, Object result, MediaType acceptedType) {
         this.context = context;
         this.result = result;
@@ -57,8 +68,49 @@ public class StreamingOutputMarshaller implements StreamingOutput {
         this(context, result, mediaType(acceptedTypes));
     }
 
+    /**
+     * Compress the output with the given content coding.  The Content-Encoding header of the
+     * response must be set to match.
+     * @param contentEncoding gzip or deflate
+     * @param compressionLevel
+     */
+    public void setContentEncoding(String contentEncoding, int compressionLevel) {
+        this.contentEncoding = contentEncoding;
+        this.compressionLevel = compressionLevel;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
     public void write(OutputStream output) throws IOException, WebApplicationException {
-        long millis = System.currentTimeMillis();
+        CountingOutputStream counted = new CountingOutputStream(output);
+        if (timer != null){
+            // SQL run to load relationships while the result is marshalled belongs to the request
+            RequestMetrics.setCurrent(timer);
+        }
+        try {
+            if (contentEncoding == null){
+                writeResult(counted);
+            } else {
+                CompressingOutputStream compressed = CompressionHelper.compress(counted, contentEncoding, compressionLevel);
+                try {
+                    writeResult(compressed);
+                    compressed.finish();
+                } finally {
+                    compressed.end();
+                }
+            }
+        } finally {
+            if (timer != null){
+                timer.written(counted.getCount());
+                timer.phase(RequestMetrics.WRITE);
+                timer.finish();
+            }
+        }
+    }
+
+    protected void writeResult(OutputStream output) throws IOException, WebApplicationException {
         if (result instanceof byte[]){
             output.write((byte[])result);
         } else if (result instanceof String){
@@ -70,15 +122,14 @@ public class StreamingOutputMarshaller implements StreamingOutput {
             if (this.context != null && this.context.getJAXBContext() != null && this.result != null ) {
                 try {
                     context.marshallEntity(result, mediaType, output);
-                    System.out.println("SteamingOutputMarshaller done write. time: " + (System.currentTimeMillis() - millis));
                     return;
                 } catch (JAXBException e) {
-                    // TODO: proper warning message
-                    e.printStackTrace();
-                    System.out.println("WARNING, could not marshall entity, serializing. " + e.toString());
+                    // part of the result may have been written, so it cannot be rewritten in another format
+                    logger.log(Level.WARNING, "Could not marshall entity", e);
+                    throw new WebApplicationException(e, Status.INTERNAL_SERVER_ERROR);
                 }
             }
-            // could not marshall, try serializing
+            // no descriptors to marshall with, try serializing
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             ObjectOutputStream oos = new ObjectOutputStream(baos);
             oos.writeObject(result);
@@ -86,13 +137,12 @@ public class StreamingOutputMarshaller implements StreamingOutput {
             oos.close();
             output.write(baos.toByteArray());
         }
-        System.out.println("SteamingOutputMarshaller done write. time: " + (System.currentTimeMillis() - millis));
-
     }
     
     /**
      * Identify the preferred {@link MediaType} from the list provided. This
-     * will check for JSON string or {@link MediaType} first then XML.
+     * will check for JSON string or {@link MediaType} first then XML, then the
+     * binary format of {@link BinaryCodec}.
      * 
      * @param types
      *            List of {@link String} or {@link MediaType} values;
@@ -108,6 +158,9 @@ public class StreamingOutputMarshaller implements StreamingOutput {
         if (contains(types, MediaType.APPLICATION_XML_TYPE)) {
             return MediaType.APPLICATION_XML_TYPE;
         }
+        if (contains(types, BinaryCodec.APPLICATION_BINARY_TYPE)) {
+            return BinaryCodec.APPLICATION_BINARY_TYPE;
+        }
         return MediaType.WILDCARD_TYPE;
     }
 
@@ -124,23 +177,20 @@ public class StreamingOutputMarshaller implements StreamingOutput {
         return false;
     }
     
+    /**
+     * Create a new, unpooled Marshaller for the given context.  Requests should borrow
+     * Marshallers from {@link PersistenceContext#getMarshallerPool()} instead.
+     * @param context
+     * @param mediaType
+     * @return
+     * @throws JAXBException
+     */
     public static Marshaller createMarshaller(PersistenceContext context, MediaType mediaType) throws JAXBException{
         Marshaller marshaller = context.getJAXBContext().createMarshaller();
         marshaller.setProperty(MEDIA_TYPE, mediaType.toString());
         marshaller.setProperty(org.eclipse.persistence.jaxb.JAXBContext.JSON_INCLUDE_ROOT, false);
         marshaller.setAdapter(new LinkAdapter(context.getBaseURI().toString(), context));
-        marshaller.setListener(new Marshaller.Listener() {
-            @Override
-            public void beforeMarshal(Object source) {   
-                if (source instanceof DynamicEntity){
-                    DynamicEntityImpl sourceImpl = (DynamicEntityImpl)source;
-                    PropertyChangeListener listener = sourceImpl._persistence_getPropertyChangeListener();
-                    sourceImpl._persistence_setPropertyChangeListener(null);
-                    ((DynamicEntity)source).set("self", source);
-                    sourceImpl._persistence_setPropertyChangeListener(listener);
-                }
-            }
-        });
+        marshaller.setListener(MarshallerPool.SELF_LINK_LISTENER);
         return marshaller;
     }
 }
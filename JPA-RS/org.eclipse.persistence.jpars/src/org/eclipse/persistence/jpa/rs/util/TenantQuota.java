@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Oracle. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 and Eclipse Distribution License v. 1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ ******************************************************************************/
+package org.eclipse.persistence.jpa.rs.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of EntityManagers each tenant of a PersistenceContext can have open at once.
+ *
+ * An EntityManager holds a connection from the pool while it runs a transaction or a query, so
+ * bounding the EntityManagers of a tenant bounds the share of the pool it can take.  A tenant that is
+ * at its limit waits up to the timeout for one of its EntityManagers to be closed and is then rejected,
+ * so other tenants are never kept waiting behind it.
+ *
+ * @see org.eclipse.persistence.jpa.rs.PersistenceContext#createEntityManager(String)
+ */
+public class TenantQuota {
+
+    private int maxEntityManagers;
+    private long timeout;
+
+    private ConcurrentMap<String, Semaphore> permits = new ConcurrentHashMap<String, Semaphore>();
+
+    private AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param maxEntityManagers the number of EntityManagers each tenant can have open
+     * @param timeout the time in milliseconds to wait for an EntityManager of a tenant to be closed
+     */
+    public TenantQuota(int maxEntityManagers, long timeout){
+        this.maxEntityManagers = maxEntityManagers;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Take one of the EntityManagers of a tenant.  It must be given back with release
+     * @param tenantId
+     * @throws RejectedExecutionException if the tenant is at its limit
+     */
+    public void acquire(String tenantId) {
+        boolean acquired = false;
+        try {
+            acquired = getPermits(tenantId).tryAcquire(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        if (!acquired){
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Tenant " + tenantId + " has " + maxEntityManagers + " EntityManagers open");
+        }
+    }
+
+    /**
+     * Give back an EntityManager of a tenant
+     * @param tenantId
+     */
+    public void release(String tenantId) {
+        getPermits(tenantId).release();
+    }
+
+    /**
+     * Return the number of EntityManagers a tenant has open
+     * @param tenantId
+     * @return
+     */
+    public int getInUse(String tenantId) {
+        Semaphore semaphore = permits.get(tenantId);
+        if (semaphore == null){
+            return 0;
+        }
+        return maxEntityManagers - semaphore.availablePermits();
+    }
+
+    public int getMaxEntityManagers() {
+        return maxEntityManagers;
+    }
+
+    /**
+     * Return the number of requests rejected because their tenant was at its limit
+     * @return
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private Semaphore getPermits(String tenantId) {
+        Semaphore semaphore = permits.get(tenantId);
+        if (semaphore == null){
+            semaphore = new Semaphore(maxEntityManagers);
+            Semaphore existing = permits.putIfAbsent(tenantId, semaphore);
+            if (existing != null){
+                semaphore = existing;
+            }
+        }
+        return semaphore;
+    }
+}